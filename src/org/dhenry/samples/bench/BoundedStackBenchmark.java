@@ -0,0 +1,87 @@
+package org.dhenry.samples.bench;
+
+import java.util.Deque;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.dhenry.samples.main.BoundedStack;
+import org.dhenry.samples.main.StackServer;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Push-then-pop throughput of StackServer's stack core from several
+ * threads: the old one (a LinkedBlockingDeque with its size in a LongAdder,
+ * checked and changed under one lock) against BoundedStack. Half full to
+ * start with, so neither side sees the stack empty or full. Run with
+ * -prof gc to see the deque node allocated per push, and with -t to try
+ * other thread counts.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@Threads(4)
+public class BoundedStackBenchmark {
+
+	private static final Object MESSAGE = new byte[16];
+
+	private final ReentrantLock lock = new ReentrantLock();
+	private Deque<Object> deque;
+	private LongAdder dequeSize;
+	private BoundedStack<Object> stack;
+
+	@Setup
+	public void setup() {
+		deque = new LinkedBlockingDeque<>();
+		dequeSize = new LongAdder();
+		stack = new BoundedStack<>(StackServer.STACK_MAX_SIZE);
+		for (int i = 0; i < StackServer.STACK_MAX_SIZE / 2; i++) {
+			deque.push(MESSAGE);
+			dequeSize.increment();
+			stack.push(MESSAGE);
+		}
+	}
+
+	@Benchmark
+	public Object lockedDeque() {
+		lock.lock();
+		try {
+			if (dequeSize.intValue() < StackServer.STACK_MAX_SIZE) {
+				deque.push(MESSAGE);
+				dequeSize.increment();
+			}
+		} finally {
+			lock.unlock();
+		}
+		lock.lock();
+		try {
+			if (dequeSize.intValue() == 0) {
+				return null;
+			}
+			dequeSize.decrement();
+			return deque.pop();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	@Benchmark
+	public Object boundedStack() {
+		stack.push(MESSAGE);
+		return stack.pop();
+	}
+}
@@ -0,0 +1,70 @@
+package org.dhenry.samples.bench;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.time.ZonedDateTime;
+import java.util.concurrent.TimeUnit;
+
+import org.dhenry.samples.main.JsonFieldExtractor;
+import org.json.JSONObject;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Per-event cost of preparing the bind values in UniqueEventTracker.insert:
+ * the old way (full JSON parse, four getHostAddress calls, four argument
+ * arrays) against the streaming extractor and one shared row. Run with
+ * -prof gc to see the bytes allocated per event next to the time.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class InsertPathBenchmark {
+
+	private String properties;
+	private InetAddress sourceRemoteIp;
+	private ZonedDateTime occurrenceTime;
+
+	@Setup
+	public void setup() throws UnknownHostException {
+		properties = "{\"referrer\":\"https://www.example.com/search?q=shoes\",\"agent\":{\"name\":\"Mozilla/5.0\","
+			+ "\"mobile\":false},\"tags\":[\"a\",\"b\",\"c\"],\"URL\":\"https://shop.example.com/products/1234?ref=home\","
+			+ "\"duration\":1234}";
+		sourceRemoteIp = InetAddress.getByName("10.1.2.3");
+		occurrenceTime = ZonedDateTime.now();
+	}
+
+	@Benchmark
+	public void jsonParseAndFourRows(Blackhole bh) {
+		String value = new JSONObject(properties).getString("URL");
+		int bucket = occurrenceTime.getHour() * 10 + (occurrenceTime.getMinute() / 10);
+		for (int i = 0; i < 4; i++) {
+			Object[] row = {"key", sourceRemoteIp.getHostAddress(), "tenant", "actor", "type", properties,
+				3, value, occurrenceTime, occurrenceTime, bucket};
+			bh.consume(row);
+		}
+	}
+
+	@Benchmark
+	public void streamingExtractAndSharedRow(Blackhole bh) {
+		String value = JsonFieldExtractor.getString(properties, "URL");
+		int bucket = occurrenceTime.getHour() * 10 + (occurrenceTime.getMinute() / 10);
+		Object[] row = {"key", sourceRemoteIp.getHostAddress(), "tenant", "actor", "type", properties,
+			3, value, occurrenceTime, occurrenceTime, bucket};
+		for (int i = 0; i < 4; i++) {
+			bh.consume(row);
+		}
+	}
+}
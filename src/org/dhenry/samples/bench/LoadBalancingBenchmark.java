@@ -0,0 +1,108 @@
+package org.dhenry.samples.bench;
+
+import java.util.Properties;
+import java.util.UUID;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadLocalRandom;
+
+import org.dhenry.samples.main.CassandraConnection;
+import org.dhenry.samples.main.LatencyHistogram;
+
+import com.datastax.driver.core.PreparedStatement;
+import com.datastax.driver.core.ResultSet;
+import com.datastax.driver.core.ResultSetFuture;
+import com.datastax.driver.core.Session;
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.MoreExecutors;
+
+/**
+ * Write latency under CassandraConnection's load balancing settings: plain
+ * DC-aware round robin, token-aware, and token-aware over latency-aware.
+ * Meant for a local multi-node stand-in such as a three node ccm cluster
+ * (ccm create bench -n 3 -s), where with round robin about two
+ * writes in three go through a coordinator that isn't a replica. Each
+ * variant writes event-like rows, partitioned like the tracker's tables, at
+ * a fixed concurrency after a warm-up of a tenth of the requests, and
+ * prints the latency percentiles.
+ *
+ * Arguments: datacenter, contact point, requests per variant, concurrency,
+ * optionally the replication factor (1).
+ */
+public class LoadBalancingBenchmark {
+
+	private static final String[][] VARIANTS = {
+		{"roundrobin", "false", "false"},
+		{"token", "true", "false"},
+		{"token+latency", "true", "true"},
+	};
+
+	public static void main(String[] args) throws InterruptedException {
+		String dc = args[0];
+		String contactPoint = args[1];
+		int requests = Integer.parseInt(args[2]);
+		int concurrency = Integer.parseInt(args[3]);
+		int replication = args.length > 4 ? Integer.parseInt(args[4]) : 1;
+
+		String[] actors = new String[10000];
+		for (int i = 0; i < actors.length; i++) {
+			actors[i] = UUID.randomUUID().toString();
+		}
+		for (String[] variant : VARIANTS) {
+			Properties settings = new Properties();
+			settings.put("tokenAware", variant[1]);
+			settings.put("latencyAware", variant[2]);
+			settings.put("speculativeExecutions", "0");
+			CassandraConnection conn = new CassandraConnection();
+			conn.connect(dc, contactPoint, settings);
+			try {
+				Session session = conn.getSession();
+				session.execute("create keyspace if not exists lb_bench with replication = "
+					+ "{'class': 'SimpleStrategy', 'replication_factor': " + replication + "}");
+				session.execute("create table if not exists lb_bench.events (type text, tenant_id text, "
+					+ "actor_uuid text, value text, occurrence_time timestamp, "
+					+ "primary key ((type, tenant_id, actor_uuid), value, occurrence_time))");
+				conn.waitForSchemaAgreement(30000);
+				PreparedStatement insert = session.prepare("insert into lb_bench.events (type, tenant_id, "
+					+ "actor_uuid, value, occurrence_time) values (?, ?, ?, ?, toTimestamp(now()))");
+				insert.setIdempotent(true);
+
+				run(session, insert, actors, requests / 10, concurrency);
+				long start = System.nanoTime();
+				LatencyHistogram.Snapshot latency = run(session, insert, actors, requests, concurrency);
+				long nanos = System.nanoTime() - start;
+				System.out.printf("%s: %d writes, %.0f/s, p50 %d us, p90 %d us, p99 %d us, p99.9 %d us, "
+					+ "max %d us, %d failed%n", variant[0], latency.getCount(), requests * 1e9 / nanos,
+					latency.getPercentileMicros(50), latency.getPercentileMicros(90),
+					latency.getPercentileMicros(99), latency.getPercentileMicros(99.9),
+					latency.getMaxMicros(), requests - latency.getCount());
+			} finally {
+				conn.close();
+			}
+		}
+	}
+
+	private static LatencyHistogram.Snapshot run(Session session, PreparedStatement insert, String[] actors,
+			int requests, int concurrency) throws InterruptedException {
+		LatencyHistogram latency = new LatencyHistogram();
+		Semaphore inFlight = new Semaphore(concurrency);
+		ThreadLocalRandom random = ThreadLocalRandom.current();
+		for (int i = 0; i < requests; i++) {
+			inFlight.acquire();
+			long start = System.nanoTime();
+			ResultSetFuture future = session.executeAsync(insert.bind("view", "tenant-" + random.nextInt(10),
+				actors[random.nextInt(actors.length)], "https://shop.example.com/products/" + random.nextInt(10000)));
+			Futures.addCallback(future, new FutureCallback<ResultSet>() {
+				public void onSuccess(ResultSet rs) {
+					latency.recordNanos(System.nanoTime() - start);
+					inFlight.release();
+				}
+				public void onFailure(Throwable t) {
+					inFlight.release();
+				}
+			}, MoreExecutors.directExecutor());
+		}
+		inFlight.acquire(concurrency);
+		return latency.snapshot();
+	}
+}
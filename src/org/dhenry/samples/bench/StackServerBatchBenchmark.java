@@ -0,0 +1,142 @@
+package org.dhenry.samples.bench;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.dhenry.samples.main.StackProtocol;
+import org.dhenry.samples.main.StackServer;
+
+/**
+ * Messages per second moved through StackServer by one framed producer and
+ * one framed consumer, each on its own connection and one request at a time,
+ * with single PUSH and POP requests and with PUSH_N and POP_N batches of a
+ * few sizes.
+ *
+ * Arguments: messages per batch size, optionally the message bytes (16).
+ */
+public class StackServerBatchBenchmark {
+
+	private static final int[] BATCH_SIZES = {1, 10, 50, StackServer.STACK_MAX_SIZE};
+
+	public static void main(String[] args) throws Exception {
+		int messages = Integer.parseInt(args[0]);
+		int messageBytes = args.length > 1 ? Integer.parseInt(args[1]) : 16;
+
+		StackServer server = new StackServer(0, 2, StackServer.CONN_MAX_COUNT);
+		server.run();
+		ExecutorService producers = Executors.newSingleThreadExecutor();
+		try {
+			for (int batch : BATCH_SIZES) {
+				int requests = messages / batch;
+				long start = System.nanoTime();
+				Future<?> produced = producers.submit(() -> produce(server.getPort(), requests, batch, messageBytes));
+				int consumed = consume(server.getPort(), requests * batch, batch);
+				produced.get();
+				long nanos = System.nanoTime() - start;
+				System.out.printf("batch %d: %d messages in %d ms, %.0f messages/s%n", batch, consumed,
+					nanos / 1000000, consumed * 1e9 / nanos);
+			}
+		} finally {
+			producers.shutdown();
+			server.shutdown();
+		}
+	}
+
+	private static Void produce(int port, int requests, int batch, int messageBytes) throws IOException {
+		byte[] message = new byte[messageBytes];
+		ByteBuffer payload = ByteBuffer.allocate(batch * (4 + messageBytes));
+		for (int i = 0; i < batch; i++) {
+			payload.putInt(messageBytes).put(message);
+		}
+		try (Socket sock = new Socket("localhost", port)) {
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(sock.getOutputStream()));
+			DataInputStream in = new DataInputStream(new BufferedInputStream(sock.getInputStream()));
+			handshake(out, in);
+			for (int i = 0; i < requests; i++) {
+				if (batch == 1) {
+					send(out, StackProtocol.PUSH, i, message);
+				} else {
+					send(out, StackProtocol.PUSH_N, i, payload.array());
+				}
+				if (receive(in) != StackProtocol.OK) {
+					throw new IOException("push " + i + " failed");
+				}
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * @return messages popped
+	 */
+	private static int consume(int port, int messages, int batch) throws IOException {
+		int popped = 0;
+		try (Socket sock = new Socket("localhost", port)) {
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(sock.getOutputStream()));
+			DataInputStream in = new DataInputStream(new BufferedInputStream(sock.getInputStream()));
+			handshake(out, in);
+			byte[] count = ByteBuffer.allocate(4).putInt(batch).array();
+			for (int id = 0; popped < messages; id++) {
+				if (batch == 1) {
+					send(out, StackProtocol.POP, id, new byte[0]);
+				} else {
+					send(out, StackProtocol.POP_N, id, count);
+				}
+				int frameLength = in.readInt();
+				int code = in.read();
+				in.readInt();
+				byte[] payload = new byte[frameLength - 5];
+				in.readFully(payload);
+				if (code != StackProtocol.OK) {
+					throw new IOException("pop " + id + " failed with " + code);
+				}
+				if (batch == 1) {
+					popped++;
+					continue;
+				}
+				ByteBuffer response = ByteBuffer.wrap(payload);
+				while (response.hasRemaining()) {
+					int length = response.getInt();
+					response.position(response.position() + length);
+					popped++;
+				}
+			}
+		}
+		return popped;
+	}
+
+	private static void handshake(DataOutputStream out, DataInputStream in) throws IOException {
+		out.write(new byte[] {(byte) StackProtocol.MAGIC, StackProtocol.VERSION});
+		out.flush();
+		if (in.read() != StackProtocol.MAGIC || in.read() != StackProtocol.VERSION) {
+			throw new IOException("not a framed server");
+		}
+	}
+
+	private static void send(DataOutputStream out, int code, int id, byte[] payload) throws IOException {
+		out.writeInt(5 + payload.length);
+		out.write(code);
+		out.writeInt(id);
+		out.write(payload);
+		out.flush();
+	}
+
+	/**
+	 * @return the status, skipping the payload
+	 */
+	private static int receive(DataInputStream in) throws IOException {
+		int length = in.readInt();
+		int code = in.read();
+		in.readInt();
+		in.skipBytes(length - 5);
+		return code;
+	}
+}
@@ -0,0 +1,100 @@
+package org.dhenry.samples.bench;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.dhenry.samples.main.StackServer;
+
+/**
+ * How many clients StackServer keeps waiting and how fast it serves them,
+ * with the event loops or a thread per connection. Opens the given number
+ * of pop clients against an empty stack, from one client thread, waits
+ * until the server holds them all, then pushes as many messages from a few
+ * threads and counts the pops answered. Each client costs two file
+ * descriptors, the server runs in this JVM; raise ulimit -n to match.
+ * Clients still waiting after the server's 30 second limit are dropped and
+ * show up as not served.
+ *
+ * Arguments: loops|threads, clients, optionally event loop threads (4).
+ */
+public class StackServerLoadTest {
+
+	public static void main(String[] args) throws IOException, InterruptedException {
+		boolean threads = "threads".equals(args[0]);
+		int clients = Integer.parseInt(args[1]);
+		int eventLoops = args.length > 2 ? Integer.parseInt(args[2]) : 4;
+
+		int baseThreads = Thread.activeCount();
+		StackServer server = new StackServer(0, eventLoops, clients + 100, threads);
+		server.run();
+		InetSocketAddress address = new InetSocketAddress("localhost", server.getPort());
+
+		Selector selector = Selector.open();
+		long start = System.nanoTime();
+		for (int i = 0; i < clients; i++) {
+			SocketChannel channel = SocketChannel.open(address);
+			channel.write(ByteBuffer.wrap(new byte[] {(byte) 0x80}));
+			channel.configureBlocking(false);
+			channel.register(selector, SelectionKey.OP_READ, ByteBuffer.allocate(2));
+		}
+		while (server.getConnectionCount() < clients && System.nanoTime() - start < TimeUnit.SECONDS.toNanos(30)) {
+			Thread.sleep(10);
+		}
+		long waitingNanos = System.nanoTime() - start;
+		System.out.printf("%s: %d clients waiting after %d ms, %d server threads%n", threads ? "threads" : "loops",
+			server.getConnectionCount(), waitingNanos / 1000000, Thread.activeCount() - baseThreads);
+
+		ExecutorService pushers = Executors.newFixedThreadPool(8);
+		AtomicInteger pushed = new AtomicInteger();
+		long serveStart = System.nanoTime();
+		for (int i = 0; i < clients; i++) {
+			pushers.execute(() -> {
+				try (Socket sock = new Socket(address.getAddress(), address.getPort())) {
+					sock.getOutputStream().write(new byte[] {1, 42});
+					if (sock.getInputStream().read() == 0) {
+						pushed.incrementAndGet();
+					}
+				} catch (IOException ex) {
+				}
+			});
+		}
+		int served = 0;
+		int closed = 0;
+		while (served + closed < clients && System.nanoTime() - serveStart < TimeUnit.SECONDS.toNanos(60)) {
+			selector.select(1000);
+			Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+			while (keys.hasNext()) {
+				SelectionKey key = keys.next();
+				keys.remove();
+				ByteBuffer answer = (ByteBuffer) key.attachment();
+				SocketChannel channel = (SocketChannel) key.channel();
+				if (channel.read(answer) < 0 || !answer.hasRemaining()) {
+					if (!answer.hasRemaining() && answer.get(1) == 42) {
+						served++;
+					} else {
+						closed++;
+					}
+					key.cancel();
+					channel.close();
+				}
+			}
+		}
+		long serveNanos = System.nanoTime() - serveStart;
+		pushers.shutdown();
+		pushers.awaitTermination(10, TimeUnit.SECONDS);
+		System.out.printf("%s: %d pushed, %d of %d pops served in %d ms, %.0f pops/s%n", threads ? "threads" : "loops",
+			pushed.get(), served, clients, serveNanos / 1000000, served * 1e9 / serveNanos);
+		selector.close();
+		server.shutdown();
+	}
+}
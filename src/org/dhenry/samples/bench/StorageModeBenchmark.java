@@ -0,0 +1,126 @@
+package org.dhenry.samples.bench;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.ZonedDateTime;
+import java.util.Properties;
+import java.util.UUID;
+import java.util.concurrent.ThreadLocalRandom;
+
+import org.dhenry.samples.main.CassandraConnection;
+import org.dhenry.samples.main.Event;
+import org.dhenry.samples.main.UniqueEventTracker;
+
+import com.datastax.driver.core.ResultSet;
+import com.datastax.driver.core.Row;
+
+/**
+ * Write throughput and disk usage of UniqueEventTracker's two storage
+ * modes against a live cluster: tables (four rolling period tables) and
+ * bucketed (one TTL'd table). Run once per mode against an empty keyspace,
+ * then run nodetool flush and compare the estimates; size_estimates is
+ * refreshed by Cassandra every few minutes. Mode embedded runs the same
+ * load on an EmbeddedEventStore in events.db instead and needs no cluster;
+ * its size is read from the directory.
+ *
+ * Arguments: datacenter, contact point, tables|bucketed|embedded, event count.
+ */
+public class StorageModeBenchmark {
+
+	public static void main(String[] args) throws IOException {
+		String dc = args[0];
+		String contactPoint = args[1];
+		String mode = args[2];
+		int count = Integer.parseInt(args[3]);
+
+		Properties settings = new Properties();
+		boolean embedded = "embedded".equals(mode);
+		settings.put("storage", embedded ? "embedded" : "cassandra");
+		settings.put("storageMode", embedded ? "tables" : mode);
+		settings.put("walEnabled", "false");
+		settings.put("overflowPolicy", "BLOCK");
+		settings.put("offerTimeoutMillis", "60000");
+		// the tracker only reads its settings from events.settings, and saves them
+		// there on shutdown, so whatever is there is put back afterwards
+		Path settingsPath = Paths.get("events.settings");
+		byte[] saved = Files.exists(settingsPath) ? Files.readAllBytes(settingsPath) : null;
+		long nanos;
+		long rejected;
+		try {
+			try (OutputStream out = Files.newOutputStream(settingsPath)) {
+				settings.store(out, null);
+			}
+
+			UniqueEventTracker tracker = new UniqueEventTracker(dc, contactPoint);
+			String[] actors = new String[1000];
+			for (int i = 0; i < actors.length; i++) {
+				actors[i] = UUID.randomUUID().toString();
+			}
+			ThreadLocalRandom random = ThreadLocalRandom.current();
+			long start = System.nanoTime();
+			for (int i = 0; i < count; i++) {
+				String now = ZonedDateTime.now().toString();
+				String properties = "{\"URL\":\"https://shop.example.com/products/" + random.nextInt(10000) + "\"}";
+				tracker.processEvent(new Event("bench-key", "10.0.0." + (i % 250 + 1), "tenant-" + (i % 10),
+					actors[random.nextInt(actors.length)], "view", properties, now, now, 1 << random.nextInt(8)));
+			}
+			while (tracker.getQueueDepth() > 0) {
+				try {
+					Thread.sleep(10);
+				} catch (InterruptedException e) {
+				}
+			}
+			// waits for the outstanding writes
+			tracker.shutdown();
+			nanos = System.nanoTime() - start;
+			rejected = tracker.getRejectedCount();
+		} finally {
+			if (saved != null) {
+				Files.write(settingsPath, saved);
+			} else {
+				Files.deleteIfExists(settingsPath);
+			}
+		}
+		System.out.printf("%s: %d events in %d ms, %.0f events/s, %d rejected%n", mode, count,
+			nanos / 1000000, count * 1e9 / nanos, rejected);
+
+		if (embedded) {
+			long total = size(new File("events.db"));
+			System.out.printf("%s: %d bytes on disk, %.1f bytes per event%n", mode, total, (double) total / count);
+			return;
+		}
+		CassandraConnection conn = new CassandraConnection();
+		conn.connect(dc, contactPoint);
+		try {
+			ResultSet rs = conn.getSession().execute("select keyspace_name, table_name, mean_partition_size, "
+				+ "partitions_count from system.size_estimates");
+			long total = 0;
+			for (Row row : rs) {
+				String table = row.getString("table_name");
+				if (table.startsWith("event_") && !table.equals("event_sketches")) {
+					total += row.getLong("mean_partition_size") * row.getLong("partitions_count");
+				}
+			}
+			System.out.printf("%s: about %d bytes on disk per replica, %.1f bytes per event%n", mode, total,
+				(double) total / count);
+		} finally {
+			conn.close();
+		}
+	}
+
+	private static long size(File file) {
+		File[] children = file.listFiles();
+		if (children == null) {
+			return file.length();
+		}
+		long size = 0;
+		for (File child : children) {
+			size += size(child);
+		}
+		return size;
+	}
+}
@@ -0,0 +1,111 @@
+package org.dhenry.samples.main;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Thread-safe Bloom filter over 64 bit hashes. The k probe positions come
+ * from one hash split into two halves (Kirsch-Mitzenmacher), so callers hash
+ * their key once. There are no false negatives; the false-positive rate is the
+ * one it was sized for until more than the expected number of keys are added.
+ */
+public class BloomFilter {
+
+	private final AtomicLongArray bits;
+	private final long numBits;
+	private final int numHashes;
+
+	public BloomFilter(long numBits, int numHashes) {
+		long words = Math.max(1, (numBits + 63) >>> 6);
+		if (words > Integer.MAX_VALUE) {
+			throw new IllegalArgumentException("filter too large: " + numBits + " bits");
+		}
+		this.bits = new AtomicLongArray((int) words);
+		this.numBits = words << 6;
+		this.numHashes = Math.max(1, numHashes);
+	}
+
+	/**
+	 * Sizes the filter with the usual m = -n ln p / (ln 2)^2, k = m/n ln 2.
+	 */
+	public static BloomFilter create(long expectedInsertions, double fpp) {
+		long n = Math.max(1, expectedInsertions);
+		long m = (long) Math.ceil(-n * Math.log(fpp) / (Math.log(2) * Math.log(2)));
+		int k = (int) Math.max(1, Math.round((double) m / n * Math.log(2)));
+		return new BloomFilter(m, k);
+	}
+
+	/** @return the size in bytes a filter created with these arguments would have */
+	public static long sizeInBytes(long expectedInsertions, double fpp) {
+		long n = Math.max(1, expectedInsertions);
+		long m = (long) Math.ceil(-n * Math.log(fpp) / (Math.log(2) * Math.log(2)));
+		return ((m + 63) >>> 6) * 8;
+	}
+
+	public void put(long hash) {
+		long h1 = hash;
+		long h2 = Long.rotateLeft(hash, 32) | 1;
+		for (int i = 1; i <= numHashes; i++) {
+			long bit = index(h1 + i * h2);
+			int word = (int) (bit >>> 6);
+			long mask = 1L << bit;
+			long old;
+			while (((old = bits.get(word)) & mask) == 0) {
+				if (bits.compareAndSet(word, old, old | mask)) {
+					break;
+				}
+			}
+		}
+	}
+
+	/** @return false if the hash was definitely never put */
+	public boolean mightContain(long hash) {
+		long h1 = hash;
+		long h2 = Long.rotateLeft(hash, 32) | 1;
+		for (int i = 1; i <= numHashes; i++) {
+			long bit = index(h1 + i * h2);
+			if ((bits.get((int) (bit >>> 6)) & (1L << bit)) == 0) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	public long sizeInBytes() {
+		return numBits >>> 3;
+	}
+
+	private long index(long combined) {
+		return (combined & Long.MAX_VALUE) % numBits;
+	}
+
+	/**
+	 * 64 bit hash of a sequence of strings, without building a combined key.
+	 */
+	public static long hash(String a, String b, String c) {
+		long h = 0x9E3779B97F4A7C15L;
+		h = hashString(h, a);
+		h = hashString(h, b);
+		h = hashString(h, c);
+		return mix(h);
+	}
+
+	private static long hashString(long h, String s) {
+		if (s == null) {
+			return (h ^ 0xFF) * 0x100000001B3L;
+		}
+		for (int i = 0; i < s.length(); i++) {
+			h = (h ^ s.charAt(i)) * 0x100000001B3L;
+		}
+		// separator, so ("ab","c") and ("a","bc") differ
+		return (h ^ 0x1F) * 0x100000001B3L;
+	}
+
+	private static long mix(long h) {
+		h ^= h >>> 33;
+		h *= 0xFF51AFD7ED558CCDL;
+		h ^= h >>> 33;
+		h *= 0xC4CEB9FE1A85EC53L;
+		h ^= h >>> 33;
+		return h;
+	}
+}
@@ -0,0 +1,124 @@
+package org.dhenry.samples.main;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Bounded, lock-free LIFO stack over a preallocated array. The top index
+ * is the size and only moves by CAS, so the bound holds atomically and push
+ * and pop allocate nothing.
+ *
+ * A push first claims the slots above the top by CAS from null, then moves
+ * the top over them; while it holds a slot no other push can move the top
+ * past it, so if the top isn't where it was the push gives the slots back
+ * and retries. A pop moves the top down first and then takes its slots,
+ * which nothing else touches by then. The one wait is a push onto a slot a
+ * pop has just moved the top below and not emptied yet: a few
+ * instructions, unless the pop's thread is descheduled in between. pushAll
+ * and popAll move several elements in one step.
+ */
+public class BoundedStack<E> {
+
+	private final AtomicReferenceArray<E> slots;
+	private final AtomicInteger top = new AtomicInteger(); // next slot to fill
+
+	public BoundedStack(int capacity) {
+		slots = new AtomicReferenceArray<>(capacity);
+	}
+
+	/**
+	 * @return false if the stack is full
+	 */
+	public boolean push(E e) {
+		while (true) {
+			int t = top.get();
+			if (t == slots.length()) {
+				return false;
+			}
+			if (slots.compareAndSet(t, null, e)) {
+				if (top.compareAndSet(t, t + 1)) {
+					return true;
+				}
+				slots.set(t, null);
+			}
+			Thread.onSpinWait();
+		}
+	}
+
+	/**
+	 * Pushes all the elements or none, in order so the last ends up on top.
+	 *
+	 * @return false if there isn't room for all of them
+	 */
+	public boolean pushAll(List<? extends E> elements) {
+		int n = elements.size();
+		while (true) {
+			int t = top.get();
+			if (t + n > slots.length()) {
+				return false;
+			}
+			int claimed = 0;
+			while (claimed < n && slots.compareAndSet(t + claimed, null, elements.get(claimed))) {
+				claimed++;
+			}
+			if (claimed == n && top.compareAndSet(t, t + n)) {
+				return true;
+			}
+			for (int i = 0; i < claimed; i++) {
+				slots.set(t + i, null);
+			}
+			Thread.onSpinWait();
+		}
+	}
+
+	/**
+	 * @return the top element or null if the stack is empty
+	 */
+	public E pop() {
+		while (true) {
+			int t = top.get();
+			if (t == 0) {
+				return null;
+			}
+			if (top.compareAndSet(t, t - 1)) {
+				return slots.getAndSet(t - 1, null);
+			}
+		}
+	}
+
+	/**
+	 * Pops up to max elements in one step.
+	 *
+	 * @return the elements, top first, or null if the stack is empty
+	 */
+	public List<E> popAll(int max) {
+		while (true) {
+			int t = top.get();
+			if (t == 0) {
+				return null;
+			}
+			int n = Math.min(max, t);
+			if (top.compareAndSet(t, t - n)) {
+				List<E> popped = new ArrayList<>(n);
+				for (int i = t - 1; i >= t - n; i--) {
+					popped.add(slots.getAndSet(i, null));
+				}
+				return popped;
+			}
+		}
+	}
+
+	public int size() {
+		return top.get();
+	}
+
+	public boolean isEmpty() {
+		return top.get() == 0;
+	}
+
+	public int capacity() {
+		return slots.length();
+	}
+}
@@ -0,0 +1,227 @@
+package org.dhenry.samples.main;
+
+import java.time.Instant;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.Queue;
+import java.util.Set;
+import java.util.function.Consumer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.datastax.driver.core.BoundStatement;
+import com.datastax.driver.core.PreparedStatement;
+import com.datastax.driver.core.ResultSet;
+import com.datastax.driver.core.ResultSetFuture;
+import com.datastax.driver.core.Row;
+import com.datastax.driver.core.Session;
+import com.datastax.driver.core.exceptions.DriverException;
+import com.datastax.driver.core.exceptions.InvalidQueryException;
+
+/**
+ * Storage for UniqueEventTracker's bucketed mode: every event is written once
+ * to a single event_log table partitioned by (type, tenant_id, day), instead
+ * of four times into rolling per-period tables. Expiry is by TTL under
+ * TimeWindowCompactionStrategy, so whole SSTables are dropped as they age out
+ * and no tables are ever created or dropped after startup. Period queries
+ * become a time range on occurrence_time over the days it covers.
+ *
+ * Partitions are split into PartitionSharding shards; reads go to the
+ * shards of their actor or values only. An event_log created before the
+ * shard column existed keeps its unsharded partitions. A read queries each
+ * day and shard on its own, a few at a time, rather than one query over
+ * all of them that a single coordinator would have to fan out and gather.
+ */
+public class BucketedEventTable {
+
+	private static final Logger log = Logger.getLogger(BucketedEventTable.class.getName());
+	private static final long SECONDS_PER_DAY = 24 * 60 * 60;
+	private static final int READ_CONCURRENCY = 32; // partition queries in flight per read
+
+	private final CassandraConnection conn;
+	private final int ttlSeconds;
+	private final int fetchSize;
+	private final PartitionSharding sharding;
+	private volatile PreparedStatement insertPs, countPs, selectPs;
+	private volatile boolean sharded = true;
+
+	/**
+	 * @param ttlSeconds how long events are kept, the longest period retention
+	 * @param fetchSize page size for reads
+	 */
+	public BucketedEventTable(CassandraConnection conn, int ttlSeconds, int fetchSize, PartitionSharding sharding) {
+		this.conn = conn;
+		this.ttlSeconds = ttlSeconds;
+		this.fetchSize = fetchSize;
+		this.sharding = sharding;
+	}
+
+	public void createTable() {
+		Session sess = conn.getSession();
+		try {
+			sess.execute("create table if not exists event_log ("
+				+ "    source_api_key text,"
+				+ "    source_remote_ip inet,"
+				+ "    tenant_id text,"
+				+ "    actor_uuid uuid,"
+				+ "    type text,"
+				+ "    properties frozen map,"
+				+ "    dimensions int,"
+				+ "    value text,"
+				+ "    occurrence_time timestamp,"
+				+ "    ingestion_time timestamp,"
+				+ "    bucket int,"
+				+ "    day int,"
+				+ "    shard int,"
+				+ "    primary key((type, tenant_id, day, shard), value, actor_uuid, occurrence_time)"
+				+ ") WITH default_time_to_live = " + ttlSeconds
+				+ "  AND COMPACTION = {'class': 'TimeWindowCompactionStrategy', "
+				+ "                    'compaction_window_unit': 'DAYS',"
+				+ "                    'compaction_window_size': 1};");
+			// an existing table keeps its ttl otherwise
+			sess.execute("alter table event_log with default_time_to_live = " + ttlSeconds);
+		} catch (DriverException ex) {
+			log.log(Level.WARNING, "create event_log", ex);
+		}
+	}
+
+	/**
+	 * Prepares the insert if it isn't already, called before binding and
+	 * reading. Finds out whether the table has the shard column.
+	 */
+	public void prepareInsert(Session sess) {
+		if (insertPs == null) {
+			String columns = "source_api_key, source_remote_ip, tenant_id, actor_uuid ,type, properties, "
+				+ "dimensions, value, occurrence_time, ingestion_time, bucket";
+			try {
+				insertPs = sess.prepare("insert into event_log (" + columns + ", shard, day) values "
+					+ "(?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?)");
+			} catch (InvalidQueryException ex) {
+				log.log(Level.INFO, "event_log is not sharded", ex);
+				sharded = false;
+				insertPs = sess.prepare("insert into event_log (" + columns + ", day) values "
+					+ "(?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?)");
+			}
+		}
+	}
+
+	/**
+	 * @param row the insert values of the per-period tables, bucket and
+	 * shard last
+	 */
+	public BoundStatement bindInsert(Object[] row, Instant occurrenceTime) {
+		int length = sharded ? row.length : row.length - 1;
+		Object[] values = Arrays.copyOf(row, length + 1);
+		values[length] = day(occurrenceTime);
+		return insertPs.bind(values);
+	}
+
+	/** @return the partition the event lands in, for grouping writes */
+	public static String partitionKey(String type, String tenantId, Instant occurrenceTime, int shard) {
+		return type + '\0' + tenantId + '\0' + day(occurrenceTime) + '\0' + shard;
+	}
+
+	/**
+	 * Adds the occurrence times of the records in [from, to) with any of the
+	 * dimension bits to seen.
+	 */
+	public void collectTotalUniques(Session sess, String type, String tenantId, Instant from, Instant to,
+			String actorUuid, int dimensions, String value, Set<Date> seen) {
+		prepareInsert(sess);
+		if (countPs == null) {
+			countPs = sess.prepare("select dimensions, occurrence_time from event_log"
+				+ " where type = ? and tenant_id = ? and day = ?" + (sharded ? " and shard = ?" : "")
+				+ " and value = ? and actor_uuid = ? and occurrence_time >= ? and occurrence_time < ?");
+		}
+		List<BoundStatement> statements = bindPerPartition(countPs, type, tenantId, from, to,
+			sharding.shards(Collections.singletonList(value), actorUuid), value, actorUuid, Date.from(from),
+			Date.from(to));
+		forEachRow(sess, statements, row -> {
+			if ((dimensions & row.getInt("dimensions")) != 0) {
+				seen.add(row.getTimestamp("occurrence_time"));
+			}
+		});
+	}
+
+	/**
+	 * Hands every record in [from, to) for the actor and any of the values to
+	 * the consumer, a page at a time.
+	 */
+	public void forEachUnique(Session sess, String type, String tenantId, Instant from, Instant to,
+			String actorUuid, List<String> values, Consumer<Row> consumer) {
+		prepareInsert(sess);
+		if (selectPs == null) {
+			selectPs = sess.prepare("select source_api_key, source_remote_ip, tenant_id, actor_uuid, type, "
+				+ "properties, dimensions, value, occurrence_time, ingestion_time from event_log"
+				+ " where type = ? and tenant_id = ? and day = ?" + (sharded ? " and shard = ?" : "")
+				+ " and value in ? and actor_uuid = ? and occurrence_time >= ? and occurrence_time < ?");
+		}
+		List<BoundStatement> statements = bindPerPartition(selectPs, type, tenantId, from, to,
+			sharding.shards(values, actorUuid), values, actorUuid, Date.from(from), Date.from(to));
+		forEachRow(sess, statements, consumer);
+	}
+
+	/**
+	 * @param shards left out if the table isn't sharded
+	 * @param rest the values bound after the partition key
+	 * @return a statement for every day in [from, to) and shard
+	 */
+	private List<BoundStatement> bindPerPartition(PreparedStatement ps, String type, String tenantId, Instant from,
+			Instant to, List<Integer> shards, Object... rest) {
+		List<Integer> partitionShards = sharded ? shards : Collections.singletonList(null);
+		List<BoundStatement> statements = new ArrayList<>();
+		for (int day : days(from, to)) {
+			for (Integer shard : partitionShards) {
+				List<Object> values = new ArrayList<>(4 + rest.length);
+				values.add(type);
+				values.add(tenantId);
+				values.add(day);
+				if (shard != null) {
+					values.add(shard);
+				}
+				values.addAll(Arrays.asList(rest));
+				BoundStatement bs = ps.bind(values.toArray());
+				bs.setFetchSize(fetchSize);
+				bs.setIdempotent(true);
+				statements.add(bs);
+			}
+		}
+		return statements;
+	}
+
+	/**
+	 * Runs the statements READ_CONCURRENCY at a time, starting the next as
+	 * each is read, and hands their rows to the consumer in statement order.
+	 */
+	private static void forEachRow(Session sess, List<BoundStatement> statements, Consumer<Row> consumer) {
+		Queue<ResultSetFuture> futures = new ArrayDeque<>();
+		int next = 0;
+		while (next < statements.size() || !futures.isEmpty()) {
+			while (next < statements.size() && futures.size() < READ_CONCURRENCY) {
+				futures.add(sess.executeAsync(statements.get(next++)));
+			}
+			ResultSet rs = futures.poll().getUninterruptibly();
+			for (Row row : rs) {
+				consumer.accept(row);
+			}
+		}
+	}
+
+	private static int day(Instant time) {
+		return (int) Math.floorDiv(time.getEpochSecond(), SECONDS_PER_DAY);
+	}
+
+	private static List<Integer> days(Instant from, Instant to) {
+		int first = day(from);
+		int last = day(to.minusMillis(1));
+		List<Integer> days = new ArrayList<>(last - first + 1);
+		for (int day = first; day <= last; day++) {
+			days.add(day);
+		}
+		return days;
+	}
+}
@@ -1,16 +1,33 @@
 package org.dhenry.samples.main;
 
 
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 import com.datastax.driver.core.Cluster;
 import com.datastax.driver.core.Host;
+import com.datastax.driver.core.HostDistance;
 import com.datastax.driver.core.Metadata;
+import com.datastax.driver.core.PoolingOptions;
+import com.datastax.driver.core.ProtocolOptions;
 import com.datastax.driver.core.ResultSet;
+import com.datastax.driver.core.ResultSetFuture;
 import com.datastax.driver.core.Row;
 import com.datastax.driver.core.Session;
+import com.datastax.driver.core.SocketOptions;
+import com.datastax.driver.core.exceptions.DriverException;
+import com.datastax.driver.core.policies.ConstantSpeculativeExecutionPolicy;
 import com.datastax.driver.core.policies.DCAwareRoundRobinPolicy;
+import com.datastax.driver.core.policies.LatencyAwarePolicy;
+import com.datastax.driver.core.policies.LoadBalancingPolicy;
+import com.datastax.driver.core.policies.NoSpeculativeExecutionPolicy;
+import com.datastax.driver.core.policies.SpeculativeExecutionPolicy;
+import com.datastax.driver.core.policies.TokenAwarePolicy;
 
 /**
  * Class used for connecting to Cassandra database.
@@ -20,26 +37,104 @@ public class CassandraConnection {
    private static final Logger log = Logger.getLogger(CassandraConnection.class.getName());
    private static final int REMOTE_USED_HOSTS = 2;
    
+   // connection settings read by connect, with their defaults
+   private static final String[][] SETTINGS = {
+	   {"coreConnectionsPerHost", "2"},
+	   {"maxConnectionsPerHost", "8"},
+	   {"maxRequestsPerConnection", "1024"},
+	   {"maxQueueSize", "256"},
+	   {"poolTimeoutMillis", "5000"},
+	   {"heartbeatSeconds", "30"},
+	   {"connectTimeoutMillis", "5000"},
+	   {"requestTimeoutMillis", "12000"},
+	   {"compression", "lz4"},
+	   {"warmupRequests", "16"},
+	   {"speculativeDelayMillis", "100"},
+	   {"speculativeExecutions", "1"},
+	   {"tokenAware", "true"},
+	   {"replicaOrdering", "random"},
+	   {"latencyAware", "false"},
+	   {"latencyExclusionThreshold", "2.0"},
+	   {"latencyScaleMillis", "100"},
+	   {"latencyRetryPeriodSeconds", "10"},
+	   {"latencyMinMeasurements", "50"},
+   };
+   
    private Cluster cluster;
    private Session session;
+   private int maxRequestsPerConnection;
    
    /**
-    * Connect to Cassandra Cluster and prefer nodes in local datacenter.
+    * Connect to Cassandra Cluster and prefer nodes in local datacenter,
+    * with the default connection settings.
     *
     * @param localDataCenter Local datacenter name;
     * @param contactPoint 127.0.0.1 or another node IP address.
     */
    public void connect(final String localDataCenter, String contactPoint)
    {
+	   connect(localDataCenter, contactPoint, settings(new Properties()));
+   }
+
+   /**
+    * @return the connection settings found in props, defaults for the rest,
+    * e.g. to save them back with the other settings
+    */
+   public static Properties settings(Properties props) {
+	   Properties settings = new Properties();
+	   for (String[] setting : SETTINGS) {
+		   settings.setProperty(setting[0], props.getProperty(setting[0], setting[1]).trim());
+	   }
+	   return settings;
+   }
+
+   /**
+    * Connect as above, configured by settings (see settings()):
+    * <ul>
+    * <li>connections per local host (core and max), requests per connection,
+    * how many requests may queue for a connection and for how long, and the
+    * heartbeat interval on idle connections
+    * <li>connect and per-request timeouts
+    * <li>protocol compression: none, snappy or lz4, which needs lz4-java on
+    * the classpath and falls back to none without it
+    * <li>speculative execution: if speculativeDelayMillis is above 0 up to
+    * speculativeExecutions more copies of an idempotent request go to other
+    * replicas when the first hasn't answered within that time, so one slow
+    * replica doesn't set the latency
+    * <li>warm-up: warmupRequests small reads before returning, so the pools
+    * are open and the first real requests don't pay for it
+    * <li>load balancing: see loadBalancing()
+    * </ul>
+    */
+   public void connect(final String localDataCenter, String contactPoint, Properties settings)
+   {
+	   maxRequestsPerConnection = intSetting(settings, "maxRequestsPerConnection");
+	   PoolingOptions pooling = new PoolingOptions()
+			   .setConnectionsPerHost(HostDistance.LOCAL, intSetting(settings, "coreConnectionsPerHost"),
+				   Math.max(intSetting(settings, "coreConnectionsPerHost"), intSetting(settings, "maxConnectionsPerHost")))
+			   .setMaxRequestsPerConnection(HostDistance.LOCAL, maxRequestsPerConnection)
+			   .setMaxQueueSize(intSetting(settings, "maxQueueSize"))
+			   .setPoolTimeoutMillis(intSetting(settings, "poolTimeoutMillis"))
+			   .setHeartbeatIntervalSeconds(intSetting(settings, "heartbeatSeconds"));
+	   SocketOptions socket = new SocketOptions()
+			   .setConnectTimeoutMillis(intSetting(settings, "connectTimeoutMillis"))
+			   .setReadTimeoutMillis(intSetting(settings, "requestTimeoutMillis"))
+			   .setTcpNoDelay(true);
+	   SpeculativeExecutionPolicy speculativeExecution = NoSpeculativeExecutionPolicy.INSTANCE;
+	   int speculativeDelayMillis = intSetting(settings, "speculativeDelayMillis");
+	   int speculativeExecutions = intSetting(settings, "speculativeExecutions");
+	   if (speculativeDelayMillis > 0 && speculativeExecutions > 0) {
+		   speculativeExecution = new ConstantSpeculativeExecutionPolicy(speculativeDelayMillis,
+			   speculativeExecutions);
+	   }
 	   this.cluster = Cluster.builder()
 		        .addContactPoint(contactPoint)
-		        .withLoadBalancingPolicy(
-		                DCAwareRoundRobinPolicy.builder()
-		                        .withLocalDc(localDataCenter)
-		                        .withUsedHostsPerRemoteDc(REMOTE_USED_HOSTS)
-		                        .allowRemoteDCsForLocalConsistencyLevel()
-		                        .build()
-		        ).build();
+		        .withLoadBalancingPolicy(loadBalancing(localDataCenter, settings))
+		        .withPoolingOptions(pooling)
+		        .withSocketOptions(socket)
+		        .withCompression(compression(setting(settings, "compression")))
+		        .withSpeculativeExecutionPolicy(speculativeExecution)
+		        .build();
 
       final Metadata metadata = cluster.getMetadata();
       if (log.isLoggable(Level.FINE)) {
@@ -52,7 +147,117 @@ public class CassandraConnection {
 	      }
       }
       session = cluster.connect();
+      warmUp(intSetting(settings, "warmupRequests"));
    }
+
+   /**
+    * Round robin over the local datacenter, with remote hosts as a fallback.
+    * With tokenAware the replicas of a statement's partition come first, so
+    * the coordinator owns the data and a write saves a hop; bound statements
+    * know their partition key, and the tracker's batches only hold rows of
+    * one partition. replicaOrdering random spreads a hot partition over its
+    * replicas, topological keeps to the first. With latencyAware hosts
+    * slower than latencyExclusionThreshold times the fastest are skipped
+    * for latencyRetryPeriodSeconds, once they have latencyMinMeasurements.
+    */
+   private static LoadBalancingPolicy loadBalancing(String localDataCenter, Properties settings) {
+	   LoadBalancingPolicy policy = DCAwareRoundRobinPolicy.builder()
+			   .withLocalDc(localDataCenter)
+			   .withUsedHostsPerRemoteDc(REMOTE_USED_HOSTS)
+			   .allowRemoteDCsForLocalConsistencyLevel()
+			   .build();
+	   if (Boolean.parseBoolean(setting(settings, "latencyAware"))) {
+		   policy = LatencyAwarePolicy.builder(policy)
+				   .withExclusionThreshold(doubleSetting(settings, "latencyExclusionThreshold"))
+				   .withScale(intSetting(settings, "latencyScaleMillis"), TimeUnit.MILLISECONDS)
+				   .withRetryPeriod(intSetting(settings, "latencyRetryPeriodSeconds"), TimeUnit.SECONDS)
+				   .withMininumMeasurements(intSetting(settings, "latencyMinMeasurements"))
+				   .build();
+	   }
+	   if (Boolean.parseBoolean(setting(settings, "tokenAware"))) {
+		   TokenAwarePolicy.ReplicaOrdering ordering;
+		   try {
+			   ordering = TokenAwarePolicy.ReplicaOrdering.valueOf(
+				   setting(settings, "replicaOrdering").toUpperCase(Locale.ROOT));
+		   } catch (IllegalArgumentException ex) {
+			   log.warning("unknown replicaOrdering " + setting(settings, "replicaOrdering") + ", using random");
+			   ordering = TokenAwarePolicy.ReplicaOrdering.RANDOM;
+		   }
+		   policy = new TokenAwarePolicy(policy, ordering);
+	   }
+	   return policy;
+   }
+
+   private static String setting(Properties settings, String name) {
+	   for (String[] setting : SETTINGS) {
+		   if (setting[0].equals(name)) {
+			   return settings.getProperty(name, setting[1]).trim();
+		   }
+	   }
+	   throw new IllegalArgumentException(name);
+   }
+
+   private static int intSetting(Properties settings, String name) {
+	   String value = setting(settings, name);
+	   try {
+		   return Integer.parseInt(value);
+	   } catch (NumberFormatException ex) {
+		   String fallback = settings(new Properties()).getProperty(name);
+		   log.warning("bad " + name + " " + value + ", using " + fallback);
+		   return Integer.parseInt(fallback);
+	   }
+   }
+
+   private static double doubleSetting(Properties settings, String name) {
+	   String value = setting(settings, name);
+	   try {
+		   return Double.parseDouble(value);
+	   } catch (NumberFormatException ex) {
+		   String fallback = settings(new Properties()).getProperty(name);
+		   log.warning("bad " + name + " " + value + ", using " + fallback);
+		   return Double.parseDouble(fallback);
+	   }
+   }
+
+   private static ProtocolOptions.Compression compression(String name) {
+	   ProtocolOptions.Compression compression;
+	   try {
+		   compression = ProtocolOptions.Compression.valueOf(name.trim().toUpperCase(Locale.ROOT));
+	   } catch (IllegalArgumentException ex) {
+		   log.warning("unknown compression " + name + ", using none");
+		   return ProtocolOptions.Compression.NONE;
+	   }
+	   String library = compression == ProtocolOptions.Compression.LZ4 ? "net.jpountz.lz4.LZ4Factory"
+		   : compression == ProtocolOptions.Compression.SNAPPY ? "org.xerial.snappy.Snappy" : null;
+	   if (library != null) {
+		   try {
+			   Class.forName(library);
+		   } catch (ClassNotFoundException ex) {
+			   log.warning(name + " compression needs " + library + " on the classpath, using none");
+			   return ProtocolOptions.Compression.NONE;
+		   }
+	   }
+	   return compression;
+   }
+
+   /**
+    * Sends requests small reads at once and waits for them, spreading them
+    * over the hosts and opening connections beyond the core ones if needed.
+    */
+   private void warmUp(int requests) {
+	   List<ResultSetFuture> futures = new ArrayList<>(requests);
+	   for (int i = 0; i < requests; i++) {
+		   futures.add(session.executeAsync("select release_version from system.local"));
+	   }
+	   for (ResultSetFuture future : futures) {
+		   try {
+			   future.getUninterruptibly();
+		   } catch (DriverException ex) {
+			   log.log(Level.FINE, "warm-up", ex);
+		   }
+	   }
+   }
+
    /**
     * @return My session.
     */
@@ -69,6 +274,68 @@ public class CassandraConnection {
      return releaseVersion;
    }
 
+   /**
+    * Polls until every node reports the same schema version, for use after
+    * DDL so statements against new tables don't reach nodes that lack them.
+    *
+    * @return false if the nodes still disagree after timeoutMillis
+    */
+   public boolean waitForSchemaAgreement(long timeoutMillis) {
+      long deadline = System.currentTimeMillis() + timeoutMillis;
+      while (!cluster.getMetadata().checkSchemaAgreement()) {
+         if (System.currentTimeMillis() >= deadline) {
+            return false;
+         }
+         try {
+            Thread.sleep(200);
+         } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+         }
+      }
+      return true;
+   }
+
+   /** @return hosts the session has a pool for */
+   public int getConnectedHosts() {
+	   return session == null ? 0 : session.getState().getConnectedHosts().size();
+   }
+
+   /** @return open connections over all pools */
+   public int getOpenConnections() {
+	   if (session == null) {
+		   return 0;
+	   }
+	   Session.State state = session.getState();
+	   int open = 0;
+	   for (Host host : state.getConnectedHosts()) {
+		   open += state.getOpenConnections(host);
+	   }
+	   return open;
+   }
+
+   /** @return requests sent and not yet answered, over all pools */
+   public int getInFlightRequests() {
+	   if (session == null) {
+		   return 0;
+	   }
+	   Session.State state = session.getState();
+	   int inFlight = 0;
+	   for (Host host : state.getConnectedHosts()) {
+		   inFlight += state.getInFlightQueries(host);
+	   }
+	   return inFlight;
+   }
+
+   /**
+    * @return in-flight requests as a percentage of what the open connections
+    * can carry; near 100 requests start queuing for a connection
+    */
+   public int getPoolUtilizationPercent() {
+	   long capacity = (long) getOpenConnections() * maxRequestsPerConnection;
+	   return capacity == 0 ? 0 : (int) (getInFlightRequests() * 100L / capacity);
+   }
+
    /** Connection must be closed. */
    public void close() {
 	  try {
@@ -0,0 +1,838 @@
+package org.dhenry.samples.main;
+
+import java.sql.SQLException;
+import java.time.Instant;
+import java.time.ZonedDateTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.SortedSet;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+import java.util.function.ObjIntConsumer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.datastax.driver.core.BatchStatement;
+import com.datastax.driver.core.BoundStatement;
+import com.datastax.driver.core.PreparedStatement;
+import com.datastax.driver.core.ResultSet;
+import com.datastax.driver.core.ResultSetFuture;
+import com.datastax.driver.core.Row;
+import com.datastax.driver.core.Session;
+import com.datastax.driver.core.Statement;
+import com.datastax.driver.core.exceptions.DriverException;
+import com.datastax.driver.core.exceptions.InvalidQueryException;
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.MoreExecutors;
+
+/**
+ * The Cassandra tables behind UniqueEventTracker: one table per period
+ * type and number (event_hour_12 etc.), optionally with a _dims table per
+ * dimension bit, or with bucketed storage the single event_log table.
+ */
+public class CassandraEventStore implements EventStore {
+
+	private static final Logger log = Logger.getLogger(CassandraEventStore.class.getName());
+
+	private final CassandraConnection conn;
+	private final StatementCache statementCache;
+	private final BucketedEventTable bucketedTable;
+	private final PartitionSharding sharding;
+	private final boolean perBitDimensions;
+	private final int partitionBatchRows;
+	private final int maxInFlight;
+	private final int readFetchSize;
+	private final Semaphore inFlight;
+	private final WriteRetryPolicy retryPolicy;
+	// backoff timers and dead-letter replay; sending is async so one thread will do
+	private final ScheduledExecutorService retryScheduler;
+	// writes that ran out of retries, per period type with bucketed last
+	private final List<Queue<PendingWrite>> deadLetters = new ArrayList<>();
+	private final AtomicInteger deadLetterSize = new AtomicInteger();
+	private volatile boolean closed;
+	// write latency per period type, bucketed last; replaced by setMetrics
+	private LatencyHistogram[] insertLatency;
+	private LongAdder insertErrors;
+	private LongAdder readErrors;
+	private LongAdder retries;
+	private LongAdder deadLettered;
+	private LongAdder deadLetterReplays;
+
+	// caching the prepared statements for optimal insert performance, indexed by period type - 1.
+	// The next period's are prepared ahead by preparePeriod so a roll only swaps references.
+	private final AtomicReferenceArray<TableInsert> inserts = new AtomicReferenceArray<>(4);
+	private final AtomicReferenceArray<TableInsert> nextInserts = new AtomicReferenceArray<>(4);
+	private static String templateTableName = "event_P_X";
+	private static final String[] periodNames = {"hour", "day", "week", "month"};
+	private String insertTemplate = "insert into " + templateTableName
+			+ " (source_api_key, source_remote_ip, tenant_id, actor_uuid ,type, properties, "
+			+ "dimensions, value, occurrence_time, ingestion_time, bucket, shard) values "
+			+ "(?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?)";
+	// tables created before partitions were sharded
+	private String unshardedInsertTemplate = "insert into " + templateTableName
+			+ " (source_api_key, source_remote_ip, tenant_id, actor_uuid ,type, properties, "
+			+ "dimensions, value, occurrence_time, ingestion_time, bucket) values "
+			+ "(?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?)";
+	private String dimsInsertTemplate = "insert into " + templateTableName + "_dims"
+			+ " (type, tenant_id, value, actor_uuid, dimension_bit, occurrence_time) values "
+			+ "(?, ?, ?, ?, ?, ?)";
+
+	/** an insert statement together with the table it was prepared for */
+	private static class TableInsert {
+		final int tableNo;
+		final PreparedStatement ps;
+		final PreparedStatement dimsPs; // per-bit rows, null with the bitmask layout
+		final boolean sharded; // false for a table without the shard column
+
+		TableInsert(int tableNo, PreparedStatement ps, PreparedStatement dimsPs, boolean sharded) {
+			this.tableNo = tableNo;
+			this.ps = ps;
+			this.dimsPs = dimsPs;
+			this.sharded = sharded;
+		}
+	}
+
+	/**
+	 * One request of an insert batch: the unlogged batch or single row, the
+	 * table it goes to and how often it has been tried.
+	 */
+	private static class PendingWrite {
+		final Statement stmt;
+		final int period;
+		final int tableNo;
+		final BatchCompletion completion;
+		int attempt = 1;
+
+		PendingWrite(Statement stmt, int period, int tableNo, BatchCompletion completion) {
+			this.stmt = stmt;
+			this.period = period;
+			this.tableNo = tableNo;
+			this.completion = completion;
+		}
+	}
+
+	/**
+	 * @param bucketedTable the single table of bucketed storage, null for a
+	 * table per period
+	 * @param sharding the shard of each row within its partition
+	 * @param perBitDimensions also write a row per dimension bit to _dims tables
+	 * @param partitionBatchRows most rows in one unlogged batch
+	 * @param maxInFlight most write requests outstanding at once
+	 * @param readFetchSize page size for reads
+	 * @param retryPolicy retries and dead-lettering of failed writes
+	 */
+	public CassandraEventStore(CassandraConnection conn, StatementCache statementCache,
+			BucketedEventTable bucketedTable, PartitionSharding sharding, boolean perBitDimensions,
+			int partitionBatchRows, int maxInFlight, int readFetchSize, WriteRetryPolicy retryPolicy) {
+		this.conn = conn;
+		this.statementCache = statementCache;
+		this.bucketedTable = bucketedTable;
+		this.sharding = sharding;
+		this.perBitDimensions = perBitDimensions && bucketedTable == null;
+		this.partitionBatchRows = partitionBatchRows;
+		this.maxInFlight = maxInFlight;
+		this.readFetchSize = readFetchSize;
+		inFlight = new Semaphore(maxInFlight);
+		this.retryPolicy = retryPolicy;
+		for (int i = 0; i <= periodNames.length; i++) {
+			deadLetters.add(new ConcurrentLinkedQueue<>());
+		}
+		setMetrics(new TrackerMetrics());
+		retryScheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+			Thread thread = new Thread(r, "event-store-retry");
+			thread.setDaemon(true);
+			return thread;
+		});
+		int replayMillis = retryPolicy.getDeadLetterReplayMillis();
+		retryScheduler.scheduleWithFixedDelay(this::replayDeadLetters, replayMillis, replayMillis,
+			TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Adds store.insert.hour etc. write latencies, per attempt from send to
+	 * completion, store.insert.errors and store.read.errors counts of the
+	 * driver errors otherwise only logged, and the retry and dead-letter
+	 * counts.
+	 */
+	public void setMetrics(TrackerMetrics metrics) {
+		LatencyHistogram[] latency = new LatencyHistogram[periodNames.length + 1];
+		for (int i = 0; i < periodNames.length; i++) {
+			latency[i] = metrics.histogram("store.insert." + periodNames[i]);
+		}
+		latency[periodNames.length] = metrics.histogram("store.insert.bucketed");
+		insertLatency = latency;
+		insertErrors = metrics.counter("store.insert.errors");
+		readErrors = metrics.counter("store.read.errors");
+		retries = metrics.counter("store.insert.retries");
+		deadLettered = metrics.counter("store.deadLetter.added");
+		deadLetterReplays = metrics.counter("store.deadLetter.replayed");
+		metrics.gauge("store.deadLetter.size", deadLetterSize::get);
+	}
+
+	private String makeTableName(int periodicityType, int bucketNo) {
+		String typeString = "Hour";
+		if (periodicityType == UniqueEventTracker.PERIOD_DAY)
+			typeString = "Day";
+		else if (periodicityType == UniqueEventTracker.PERIOD_WEEK)
+			typeString = "Week";
+		else if (periodicityType == UniqueEventTracker.PERIOD_MONTH)
+			typeString = "Month";
+		return "event_" + typeString + "_" + bucketNo;
+	}
+
+	public void createPeriod(int periodicityType, int bucketNo) {
+
+		if (bucketedTable != null) {
+			return;
+		}
+		String tableName = makeTableName(periodicityType, bucketNo);
+		String createStmt =
+		"create table if not exists " + tableName + " ("
+		+"	    source_api_key text,"
+		+"	    source_remote_ip inet,"
+		+"	    tenant_id text,"
+		+"	    actor_uuid uuid,"
+		+"	    type text,"
+		+"	    properties frozen map,"
+		+"	    dimensions int,"
+		+"	    value text,"
+		+"	    occurrence_time timestamp,"
+		+"		ingestion_time timestamp,"
+		+"      bucket int,"
+		+"      shard int,"
+		+"	    primary key((type, tenant_id, bucket, shard), value, actor_uuid, occurrence_time)"
+		+"	) WITH COMPACTION = {'class': 'TimeWindowCompactionStrategy', "
+		+"	                     'compaction_window_unit': 'DAYS',"
+		+"	                     'compaction_window_size': 1};";
+		try {
+			Session sess = conn.getSession();
+			sess.execute(createStmt);
+			String indexStmt = "create index if not exists " + tableName + "_alt on " + tableName + " ("
+				+ "type, tenant_id, value, actor_uuid);";
+			sess.execute(indexStmt);
+			if (perBitDimensions) {
+				sess.execute("create table if not exists " + tableName + "_dims ("
+					+ "    type text,"
+					+ "    tenant_id text,"
+					+ "    value text,"
+					+ "    actor_uuid uuid,"
+					+ "    dimension_bit int,"
+					+ "    occurrence_time timestamp,"
+					+ "    primary key((type, tenant_id, value, actor_uuid), dimension_bit, occurrence_time)"
+					+ ") WITH COMPACTION = {'class': 'TimeWindowCompactionStrategy', "
+					+ "                     'compaction_window_unit': 'DAYS',"
+					+ "                     'compaction_window_size': 1};");
+			}
+		} catch (DriverException ex) {
+			log.log(Level.WARNING, "create table or index", ex);
+		}
+	}
+
+	public boolean awaitSchema(long timeoutMillis) {
+		return bucketedTable != null || conn.waitForSchemaAgreement(timeoutMillis);
+	}
+
+	public void preparePeriod(int periodType, int tableNo) {
+		try {
+			Session sess = conn.getSession();
+			if (bucketedTable != null) {
+				bucketedTable.prepareInsert(sess);
+			} else {
+				nextInserts.set(periodType - 1, prepareInsert(sess, periodType, tableNo));
+			}
+		} catch (DriverException ex) {
+			log.log(Level.WARNING, "prepare ahead", ex);
+		}
+	}
+
+	public void dropPeriod(int periodicityType, int bucketNo) {
+
+		statementCache.invalidate(periodicityType, bucketNo);
+		// writes still waiting for the table are moot once it's gone
+		Queue<PendingWrite> waiting = deadLetters.get(periodicityType - 1);
+		for (PendingWrite write : waiting) {
+			if (write.tableNo == bucketNo && waiting.remove(write)) {
+				deadLetterSize.decrementAndGet();
+				write.completion.done(true);
+			}
+		}
+		if (bucketedTable != null) {
+			return;
+		}
+		String cql = "drop table if exists " + makeTableName(periodicityType, bucketNo) + ";";
+		Session sess = conn.getSession();
+		try {
+			sess.execute(cql);
+			sess.execute("drop table if exists " + makeTableName(periodicityType, bucketNo) + "_dims;");
+		} catch (DriverException ex) {
+			log.log(Level.WARNING, "drop table", ex);
+		}
+	}
+
+	/**
+	 * Reads the period's table names from the schema, of the session's
+	 * keyspace if it has one.
+	 */
+	public SortedSet<Integer> listPeriods(int periodType) {
+		if (bucketedTable != null) {
+			return null;
+		}
+		Session sess = conn.getSession();
+		String keyspace = sess.getLoggedKeyspace();
+		String prefix = "event_" + periodNames[periodType - 1] + "_";
+		SortedSet<Integer> tableNos = new TreeSet<>();
+		try {
+			ResultSet rs = sess.execute("select keyspace_name, table_name from system_schema.tables");
+			for (Row row : rs) {
+				String table = row.getString("table_name").toLowerCase(Locale.ROOT);
+				if ((keyspace == null || keyspace.equals(row.getString("keyspace_name")))
+						&& table.startsWith(prefix) && !table.endsWith("_dims")) {
+					try {
+						tableNos.add(Integer.parseInt(table.substring(prefix.length())));
+					} catch (NumberFormatException ex) {
+						// not one of ours
+					}
+				}
+			}
+		} catch (DriverException ex) {
+			log.log(Level.WARNING, "list tables", ex);
+			return null;
+		}
+		return tableNos;
+	}
+
+	private TableInsert prepareInsert(Session sess, int periodType, int tableNo) {
+		String tableName = "event_" + periodNames[periodType - 1] + "_" + tableNo;
+		PreparedStatement dimsPs = null;
+		if (perBitDimensions) {
+			dimsPs = sess.prepare(dimsInsertTemplate.replace(templateTableName, tableName));
+		}
+		try {
+			return new TableInsert(tableNo, sess.prepare(insertTemplate.replace(templateTableName, tableName)),
+				dimsPs, true);
+		} catch (InvalidQueryException ex) {
+			// table created before partitions were sharded, no shard column
+			log.log(Level.FINE, tableName + " is not sharded", ex);
+			return new TableInsert(tableNo, sess.prepare(unshardedInsertTemplate.replace(templateTableName, tableName)),
+				dimsPs, false);
+		}
+	}
+
+	/**
+	 * The insert for the table, normally the one prepared ahead by
+	 * preparePeriod; if that fell behind it is prepared here. A writer still
+	 * on the previous table number never moves the current insert back.
+	 */
+	private TableInsert getInsertStatement(Session sess, int periodType, int tableNo) {
+		int i = periodType - 1;
+		TableInsert current = inserts.get(i);
+		if (current != null && current.tableNo == tableNo) {
+			return current;
+		}
+		TableInsert next = nextInserts.get(i);
+		TableInsert insert = next != null && next.tableNo == tableNo ? next : prepareInsert(sess, periodType, tableNo);
+		if (current == null || current.tableNo < tableNo) {
+			inserts.compareAndSet(i, current, insert);
+		}
+		return insert;
+	}
+
+	/**
+	 * Writes a batch of events to all four period tables, and with the
+	 * per-bit layout one row per dimension bit to their _dims tables, or with
+	 * bucketed storage once to the single event table. Rows are grouped by
+	 * partition key into unlogged batches, so each request goes to a single
+	 * replica set, and sent asynchronously with at most maxInFlight requests
+	 * outstanding. Every row has its full primary key, so the requests are
+	 * idempotent and can be retried and speculatively executed.
+	 */
+	public void insert(List<Event> events, List<String> values, int[] tableNos, Consumer<Boolean> done) {
+
+		Session sess = conn.getSession();
+		TableInsert[] insertPs = new TableInsert[bucketedTable != null ? 0 : tableNos.length];
+		try {
+			for (int i = 0; i < insertPs.length; i++) {
+				insertPs[i] = getInsertStatement(sess, i + 1, tableNos[i]);
+			}
+			if (bucketedTable != null) {
+				bucketedTable.prepareInsert(sess);
+			}
+		} catch (DriverException ex) {
+			log.log(Level.WARNING, "at insert prepare", ex);
+			insertErrors.increment();
+			done.accept(false);
+			return;
+		}
+		// main table rows at i, per-bit rows at insertPs.length + i, bucketed rows at 0
+		List<Map<String,List<BoundStatement>>> partitions = new ArrayList<>(Math.max(1, insertPs.length * 2));
+		for (int i = 0; i < Math.max(1, insertPs.length * 2); i++) {
+			partitions.add(new HashMap<>());
+		}
+
+		for (int e = 0; e < events.size(); e++) {
+			Event event = events.get(e);
+			String value = values.get(e);
+			String tenantId = event.getTenantId();
+			String actorUuid = event.getActorUuid();
+			String type = event.getType();
+			int dimensions = event.getDimensions();
+			ZonedDateTime occurrenceTime = event.getOccurrenceTime();
+			int bucket  = occurrenceTime.getHour() * 10 + (occurrenceTime.getMinute() / 10);
+			int shard = sharding.shard(value, actorUuid);
+			// one row of bind values shared by all four period inserts, shard last
+			Object[] row = {event.getSourceApiKey(), event.getSourceRemoteIp().getHostAddress(),
+				tenantId, actorUuid, type, event.getProperties(), dimensions, value, occurrenceTime,
+				event.getIngestionTime(), bucket, shard};
+
+			if (bucketedTable != null) {
+				Instant occurred = occurrenceTime.toInstant();
+				partitions.get(0).computeIfAbsent(BucketedEventTable.partitionKey(type, tenantId, occurred, shard),
+					k -> new ArrayList<>()).add(bucketedTable.bindInsert(row, occurred));
+				continue;
+			}
+			String partitionKey = type + '\0' + tenantId + '\0' + bucket + '\0' + shard;
+			Object[] unshardedRow = null;
+			String dimsKey = type + '\0' + tenantId + '\0' + value + '\0' + actorUuid;
+			for (int i = 0; i < insertPs.length; i++) {
+				BoundStatement bs;
+				if (insertPs[i].sharded) {
+					bs = insertPs[i].ps.bind(row);
+				} else {
+					if (unshardedRow == null) {
+						unshardedRow = Arrays.copyOf(row, row.length - 1);
+					}
+					bs = insertPs[i].ps.bind(unshardedRow);
+				}
+				partitions.get(i).computeIfAbsent(partitionKey, k -> new ArrayList<>()).add(bs);
+				if (insertPs[i].dimsPs != null && dimensions != 0) {
+					List<BoundStatement> dimsRows = partitions.get(insertPs.length + i).computeIfAbsent(
+						dimsKey, k -> new ArrayList<>());
+					int bits = dimensions;
+					while (bits != 0) {
+						dimsRows.add(insertPs[i].dimsPs.bind(type, tenantId, value, actorUuid,
+							Integer.numberOfTrailingZeros(bits), occurrenceTime));
+						bits &= bits - 1;
+					}
+				}
+			}
+		}
+
+		List<Statement> stmts = new ArrayList<>();
+		List<Integer> stmtPeriods = new ArrayList<>();
+		for (int i = 0; i < partitions.size(); i++) {
+			for (List<BoundStatement> rows : partitions.get(i).values()) {
+				for (int from = 0; from < rows.size(); from += partitionBatchRows) {
+					int to = Math.min(rows.size(), from + partitionBatchRows);
+					Statement stmt;
+					if (to - from == 1) {
+						stmt = rows.get(from);
+					} else {
+						BatchStatement batch = new BatchStatement(BatchStatement.Type.UNLOGGED);
+						for (int r = from; r < to; r++) {
+							batch.add(rows.get(r));
+						}
+						stmt = batch;
+					}
+					stmt.setIdempotent(true);
+					stmts.add(stmt);
+					stmtPeriods.add(bucketedTable != null ? periodNames.length : i % insertPs.length);
+				}
+			}
+		}
+
+		if (stmts.isEmpty()) {
+			done.accept(true);
+			return;
+		}
+		BatchCompletion completion = new BatchCompletion(stmts.size(), done);
+		for (int i = 0; i < stmts.size(); i++) {
+			int period = stmtPeriods.get(i);
+			int tableNo = period < tableNos.length ? tableNos[period] : 0;
+			inFlight.acquireUninterruptibly();
+			executeInsert(sess, new PendingWrite(stmts.get(i), period, tableNo, completion));
+		}
+	}
+
+	/**
+	 * Sends a write holding an inFlight permit. The permit is kept through
+	 * retries, so a struggling cluster slows the writers down rather than
+	 * piling up requests, and released once the write succeeds, fails for
+	 * good or is dead-lettered.
+	 */
+	private void executeInsert(Session sess, PendingWrite write) {
+		LatencyHistogram latency = insertLatency[write.period];
+		long start = System.nanoTime();
+		ResultSetFuture future;
+		try {
+			future = sess.executeAsync(write.stmt);
+		} catch (DriverException ex) {
+			insertFailed(sess, write, ex);
+			return;
+		}
+		Futures.addCallback(future, new FutureCallback<ResultSet>() {
+			public void onSuccess(ResultSet rs) {
+				latency.recordNanos(System.nanoTime() - start);
+				inFlight.release();
+				write.completion.done(true);
+			}
+			public void onFailure(Throwable t) {
+				latency.recordNanos(System.nanoTime() - start);
+				insertFailed(sess, write, t);
+			}
+		}, MoreExecutors.directExecutor());
+	}
+
+	/**
+	 * Transient failures are retried after a backoff and then go to the
+	 * period's dead-letter queue, so a node hiccup on one period's table
+	 * holds up neither the writers nor the other periods. The batch only
+	 * completes once the write lands, and its events stay in the write-ahead
+	 * log meanwhile. Anything else, or a full queue, fails the batch.
+	 */
+	private void insertFailed(Session sess, PendingWrite write, Throwable t) {
+		String name = periodName(write.period);
+		if (!closed && retryPolicy.shouldRetry(t, write.attempt)) {
+			log.log(Level.FINE, "retrying " + name + " insert", t);
+			retries.increment();
+			long backoff = retryPolicy.backoffMillis(write.attempt++);
+			try {
+				retryScheduler.schedule(() -> executeInsert(sess, write), backoff, TimeUnit.MILLISECONDS);
+				return;
+			} catch (RejectedExecutionException ex) {
+				// closing
+			}
+		}
+		inFlight.release();
+		if (!closed && retryPolicy.isTransient(t) && offerDeadLetter(write)) {
+			log.log(Level.WARNING, "at " + name + " insert, queued for replay", t);
+			deadLettered.increment();
+			return;
+		}
+		log.log(Level.WARNING, "at " + name + " insert", t);
+		insertErrors.increment();
+		write.completion.done(false);
+	}
+
+	private boolean offerDeadLetter(PendingWrite write) {
+		if (deadLetterSize.incrementAndGet() > retryPolicy.getDeadLetterCapacity()) {
+			deadLetterSize.decrementAndGet();
+			return false;
+		}
+		write.attempt = 1;
+		deadLetters.get(write.period).add(write);
+		return true;
+	}
+
+	/**
+	 * Resends dead-lettered writes, oldest first, with the usual retries. Only
+	 * as many as there are free inFlight permits, so a replay never crowds
+	 * out new inserts.
+	 */
+	private void replayDeadLetters() {
+		if (deadLetterSize.get() == 0) {
+			return;
+		}
+		Session sess = conn.getSession();
+		for (Queue<PendingWrite> waiting : deadLetters) {
+			while (!waiting.isEmpty() && !closed && inFlight.tryAcquire()) {
+				PendingWrite write = waiting.poll();
+				if (write == null) {
+					inFlight.release();
+					break;
+				}
+				deadLetterSize.decrementAndGet();
+				deadLetterReplays.increment();
+				executeInsert(sess, write);
+			}
+		}
+	}
+
+	private static String periodName(int period) {
+		return period < periodNames.length ? periodNames[period] : "bucketed";
+	}
+
+	/**
+	 * Counts down the requests of one batch and reports once all of them
+	 * completed.
+	 */
+	private static class BatchCompletion {
+
+		private final Consumer<Boolean> done;
+		private final AtomicInteger remaining;
+		private volatile boolean failed;
+
+		BatchCompletion(int requests, Consumer<Boolean> done) {
+			this.done = done;
+			remaining = new AtomicInteger(requests);
+		}
+
+		void done(boolean success) {
+			if (!success) {
+				failed = true;
+			}
+			if (remaining.decrementAndGet() == 0) {
+				done.accept(!failed);
+			}
+		}
+	}
+
+	/**
+	 * The tables are queried concurrently, so this takes about as long as
+	 * the slowest one. With the per-bit layout Cassandra does the dimension
+	 * match, otherwise only the dimensions column is fetched and matched here.
+	 */
+	public void collectTotalUniques(int periodicityType, int[] tables, Instant from, Instant to, String type,
+			String tenantId, String actorUuid, int dimensions, String value, Set<Date> seen) throws SQLException {
+		try {
+			Session sess = conn.getSession();
+			if (bucketedTable != null) {
+				bucketedTable.collectTotalUniques(sess, type, tenantId, from, to, actorUuid, dimensions, value, seen);
+				return;
+			}
+			List<ResultSetFuture> futures = new ArrayList<>(tables.length);
+			boolean[] perBit = new boolean[tables.length];
+			for (int i = 0; i < tables.length; i++) {
+				BoundStatement bs;
+				perBit[i] = perBitDimensions;
+				try {
+					bs = totalUniquesStatement(sess, perBit[i], type, tenantId, periodicityType, tables[i],
+						actorUuid, dimensions, value);
+				} catch (InvalidQueryException ex) {
+					if (!perBit[i]) {
+						throw ex;
+					}
+					// table created before the per-bit layout was turned on, its _dims can't be prepared
+					log.log(Level.FINE, "no per-bit table, scanning", ex);
+					perBit[i] = false;
+					bs = totalUniquesStatement(sess, false, type, tenantId, periodicityType, tables[i],
+						actorUuid, dimensions, value);
+				}
+				futures.add(sess.executeAsync(bs));
+			}
+			// records are identified by occurrence time, type, tenant, value and actor being fixed
+			for (int i = 0; i < tables.length; i++) {
+				collectTotalUniques(sess, futures.get(i), perBit[i], type, tenantId, periodicityType, tables[i],
+					actorUuid, dimensions, value, seen);
+			}
+		} catch (DriverException ex) {
+			log.log(Level.WARNING, "", ex);
+			readErrors.increment();
+			throw new SQLException(ex.getMessage());
+		}
+	}
+
+	/**
+	 * With the per-bit layout each event has one row per dimension bit, so
+	 * Cassandra does the filtering and only matching rows come back.
+	 * Otherwise only the dimensions column is fetched and matched here.
+	 */
+	private BoundStatement totalUniquesStatement(Session sess, boolean perBit, String type, String tenantId,
+			int periodicityType, int tableNo, String actorUuid, int dimensions, String value) {
+		BoundStatement bs;
+		if (perBit) {
+			String cql = "select occurrence_time from " + makeTableName(periodicityType, tableNo) + "_dims"
+				+ " where type = ? and tenant_id = ? and value = ? and actor_uuid = ? and dimension_bit in ?";
+			PreparedStatement ps = statementCache.get(sess, "totalUniquesPerBit", periodicityType, tableNo, cql);
+			bs = ps.bind(type, tenantId, value, actorUuid, dimensionBits(dimensions));
+		} else {
+			String cql = "select dimensions, occurrence_time from " + makeTableName(periodicityType, tableNo)
+				+ " where type = ? and tenant_id = ? and value = ? and actor_uuid = ?";
+			PreparedStatement ps = statementCache.get(sess, "totalUniques", periodicityType, tableNo, cql);
+			bs = ps.bind(type, tenantId, value, actorUuid);
+		}
+		bs.setFetchSize(readFetchSize);
+		bs.setIdempotent(true);
+		return bs;
+	}
+
+	/**
+	 * Adds the occurrence times of the matching records to seen. An event
+	 * matching several bits comes back once per bit with the per-bit layout,
+	 * the set takes care of that too.
+	 */
+	private void collectTotalUniques(Session sess, ResultSetFuture future, boolean perBit, String type,
+			String tenantId, int periodicityType, int tableNo, String actorUuid, int dimensions, String value,
+			Set<Date> seen) {
+		ResultSet rs;
+		try {
+			rs = future.getUninterruptibly();
+		} catch (InvalidQueryException ex) {
+			if (!perBit) {
+				throw ex;
+			}
+			// table created before the per-bit layout was turned on
+			log.log(Level.FINE, "no per-bit table, scanning", ex);
+			perBit = false;
+			rs = sess.execute(totalUniquesStatement(sess, false, type, tenantId, periodicityType, tableNo,
+				actorUuid, dimensions, value));
+		}
+		Row row = null;
+		while ((row = nextRow(rs)) != null) {
+			// cassandra only has >, >=, =, <, <= (indexable) operators
+			if (perBit || (dimensions & row.getInt("dimensions")) != 0) {
+				seen.add(row.getTimestamp("occurrence_time"));
+			}
+		}
+	}
+
+	private static List<Integer> dimensionBits(int dimensions) {
+		List<Integer> bits = new ArrayList<>(Integer.bitCount(dimensions));
+		while (dimensions != 0) {
+			bits.add(Integer.numberOfTrailingZeros(dimensions));
+			dimensions &= dimensions - 1;
+		}
+		return bits;
+	}
+
+	/**
+	 * Rows are paged in readFetchSize at a time; the next page is requested
+	 * in the background when half of the current one has been consumed.
+	 */
+	private Row nextRow(ResultSet rs) {
+		if (rs.getAvailableWithoutFetching() == readFetchSize / 2 && !rs.isFullyFetched()) {
+			rs.fetchMoreResults();
+		}
+		return rs.one();
+	}
+
+	/**
+	 * The tables are queried concurrently and rows streamed to the consumer
+	 * a page at a time. With bucketed storage each day and shard is queried
+	 * on its own, concurrently too, and records come back in day order.
+	 */
+	public void forEachUnique(int periodicityType, int[] tables, List<List<String>> values, Instant from,
+			Instant to, String type, String tenantId, String actorUuid, Consumer<Event> consumer)
+			throws SQLException {
+		try {
+			Session sess = conn.getSession();
+			if (bucketedTable != null) {
+				Set<String> union = new LinkedHashSet<>();
+				for (List<String> tableValues : values) {
+					union.addAll(tableValues);
+				}
+				bucketedTable.forEachUnique(sess, type, tenantId, from, to, actorUuid, new ArrayList<>(union),
+					row -> consumer.accept(toEvent(row)));
+				return;
+			}
+			List<ResultSetFuture> futures = new ArrayList<>(tables.length);
+			for (int i = 0; i < tables.length; i++) {
+				futures.add(sess.executeAsync(checkUniquesStatement(sess, type, tenantId, periodicityType,
+					tables[i], actorUuid, values.get(i))));
+			}
+			Set<String> seen = tables.length > 1 ? new HashSet<>() : null;
+			for (ResultSetFuture future : futures) {
+				ResultSet rs = future.getUninterruptibly();
+				Row row = null;
+				while ((row = nextRow(rs)) != null) {
+					if (seen == null || seen.add(row.getString("value") + '\0' + row.getString("occurrence_time"))) {
+						consumer.accept(toEvent(row));
+					}
+				}
+			}
+		} catch (DriverException ex) {
+			log.log(Level.WARNING, "", ex);
+			readErrors.increment();
+			throw new SQLException(ex.getMessage());
+		}
+	}
+
+	/**
+	 * The tables are queried concurrently, like forEachUnique, but each
+	 * record is handed over with its table. Bucketed storage has no tables
+	 * to tell apart, so each range gets a read of its own.
+	 */
+	public void forEachUniqueByTable(int periodicityType, int[] tables, List<List<String>> values, Instant[] from,
+			Instant[] to, String type, String tenantId, String actorUuid, ObjIntConsumer<Event> consumer)
+			throws SQLException {
+		if (bucketedTable != null) {
+			EventStore.super.forEachUniqueByTable(periodicityType, tables, values, from, to, type, tenantId,
+				actorUuid, consumer);
+			return;
+		}
+		try {
+			Session sess = conn.getSession();
+			List<ResultSetFuture> futures = new ArrayList<>(tables.length);
+			for (int i = 0; i < tables.length; i++) {
+				futures.add(sess.executeAsync(checkUniquesStatement(sess, type, tenantId, periodicityType,
+					tables[i], actorUuid, values.get(i))));
+			}
+			for (int i = 0; i < tables.length; i++) {
+				ResultSet rs = futures.get(i).getUninterruptibly();
+				Row row = null;
+				while ((row = nextRow(rs)) != null) {
+					consumer.accept(toEvent(row), i);
+				}
+			}
+		} catch (DriverException ex) {
+			log.log(Level.WARNING, "", ex);
+			readErrors.increment();
+			throw new SQLException(ex.getMessage());
+		}
+	}
+
+	private BoundStatement checkUniquesStatement(Session sess, String type, String tenantId,
+			int periodicityType, int tableNo, String actorUuid, List<String> values) {
+		String cql = "select source_api_key, source_remote_ip, tenant_id, actor_uuid, type, "
+			+ "properties, dimensions, value, occurrence_time, ingestion_time "
+			+ "from " + makeTableName(periodicityType, tableNo)
+			+ " where type = ? and tenant_id = ? and actor_uuid = ? and value in ?";
+		PreparedStatement ps = statementCache.get(sess, "checkUniques", periodicityType, tableNo, cql);
+		BoundStatement bs = ps.bind(type, tenantId, actorUuid, values);
+		bs.setFetchSize(readFetchSize);
+		bs.setIdempotent(true);
+		return bs;
+	}
+
+	private static Event toEvent(Row row) {
+		return new Event(row.getString("source_api_key"),
+			row.getString("source_remote_ip"),
+			row.getString("tenant_id"),
+			row.getString("actor_uuid"),
+			row.getString("type"),
+			row.getString("properties"),
+			row.getString("occurrence_time"),
+			row.getString("ingestion_time"),
+			row.getInt("dimensions"));
+	}
+
+	/**
+	 * Waits up to 30 seconds for the outstanding async writes, retries
+	 * included. Writes still dead-lettered fail their batches, their events
+	 * are replayed from the write-ahead log on the next start. The
+	 * connection belongs to the caller and stays open.
+	 */
+	public void close() {
+		closed = true;
+		for (Queue<PendingWrite> waiting : deadLetters) {
+			PendingWrite write;
+			while ((write = waiting.poll()) != null) {
+				deadLetterSize.decrementAndGet();
+				write.completion.done(false);
+			}
+		}
+		try {
+			inFlight.tryAcquire(maxInFlight, 30, TimeUnit.SECONDS);
+		} catch (InterruptedException e) {
+		}
+		retryScheduler.shutdownNow();
+	}
+}
@@ -0,0 +1,970 @@
+package org.dhenry.samples.main;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UncheckedIOException;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.sql.SQLException;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Queue;
+import java.util.Set;
+import java.util.SortedSet;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Consumer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A single-node EventStore kept in local files, for running the tracker
+ * without a cluster and for local benchmarks. Each period table is a
+ * directory of immutable sorted segment files plus an in-memory memtable.
+ * Inserts only go into the memtable, a hash put; a flusher thread sorts the
+ * memtables, writes them out as new segments every flushMillis, syncs them and only then
+ * reports the inserts done, so the tracker's write-ahead log keeps events
+ * until they are on disk. Segments are memory-mapped and binary searched.
+ * Once a table has more than MAX_SEGMENTS the newest ones of similar size
+ * are merged into one, so reads and mappings stay bounded while each record
+ * is only rewritten a few times. Dropping a period deletes its directory.
+ *
+ * Records are keyed by type, tenant, value, actor and occurrence time, the
+ * primary key of the Cassandra tables, so writing an event twice (after a
+ * replay) leaves one record.
+ */
+public class EmbeddedEventStore implements EventStore {
+
+	private static final Logger log = Logger.getLogger(EmbeddedEventStore.class.getName());
+	private static final int MAGIC = 0x45565331; // EVS1
+	private static final int MAX_SEGMENTS = 8;
+	private static final String[] periodNames = {"hour", "day", "week", "month"};
+
+	private final File dir;
+	private final long flushMillis;
+	private final Map<Long,PeriodTable> tables = new ConcurrentHashMap<>();
+	// one key per period dropped since startup, so late inserts don't bring them back
+	private final Set<Long> droppedTables = ConcurrentHashMap.newKeySet();
+	// inserts hold the read lock, the flusher takes the write lock only to swap memtables
+	private final ReentrantReadWriteLock flushLock = new ReentrantReadWriteLock();
+	private volatile Queue<Consumer<Boolean>> pendingDone = new ConcurrentLinkedQueue<>();
+	private final Thread flusher;
+	private volatile LatencyHistogram flushLatency = new LatencyHistogram();
+	private volatile LongAdder flushErrors = new LongAdder();
+	private volatile boolean closed;
+
+	private static class PeriodTable {
+		final File dir;
+		volatile Memtable memtable = new Memtable();
+		volatile Memtable flushing; // being written out, still readable
+		final List<Segment> segments = new CopyOnWriteArrayList<>();
+		int nextSegment;
+		volatile boolean dropped;
+
+		PeriodTable(File dir) {
+			this.dir = dir;
+		}
+	}
+
+	/**
+	 * Records not yet in a segment, by key prefix and then occurrence time.
+	 * Lookups are always for a whole prefix, so only the flush needs them
+	 * sorted.
+	 */
+	private static class Memtable {
+		final ConcurrentHashMap<String,Rows> rows = new ConcurrentHashMap<>();
+
+		void put(String prefix, long time, byte[] record) {
+			Rows prefixRows = rows.get(prefix);
+			if (prefixRows == null) {
+				prefixRows = rows.computeIfAbsent(prefix, k -> new Rows());
+			}
+			prefixRows.put(time, record);
+		}
+
+		void putAll(Memtable other) {
+			for (Map.Entry<String,Rows> entry : other.rows.entrySet()) {
+				Rows prefixRows = entry.getValue();
+				synchronized (prefixRows) {
+					for (int i = 0; i < prefixRows.size; i++) {
+						put(entry.getKey(), prefixRows.times[i], prefixRows.records[i]);
+					}
+				}
+			}
+		}
+
+		boolean isEmpty() {
+			return rows.isEmpty();
+		}
+	}
+
+	/** the records of one prefix, usually just one */
+	private static class Rows {
+		long[] times = new long[1];
+		byte[][] records = new byte[1][];
+		int size;
+
+		synchronized void put(long time, byte[] record) {
+			for (int i = 0; i < size; i++) {
+				if (times[i] == time) {
+					records[i] = record;
+					return;
+				}
+			}
+			if (size == times.length) {
+				times = Arrays.copyOf(times, size * 2);
+				records = Arrays.copyOf(records, size * 2);
+			}
+			times[size] = time;
+			records[size++] = record;
+		}
+
+		synchronized void visit(String prefix, RecordVisitor visitor) {
+			for (int i = 0; i < size; i++) {
+				visitor.visit(prefix + timeKey(times[i]), records[i]);
+			}
+		}
+
+		/** @return the indexes of the records in time order */
+		synchronized int[] sorted() {
+			int[] order = new int[size];
+			for (int i = 1; i < size; i++) {
+				int j = i;
+				for (; j > 0 && times[order[j - 1]] > times[i]; j--) {
+					order[j] = order[j - 1];
+				}
+				order[j] = i;
+			}
+			return order;
+		}
+	}
+
+	/**
+	 * A memory-mapped file of [prefix hash][prefix length][prefix][occurrence
+	 * time][value length][value] records ordered by prefix hash, prefix and
+	 * time, followed by the record offsets, the record count and where the
+	 * offsets start. Lookups are for a whole prefix, so hash order serves as
+	 * well as key order and is much cheaper to sort and search.
+	 */
+	private static class Segment {
+		final File file;
+		final MappedByteBuffer buffer;
+		final int count;
+		final int offsetsStart;
+		// readers using the mapping, -1 once unmapped
+		final AtomicInteger refs = new AtomicInteger();
+		volatile boolean retired;
+
+		Segment(File file) throws IOException {
+			this.file = file;
+			try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+				buffer = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length());
+			}
+			if (buffer.getInt(0) != MAGIC) {
+				throw new IOException("not a segment: " + file);
+			}
+			count = buffer.getInt(buffer.capacity() - 12);
+			offsetsStart = (int) buffer.getLong(buffer.capacity() - 8);
+		}
+
+		/** @return false if it was already unmapped */
+		boolean acquire() {
+			while (true) {
+				int r = refs.get();
+				if (r < 0) {
+					return false;
+				}
+				if (refs.compareAndSet(r, r + 1)) {
+					return true;
+				}
+			}
+		}
+
+		void release() {
+			if (refs.decrementAndGet() == 0 && retired) {
+				unmap();
+			}
+		}
+
+		/** no longer in its table, unmapped as soon as no reader holds it */
+		void retire() {
+			retired = true;
+			if (refs.get() == 0) {
+				unmap();
+			}
+		}
+
+		private void unmap() {
+			if (refs.compareAndSet(0, -1)) {
+				EmbeddedEventStore.unmap(buffer);
+			}
+		}
+
+		private int offset(int index) {
+			return buffer.getInt(offsetsStart + index * 4);
+		}
+
+		long hashAt(int index) {
+			return buffer.getLong(offset(index));
+		}
+
+		boolean prefixEquals(int index, byte[] prefix) {
+			int offset = offset(index) + 8;
+			if (buffer.getInt(offset) != prefix.length) {
+				return false;
+			}
+			for (int i = 0; i < prefix.length; i++) {
+				if (buffer.get(offset + 4 + i) != prefix[i]) {
+					return false;
+				}
+			}
+			return true;
+		}
+
+		String prefixAt(int index) {
+			int offset = offset(index) + 8;
+			byte[] prefix = new byte[buffer.getInt(offset)];
+			ByteBuffer view = buffer.duplicate();
+			view.position(offset + 4);
+			view.get(prefix);
+			return new String(prefix, StandardCharsets.UTF_8);
+		}
+
+		long timeAt(int index) {
+			int offset = offset(index) + 8;
+			return buffer.getLong(offset + 4 + buffer.getInt(offset));
+		}
+
+		byte[] valueAt(int index) {
+			int offset = offset(index) + 8;
+			offset += 4 + buffer.getInt(offset) + 8;
+			byte[] value = new byte[buffer.getInt(offset)];
+			ByteBuffer view = buffer.duplicate();
+			view.position(offset + 4);
+			view.get(value);
+			return value;
+		}
+
+		/** @return the index of the first record with a hash not less than hash */
+		int lowerBound(long hash) {
+			int low = 0;
+			int high = count;
+			while (low < high) {
+				int mid = (low + high) >>> 1;
+				if (hashAt(mid) < hash) {
+					low = mid + 1;
+				} else {
+					high = mid;
+				}
+			}
+			return low;
+		}
+	}
+
+	/**
+	 * Opens the tables already in dir and starts the flusher.
+	 *
+	 * @param flushMillis how often memtables are written out
+	 */
+	public EmbeddedEventStore(String dir, int flushMillis) {
+		this.dir = new File(dir);
+		this.flushMillis = flushMillis;
+		this.dir.mkdirs();
+		File[] tableDirs = this.dir.listFiles(File::isDirectory);
+		if (tableDirs != null) {
+			for (File tableDir : tableDirs) {
+				openTable(tableDir);
+			}
+		}
+		flusher = new Thread(this::runFlusher, "event-store-flusher");
+		flusher.setDaemon(true);
+		flusher.start();
+	}
+
+	/**
+	 * Adds the store.flush latency of flushes that wrote anything,
+	 * store.flush.errors and a store.segments gauge.
+	 */
+	public void setMetrics(TrackerMetrics metrics) {
+		flushLatency = metrics.histogram("store.flush");
+		flushErrors = metrics.counter("store.flush.errors");
+		metrics.gauge("store.segments", () -> {
+			long segments = 0;
+			for (PeriodTable table : tables.values()) {
+				segments += table.segments.size();
+			}
+			return segments;
+		});
+	}
+
+	private void openTable(File tableDir) {
+		String[] parts = tableDir.getName().split("-");
+		int periodType = parts.length == 2 ? Arrays.asList(periodNames).indexOf(parts[0]) + 1 : 0;
+		if (periodType == 0) {
+			return;
+		}
+		PeriodTable table = new PeriodTable(tableDir);
+		File[] files = tableDir.listFiles((d, name) -> name.endsWith(".seg"));
+		if (files != null) {
+			Arrays.sort(files);
+			for (File file : files) {
+				try {
+					table.segments.add(new Segment(file));
+					table.nextSegment = Integer.parseInt(file.getName().substring(8, 18)) + 1;
+				} catch (IOException | RuntimeException ex) {
+					log.log(Level.WARNING, "skipping segment " + file, ex);
+				}
+			}
+		}
+		tables.put(key(periodType, Integer.parseInt(parts[1])), table);
+	}
+
+	/** @return null if the period was dropped, writes for it are too late */
+	private PeriodTable tableForInsert(int periodType, int tableNo) {
+		long key = key(periodType, tableNo);
+		PeriodTable table = tables.get(key);
+		return table != null || droppedTables.contains(key) ? table : table(periodType, tableNo);
+	}
+
+	private PeriodTable table(int periodType, int tableNo) {
+		return tables.computeIfAbsent(key(periodType, tableNo), k -> {
+			File tableDir = new File(dir, periodNames[periodType - 1] + "-" + tableNo);
+			tableDir.mkdirs();
+			return new PeriodTable(tableDir);
+		});
+	}
+
+	public void createPeriod(int periodType, int tableNo) {
+		droppedTables.remove(key(periodType, tableNo));
+		table(periodType, tableNo);
+	}
+
+	public boolean awaitSchema(long timeoutMillis) {
+		return true;
+	}
+
+	public void preparePeriod(int periodType, int tableNo) {
+	}
+
+	public void dropPeriod(int periodType, int tableNo) {
+		PeriodTable table;
+		// inserts hold the read lock, so none can recreate the table in between
+		flushLock.writeLock().lock();
+		try {
+			droppedTables.add(key(periodType, tableNo));
+			table = tables.remove(key(periodType, tableNo));
+		} finally {
+			flushLock.writeLock().unlock();
+		}
+		if (table == null) {
+			return;
+		}
+		table.dropped = true;
+		// readers still holding a mapped segment keep it until they let go
+		for (Segment segment : table.segments) {
+			segment.retire();
+		}
+		File[] files = table.dir.listFiles();
+		if (files != null) {
+			for (File file : files) {
+				file.delete();
+			}
+		}
+		table.dir.delete();
+	}
+
+	public SortedSet<Integer> listPeriods(int periodType) {
+		SortedSet<Integer> tableNos = new TreeSet<>();
+		for (long key : tables.keySet()) {
+			if ((int) (key >>> 32) == periodType) {
+				tableNos.add((int) key);
+			}
+		}
+		return tableNos;
+	}
+
+	/**
+	 * Each event is encoded once and the same bytes go into the memtable of
+	 * every period table.
+	 */
+	public void insert(List<Event> events, List<String> values, int[] tableNos, Consumer<Boolean> done) {
+		String[] prefixes = new String[events.size()];
+		long[] times = new long[events.size()];
+		byte[][] records = new byte[events.size()][];
+		try {
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream(512);
+			DataOutputStream out = new DataOutputStream(bytes);
+			for (int i = 0; i < prefixes.length; i++) {
+				Event event = events.get(i);
+				prefixes[i] = prefix(event.getType(), event.getTenantId(), values.get(i), event.getActorUuid());
+				times[i] = event.getOccurrenceTime().toInstant().toEpochMilli();
+				bytes.reset();
+				out.writeInt(event.getDimensions());
+				EventCodec.write(event, out);
+				records[i] = bytes.toByteArray();
+			}
+		} catch (IOException ex) {
+			log.log(Level.WARNING, "encode", ex);
+			done.accept(false);
+			return;
+		}
+		flushLock.readLock().lock();
+		try {
+			for (int p = 0; p < tableNos.length; p++) {
+				PeriodTable table = tableForInsert(p + 1, tableNos[p]);
+				if (table == null) {
+					continue;
+				}
+				Memtable memtable = table.memtable;
+				for (int i = 0; i < prefixes.length; i++) {
+					memtable.put(prefixes[i], times[i], records[i]);
+				}
+			}
+			pendingDone.add(done);
+		} finally {
+			flushLock.readLock().unlock();
+		}
+	}
+
+	private void runFlusher() {
+		while (!closed) {
+			// not interrupted, that would close the channel of a segment being mapped
+			LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(flushMillis));
+			flush();
+			compact();
+		}
+	}
+
+	/**
+	 * Writes every memtable out as a new segment and tells the inserts that
+	 * went into them. If a write fails the records go back into the memtable
+	 * and the inserts are told they failed, so their events stay in the log.
+	 */
+	private synchronized void flush() {
+		long start = System.nanoTime();
+		List<PeriodTable> flushed = new ArrayList<>();
+		Queue<Consumer<Boolean>> done;
+		flushLock.writeLock().lock();
+		try {
+			for (PeriodTable table : tables.values()) {
+				if (!table.memtable.isEmpty()) {
+					// readers look at memtable, then flushing, then segments
+					table.flushing = table.memtable;
+					table.memtable = new Memtable();
+					flushed.add(table);
+				}
+			}
+			done = pendingDone;
+			pendingDone = new ConcurrentLinkedQueue<>();
+		} finally {
+			flushLock.writeLock().unlock();
+		}
+		boolean success = true;
+		for (PeriodTable table : flushed) {
+			try {
+				table.segments.add(writeSegment(table, table.flushing));
+			} catch (IOException ex) {
+				log.log(Level.WARNING, "flush " + table.dir, ex);
+				table.memtable.putAll(table.flushing);
+				flushErrors.increment();
+				success = false;
+			}
+			table.flushing = null;
+		}
+		if (!flushed.isEmpty()) {
+			flushLatency.recordNanos(System.nanoTime() - start);
+		}
+		for (Consumer<Boolean> callback : done) {
+			callback.accept(success);
+		}
+	}
+
+	private static class FlushEntry {
+		final long hash;
+		final String prefix;
+		final Rows rows;
+
+		FlushEntry(String prefix, Rows rows) {
+			this.hash = hash(prefix);
+			this.prefix = prefix;
+			this.rows = rows;
+		}
+	}
+
+	private Segment writeSegment(PeriodTable table, Memtable memtable) throws IOException {
+		List<FlushEntry> entries = new ArrayList<>(memtable.rows.size());
+		for (Map.Entry<String,Rows> entry : memtable.rows.entrySet()) {
+			entries.add(new FlushEntry(entry.getKey(), entry.getValue()));
+		}
+		entries.sort((a, b) -> a.hash != b.hash ? Long.compare(a.hash, b.hash) : a.prefix.compareTo(b.prefix));
+		try (SegmentFile out = new SegmentFile(table)) {
+			for (FlushEntry entry : entries) {
+				byte[] prefix = entry.prefix.getBytes(StandardCharsets.UTF_8);
+				Rows rows = entry.rows;
+				for (int i : rows.sorted()) {
+					out.add(entry.hash, prefix, rows.times[i], rows.records[i]);
+				}
+			}
+			return out.finish();
+		}
+	}
+
+	/**
+	 * A new segment being written: records go in in order, finish syncs the
+	 * file and renames it into place, closing without finishing drops it.
+	 */
+	private static class SegmentFile implements AutoCloseable {
+		final File tmp;
+		final File file;
+		final FileOutputStream fout;
+		final SegmentWriter out;
+		int[] offsets = new int[16];
+		int count;
+		boolean finished;
+
+		SegmentFile(PeriodTable table) throws IOException {
+			String name = String.format("segment-%010d", table.nextSegment++);
+			tmp = new File(table.dir, name + ".tmp");
+			file = new File(table.dir, name + ".seg");
+			fout = new FileOutputStream(tmp);
+			out = new SegmentWriter(fout.getChannel());
+			out.putInt(MAGIC);
+		}
+
+		void add(long hash, byte[] prefix, long time, byte[] value) throws IOException {
+			if (count == offsets.length) {
+				offsets = Arrays.copyOf(offsets, count * 2);
+			}
+			offsets[count++] = out.offset();
+			out.ensure(8 + 4 + prefix.length + 8 + 4 + value.length);
+			out.buffer.putLong(hash).putInt(prefix.length).put(prefix).putLong(time).putInt(value.length).put(value);
+		}
+
+		Segment finish() throws IOException {
+			int offsetsStart = out.offset();
+			for (int i = 0; i < count; i++) {
+				out.putInt(offsets[i]);
+			}
+			out.putInt(count);
+			out.ensure(8);
+			out.buffer.putLong(offsetsStart);
+			out.flush();
+			fout.getFD().sync();
+			fout.close();
+			if (!tmp.renameTo(file)) {
+				throw new IOException("rename " + tmp);
+			}
+			finished = true;
+			return new Segment(file);
+		}
+
+		public void close() throws IOException {
+			if (!finished) {
+				fout.close();
+				tmp.delete();
+			}
+		}
+	}
+
+	/**
+	 * Merges the newest segments of every table over MAX_SEGMENTS. Run by the
+	 * flusher between flushes. A failed merge leaves the segments as they
+	 * were.
+	 */
+	private synchronized void compact() {
+		for (PeriodTable table : tables.values()) {
+			if (table.segments.size() > MAX_SEGMENTS) {
+				try {
+					merge(table);
+				} catch (IOException | RuntimeException ex) {
+					log.log(Level.WARNING, "merge " + table.dir, ex);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Merges the newest segments of similar size, at least two: going back
+	 * from the newest, a segment joins while it is no bigger than twice those
+	 * already taken. A record is rewritten about once each time its segment
+	 * doubles, and the oldest, biggest segments are left alone until the
+	 * rest catch up.
+	 */
+	private void merge(PeriodTable table) throws IOException {
+		List<Segment> segments = new ArrayList<>(table.segments);
+		int from = segments.size() - 1;
+		long taken = segments.get(from).buffer.capacity();
+		while (from > 0 && (segments.size() - from < 2 || segments.get(from - 1).buffer.capacity() <= 2 * taken)) {
+			taken += segments.get(--from).buffer.capacity();
+		}
+		List<Segment> merging = segments.subList(from, segments.size());
+		// dropping the period meanwhile unmaps them
+		for (int i = 0; i < merging.size(); i++) {
+			if (!merging.get(i).acquire()) {
+				for (Segment segment : merging.subList(0, i)) {
+					segment.release();
+				}
+				return;
+			}
+		}
+		Segment merged;
+		try {
+			merged = writeMerged(table, merging);
+		} finally {
+			for (Segment segment : merging) {
+				segment.release();
+			}
+		}
+		// readers may see the records twice for a moment, never miss them
+		table.segments.add(merged);
+		table.segments.removeAll(merging);
+		for (Segment segment : merging) {
+			segment.retire();
+			if (!table.dropped && !segment.file.delete()) {
+				log.warning("could not delete " + segment.file);
+			}
+		}
+		if (table.dropped) {
+			merged.retire();
+			return;
+		}
+		log.fine("merged " + merging.size() + " segments of " + table.dir + " into " + merged.file);
+	}
+
+	private Segment writeMerged(PeriodTable table, List<Segment> merging) throws IOException {
+		PriorityQueue<MergeCursor> cursors = new PriorityQueue<>();
+		for (int i = 0; i < merging.size(); i++) {
+			MergeCursor cursor = new MergeCursor(merging.get(i), i);
+			if (cursor.next()) {
+				cursors.add(cursor);
+			}
+		}
+		try (SegmentFile out = new SegmentFile(table)) {
+			MergeCursor last = null;
+			while (!cursors.isEmpty()) {
+				MergeCursor cursor = cursors.poll();
+				// the same record in an older segment comes after the newest one
+				if (last == null || cursor.hash != last.hash || cursor.time != last.time
+						|| !cursor.prefix.equals(last.prefix)) {
+					out.add(cursor.hash, cursor.prefix.getBytes(StandardCharsets.UTF_8), cursor.time,
+						cursor.segment.valueAt(cursor.position));
+					last = cursor.copy();
+				}
+				if (cursor.next()) {
+					cursors.add(cursor);
+				}
+			}
+			return out.finish();
+		}
+	}
+
+	/**
+	 * Walks a segment's records in merge order: by hash, prefix and time,
+	 * and for the same record the newest segment first.
+	 */
+	private static class MergeCursor implements Comparable<MergeCursor> {
+		final Segment segment;
+		final int age; // higher is newer
+		int position = -1;
+		long hash;
+		String prefix;
+		long time;
+
+		MergeCursor(Segment segment, int age) {
+			this.segment = segment;
+			this.age = age;
+		}
+
+		private MergeCursor(MergeCursor other) {
+			segment = other.segment;
+			age = other.age;
+			hash = other.hash;
+			prefix = other.prefix;
+			time = other.time;
+		}
+
+		boolean next() {
+			if (++position == segment.count) {
+				return false;
+			}
+			prefix = segment.prefixAt(position);
+			hash = segment.hashAt(position);
+			time = segment.timeAt(position);
+			return true;
+		}
+
+		MergeCursor copy() {
+			return new MergeCursor(this);
+		}
+
+		public int compareTo(MergeCursor other) {
+			if (hash != other.hash) {
+				return Long.compare(hash, other.hash);
+			}
+			int c = prefix.compareTo(other.prefix);
+			if (c != 0) {
+				return c;
+			}
+			return time != other.time ? Long.compare(time, other.time) : Integer.compare(other.age, age);
+		}
+	}
+
+	/** buffered writes to a channel, keeping track of the file offset */
+	private static class SegmentWriter {
+		final FileChannel channel;
+		ByteBuffer buffer = ByteBuffer.allocate(1 << 20);
+		long written;
+
+		SegmentWriter(FileChannel channel) {
+			this.channel = channel;
+		}
+
+		int offset() throws IOException {
+			long offset = written + buffer.position();
+			if (offset > Integer.MAX_VALUE) {
+				throw new IOException("segment over 2GB, flush more often");
+			}
+			return (int) offset;
+		}
+
+		void ensure(int bytes) throws IOException {
+			if (buffer.remaining() < bytes) {
+				flush();
+				if (buffer.capacity() < bytes) {
+					buffer = ByteBuffer.allocate(bytes);
+				}
+			}
+		}
+
+		void putInt(int value) throws IOException {
+			ensure(4);
+			buffer.putInt(value);
+		}
+
+		void flush() throws IOException {
+			buffer.flip();
+			while (buffer.hasRemaining()) {
+				written += channel.write(buffer);
+			}
+			buffer.clear();
+		}
+	}
+
+	public void collectTotalUniques(int periodType, int[] tableNos, Instant from, Instant to, String type,
+			String tenantId, String actorUuid, int dimensions, String value, Set<Date> seen) throws SQLException {
+		String prefix = prefix(type, tenantId, value, actorUuid);
+		for (int tableNo : tableNos) {
+			PeriodTable table = tables.get(key(periodType, tableNo));
+			if (table != null) {
+				scan(table, prefix, (key, record) -> {
+					int recordDimensions = ((record[0] & 0xff) << 24) | ((record[1] & 0xff) << 16)
+						| ((record[2] & 0xff) << 8) | (record[3] & 0xff);
+					if ((dimensions & recordDimensions) != 0) {
+						seen.add(new Date(Long.parseUnsignedLong(key.substring(prefix.length()), 16)));
+					}
+				});
+			}
+		}
+	}
+
+	public void forEachUnique(int periodType, int[] tableNos, List<List<String>> values, Instant from,
+			Instant to, String type, String tenantId, String actorUuid, Consumer<Event> consumer)
+			throws SQLException {
+		Set<String> seen = new HashSet<>();
+		try {
+			for (int t = 0; t < tableNos.length; t++) {
+				PeriodTable table = tables.get(key(periodType, tableNos[t]));
+				if (table == null) {
+					continue;
+				}
+				for (String value : values.get(t)) {
+					scan(table, prefix(type, tenantId, value, actorUuid), (key, record) -> {
+						if (seen.add(key)) {
+							consumer.accept(decode(record));
+						}
+					});
+				}
+			}
+		} catch (UncheckedIOException ex) {
+			log.log(Level.WARNING, "", ex.getCause());
+			throw new SQLException(ex.getCause().getMessage());
+		}
+	}
+
+	private interface RecordVisitor {
+		void visit(String key, byte[] record);
+	}
+
+	/**
+	 * Visits the records with keys starting with prefix in the memtable, the
+	 * memtable being flushed and the segments, in that order so a flush
+	 * running at the same time can't hide any. A record can be seen twice.
+	 */
+	private static void scan(PeriodTable table, String prefix, RecordVisitor visitor) {
+		scan(table.memtable, prefix, visitor);
+		Memtable flushing = table.flushing;
+		if (flushing != null) {
+			scan(flushing, prefix, visitor);
+		}
+		if (table.segments.isEmpty()) {
+			return;
+		}
+		List<Segment> segments = acquireSegments(table);
+		try {
+			long hash = hash(prefix);
+			byte[] prefixBytes = prefix.getBytes(StandardCharsets.UTF_8);
+			for (Segment segment : segments) {
+				for (int i = segment.lowerBound(hash); i < segment.count && segment.hashAt(i) == hash; i++) {
+					if (segment.prefixEquals(i, prefixBytes)) {
+						visitor.visit(prefix + timeKey(segment.timeAt(i)), segment.valueAt(i));
+					}
+				}
+			}
+		} finally {
+			for (Segment segment : segments) {
+				segment.release();
+			}
+		}
+	}
+
+	/**
+	 * @return the table's segments, each held against unmapping until
+	 * released. A segment already unmapped was merged into one added
+	 * before it was removed, so taking the list again finds its records.
+	 */
+	private static List<Segment> acquireSegments(PeriodTable table) {
+		while (true) {
+			List<Segment> acquired = new ArrayList<>(table.segments.size());
+			boolean all = true;
+			for (Segment segment : table.segments) {
+				if (!segment.acquire()) {
+					all = false;
+					break;
+				}
+				acquired.add(segment);
+			}
+			if (all) {
+				return acquired;
+			}
+			for (Segment segment : acquired) {
+				segment.release();
+			}
+		}
+	}
+
+	private static void scan(Memtable memtable, String prefix, RecordVisitor visitor) {
+		Rows rows = memtable.rows.get(prefix);
+		if (rows != null) {
+			rows.visit(prefix, visitor);
+		}
+	}
+
+	private static Event decode(byte[] record) {
+		try {
+			DataInputStream in = new DataInputStream(new ByteArrayInputStream(record, 4, record.length - 4));
+			return EventCodec.read(in);
+		} catch (IOException ex) {
+			throw new UncheckedIOException(ex);
+		}
+	}
+
+	/**
+	 * Stops the flusher and writes out what is left, so every insert has
+	 * been told before this returns.
+	 */
+	public void close() {
+		closed = true;
+		LockSupport.unpark(flusher);
+		try {
+			flusher.join(TimeUnit.SECONDS.toMillis(30));
+		} catch (InterruptedException e) {
+		}
+		flush();
+	}
+
+	private static String prefix(String type, String tenantId, String value, String actorUuid) {
+		return type + '\0' + tenantId + '\0' + value + '\0' + actorUuid + '\0';
+	}
+
+	// 64 bit FNV-1a, then the murmur3 finalizer to spread the bits
+	private static long hash(String prefix) {
+		long h = 0xcbf29ce484222325L;
+		for (int i = 0; i < prefix.length(); i++) {
+			h ^= prefix.charAt(i);
+			h *= 0x100000001b3L;
+		}
+		h ^= h >>> 33;
+		h *= 0xff51afd7ed558ccdL;
+		h ^= h >>> 33;
+		h *= 0xc4ceb9fe1a85ec53L;
+		h ^= h >>> 33;
+		return h;
+	}
+
+	private static final Object UNSAFE;
+	private static final Method INVOKE_CLEANER;
+
+	static {
+		Object unsafe = null;
+		Method invokeCleaner = null;
+		try {
+			Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+			Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+			theUnsafe.setAccessible(true);
+			unsafe = theUnsafe.get(null);
+			invokeCleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+		} catch (ReflectiveOperationException | RuntimeException ex) {
+			log.fine("no Unsafe.invokeCleaner, merged segments are unmapped by the garbage collector");
+		}
+		UNSAFE = unsafe;
+		INVOKE_CLEANER = invokeCleaner;
+	}
+
+	/**
+	 * Releases the mapping now rather than whenever the buffer is
+	 * collected; nothing may touch the buffer afterwards.
+	 */
+	private static void unmap(MappedByteBuffer buffer) {
+		if (INVOKE_CLEANER == null) {
+			return;
+		}
+		try {
+			INVOKE_CLEANER.invoke(UNSAFE, buffer);
+		} catch (ReflectiveOperationException | RuntimeException ex) {
+			log.log(Level.FINE, "unmap", ex);
+		}
+	}
+
+	// fixed width so keys sort by time
+	private static String timeKey(long millis) {
+		String hex = Long.toHexString(millis);
+		return "0000000000000000".substring(hex.length()) + hex;
+	}
+
+	private static long key(int periodType, int tableNo) {
+		return ((long) periodType << 32) | (tableNo & 0xffffffffL);
+	}
+}
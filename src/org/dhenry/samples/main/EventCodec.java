@@ -0,0 +1,63 @@
+package org.dhenry.samples.main;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Binary form of an Event for the files UniqueEventTracker keeps on disk.
+ * Strings are length-prefixed UTF-8 so large properties documents are not
+ * limited to the 64k of writeUTF.
+ */
+public class EventCodec {
+
+	private EventCodec() {
+	}
+
+	public static void write(Event event, DataOutput out) throws IOException {
+		writeString(event.getSourceApiKey(), out);
+		writeString(event.getSourceRemoteIp() == null ? null : event.getSourceRemoteIp().getHostAddress(), out);
+		writeString(event.getTenantId(), out);
+		writeString(event.getActorUuid(), out);
+		writeString(event.getType(), out);
+		writeString(event.getProperties(), out);
+		writeString(event.getOccurrenceTime() == null ? null : event.getOccurrenceTime().toString(), out);
+		writeString(event.getIngestionTime() == null ? null : event.getIngestionTime().toString(), out);
+		out.writeInt(event.getDimensions());
+	}
+
+	public static Event read(DataInput in) throws IOException {
+		String sourceApiKey = readString(in);
+		String sourceRemoteIp = readString(in);
+		String tenantId = readString(in);
+		String actorUuid = readString(in);
+		String type = readString(in);
+		String properties = readString(in);
+		String occurrenceTime = readString(in);
+		String ingestionTime = readString(in);
+		int dimensions = in.readInt();
+		return new Event(sourceApiKey, sourceRemoteIp, tenantId, actorUuid, type,
+			properties, occurrenceTime, ingestionTime, dimensions);
+	}
+
+	private static void writeString(String s, DataOutput out) throws IOException {
+		if (s == null) {
+			out.writeInt(-1);
+			return;
+		}
+		byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+		out.writeInt(bytes.length);
+		out.write(bytes);
+	}
+
+	private static String readString(DataInput in) throws IOException {
+		int length = in.readInt();
+		if (length < 0) {
+			return null;
+		}
+		byte[] bytes = new byte[length];
+		in.readFully(bytes);
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+}
@@ -0,0 +1,295 @@
+package org.dhenry.samples.main;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.ObjLongConsumer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only write-ahead log of queued events, kept in memory-mapped segment
+ * files. Each record is [length][crc32][EventCodec bytes]; a zero length ends
+ * the segment. append returns the record position (segment number in the high
+ * 32 bits, offset in the low) and the caller acknowledges it once the event is
+ * stored. A segment is deleted when it is no longer being appended to and all
+ * of its records have been acknowledged.
+ * 
+ * Appends only copy into the mapped page cache; a background thread forces
+ * dirty segments to disk every fsyncIntervalMillis, so many appends share one
+ * fsync. An interval of 0 forces on every append.
+ */
+public class EventLog {
+
+	private static final Logger log = Logger.getLogger(EventLog.class.getName());
+	public static final long NO_POSITION = -1;
+	private static final int HEADER_BYTES = 8;
+
+	private final File dir;
+	private final int segmentBytes;
+	private final int fsyncIntervalMillis;
+	private final Map<Integer,Segment> segments = new ConcurrentHashMap<>();
+	private final ThreadLocal<ByteArrayOutputStream> encodeBuffer =
+		ThreadLocal.withInitial(() -> new ByteArrayOutputStream(1024));
+	private Segment current;
+	private ScheduledExecutorService flusher;
+
+	private static class Segment {
+		final int number;
+		final File file;
+		final RandomAccessFile raf;
+		final MappedByteBuffer buffer;
+		final AtomicInteger pending = new AtomicInteger();
+		final AtomicBoolean deleted = new AtomicBoolean();
+		volatile boolean sealed;
+		volatile boolean dirty;
+
+		Segment(int number, File file, int size) throws IOException {
+			this.number = number;
+			this.file = file;
+			raf = new RandomAccessFile(file, "rw");
+			buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, Math.max(size, raf.length()));
+		}
+	}
+
+	/**
+	 * @param dir directory holding the segment files, created if missing
+	 * @param segmentBytes size of each mapped segment
+	 * @param fsyncIntervalMillis group commit interval, 0 to force every append
+	 */
+	public EventLog(String dir, int segmentBytes, int fsyncIntervalMillis) {
+		this.dir = new File(dir);
+		this.segmentBytes = segmentBytes;
+		this.fsyncIntervalMillis = fsyncIntervalMillis;
+		this.dir.mkdirs();
+	}
+
+	/**
+	 * Reads back every record left by a previous run, oldest first, and hands
+	 * it to the consumer with its position. Those positions must be
+	 * acknowledged like any others. Must be called before the first append.
+	 */
+	public void replay(ObjLongConsumer<Event> consumer) throws IOException {
+		File[] files = dir.listFiles((d, name) -> name.startsWith("segment-") && name.endsWith(".log"));
+		int next = 0;
+		if (files != null) {
+			int[] numbers = new int[files.length];
+			for (int i = 0; i < files.length; i++) {
+				String name = files[i].getName();
+				numbers[i] = Integer.parseInt(name.substring(8, name.length() - 4));
+			}
+			Arrays.sort(numbers);
+			for (int number : numbers) {
+				Segment segment = new Segment(number, segmentFile(number), 0);
+				segments.put(number, segment);
+				int count = replaySegment(segment, consumer);
+				log.info("replayed " + count + " events from " + segment.file);
+				if (count == 0) {
+					delete(segment);
+				}
+				next = number + 1;
+			}
+		}
+		current = openSegment(next, segmentBytes);
+		if (fsyncIntervalMillis > 0) {
+			flusher = Executors.newSingleThreadScheduledExecutor(r -> {
+				Thread t = new Thread(r, "event-log-flusher");
+				t.setDaemon(true);
+				return t;
+			});
+			flusher.scheduleWithFixedDelay(this::flush, fsyncIntervalMillis, fsyncIntervalMillis, TimeUnit.MILLISECONDS);
+		}
+	}
+
+	/**
+	 * Reads all of the segment's records before handing any out: writers may
+	 * already be running, and acknowledging the first must not bring pending
+	 * to 0 and delete the segment while the rest are only in memory.
+	 */
+	private int replaySegment(Segment segment, ObjLongConsumer<Event> consumer) {
+		MappedByteBuffer buffer = segment.buffer;
+		CRC32 crc = new CRC32();
+		List<Event> events = new ArrayList<>();
+		List<Integer> offsets = new ArrayList<>();
+		int offset = 0;
+		while (offset + HEADER_BYTES <= buffer.limit()) {
+			int length = buffer.getInt(offset);
+			if (length <= 0 || offset + HEADER_BYTES + length > buffer.limit()) {
+				break;
+			}
+			byte[] bytes = new byte[length];
+			buffer.position(offset + HEADER_BYTES);
+			buffer.get(bytes);
+			crc.reset();
+			crc.update(bytes);
+			if ((int) crc.getValue() != buffer.getInt(offset + 4)) {
+				log.warning("torn record at " + offset + " in " + segment.file + ", ignoring the rest");
+				break;
+			}
+			try {
+				events.add(EventCodec.read(new DataInputStream(new ByteArrayInputStream(bytes))));
+				offsets.add(offset);
+			} catch (IOException ex) {
+				log.log(Level.WARNING, "unreadable record at " + offset + " in " + segment.file, ex);
+			}
+			offset += HEADER_BYTES + length;
+		}
+		segment.pending.set(events.size());
+		segment.sealed = true;
+		for (int i = 0; i < events.size(); i++) {
+			consumer.accept(events.get(i), position(segment.number, offsets.get(i)));
+		}
+		return events.size();
+	}
+
+	/**
+	 * @return position to acknowledge once the event is stored, or NO_POSITION
+	 * if it could not be logged
+	 */
+	public long append(Event event) {
+		ByteArrayOutputStream bytes = encodeBuffer.get();
+		bytes.reset();
+		try {
+			EventCodec.write(event, new DataOutputStream(bytes));
+		} catch (IOException ex) {
+			log.log(Level.WARNING, "event log encode", ex);
+			return NO_POSITION;
+		}
+		byte[] record = bytes.toByteArray();
+		CRC32 crc = new CRC32();
+		crc.update(record);
+
+		Segment segment;
+		int offset;
+		synchronized (this) {
+			segment = current;
+			offset = segment.buffer.position();
+			if (offset + HEADER_BYTES + record.length + 4 > segment.buffer.capacity()) {
+				try {
+					segment = roll(record.length);
+				} catch (IOException ex) {
+					log.log(Level.WARNING, "event log roll", ex);
+					return NO_POSITION;
+				}
+				offset = 0;
+			}
+			MappedByteBuffer buffer = segment.buffer;
+			buffer.putInt(offset + 4, (int) crc.getValue());
+			buffer.position(offset + HEADER_BYTES);
+			buffer.put(record);
+			buffer.putInt(offset, record.length);
+			segment.pending.incrementAndGet();
+			segment.dirty = true;
+		}
+		if (fsyncIntervalMillis <= 0) {
+			segment.buffer.force();
+		}
+		return position(segment.number, offset);
+	}
+
+	public void acknowledge(long position) {
+		if (position == NO_POSITION) {
+			return;
+		}
+		Segment segment = segments.get((int) (position >>> 32));
+		if (segment != null && segment.pending.decrementAndGet() == 0 && segment.sealed) {
+			delete(segment);
+		}
+	}
+
+	/** force dirty segments to disk, called by the flusher */
+	public void flush() {
+		for (Segment segment : segments.values()) {
+			if (segment.dirty && !segment.deleted.get()) {
+				segment.dirty = false;
+				segment.buffer.force();
+			}
+		}
+	}
+
+	/** @return records appended or replayed but not yet acknowledged */
+	public long getPendingCount() {
+		long count = 0;
+		for (Segment segment : segments.values()) {
+			count += segment.pending.get();
+		}
+		return count;
+	}
+
+	public void close() {
+		if (flusher != null) {
+			flusher.shutdown();
+		}
+		flush();
+		synchronized (this) {
+			if (current != null) {
+				current.sealed = true;
+				if (current.pending.get() == 0) {
+					delete(current);
+				}
+			}
+		}
+		for (Segment segment : segments.values()) {
+			try {
+				segment.raf.close();
+			} catch (IOException ex) {
+			}
+		}
+	}
+
+	private Segment roll(int recordLength) throws IOException {
+		Segment old = current;
+		old.buffer.force();
+		old.dirty = false;
+		current = openSegment(old.number + 1, Math.max(segmentBytes, recordLength + HEADER_BYTES + 4));
+		old.sealed = true;
+		if (old.pending.get() == 0) {
+			delete(old);
+		}
+		return current;
+	}
+
+	private Segment openSegment(int number, int size) throws IOException {
+		Segment segment = new Segment(number, segmentFile(number), size);
+		segments.put(number, segment);
+		return segment;
+	}
+
+	private void delete(Segment segment) {
+		if (segment.deleted.compareAndSet(false, true)) {
+			segments.remove(segment.number);
+			try {
+				segment.raf.close();
+			} catch (IOException ex) {
+			}
+			if (!segment.file.delete()) {
+				log.warning("could not delete " + segment.file);
+			}
+		}
+	}
+
+	private File segmentFile(int number) {
+		return new File(dir, String.format("segment-%010d.log", number));
+	}
+
+	private static long position(int segment, int offset) {
+		return ((long) segment << 32) | (offset & 0xffffffffL);
+	}
+}
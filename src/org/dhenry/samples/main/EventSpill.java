@@ -0,0 +1,119 @@
+package org.dhenry.samples.main;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Overflow file for events that did not fit in the ingest queue. Events are
+ * appended at the end and read back from the front; once everything written
+ * has been read the file is truncated. This is the slow path, so the methods
+ * are simply synchronized. Each event is stored with its long tag.
+ */
+public class EventSpill {
+
+	private static final Logger log = Logger.getLogger(EventSpill.class.getName());
+
+	private final File file;
+	private DataOutputStream out;
+	private DataInputStream in;
+	private long pending;
+
+	public EventSpill(String filename) {
+		file = new File(filename);
+		if (file.exists()) {
+			log.warning("discarding stale spill file " + filename);
+			file.delete();
+		}
+	}
+
+	public synchronized boolean append(Event event, long tag) {
+		try {
+			if (out == null) {
+				out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file, true)));
+			}
+			out.writeLong(tag);
+			EventCodec.write(event, out);
+			pending++;
+			return true;
+		} catch (IOException ex) {
+			log.log(Level.WARNING, "spill append", ex);
+			return false;
+		}
+	}
+
+	/**
+	 * @param tags receives the tag of each event at the index it lands at in the list
+	 * @return how many spilled events were moved into the list
+	 */
+	public synchronized int drainTo(List<Event> list, long[] tags, int max) {
+		if (pending == 0) {
+			return 0;
+		}
+		int count = 0;
+		try {
+			out.flush();
+			if (in == null) {
+				in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+			}
+			while (count < max && pending > 0) {
+				long tag = in.readLong();
+				Event event = EventCodec.read(in);
+				tags[list.size()] = tag;
+				list.add(event);
+				pending--;
+				count++;
+			}
+		} catch (EOFException ex) {
+			log.log(Level.WARNING, "spill file shorter than expected, discarding " + pending, ex);
+			pending = 0;
+		} catch (IOException ex) {
+			log.log(Level.WARNING, "spill read", ex);
+			return count;
+		}
+		if (pending == 0) {
+			reset();
+		}
+		return count;
+	}
+
+	public synchronized long size() {
+		return pending;
+	}
+
+	public boolean hasPending() {
+		return size() > 0;
+	}
+
+	public synchronized void close() {
+		if (pending > 0) {
+			log.warning("discarding " + pending + " spilled events at close");
+		}
+		reset();
+	}
+
+	private void reset() {
+		try {
+			if (in != null) {
+				in.close();
+			}
+			if (out != null) {
+				out.close();
+			}
+		} catch (IOException ex) {
+		}
+		in = null;
+		out = null;
+		pending = 0;
+		file.delete();
+	}
+}
@@ -0,0 +1,111 @@
+package org.dhenry.samples.main;
+
+import java.sql.SQLException;
+import java.time.Instant;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.Set;
+import java.util.SortedSet;
+import java.util.function.Consumer;
+import java.util.function.ObjIntConsumer;
+
+/**
+ * Where UniqueEventTracker keeps its events. The tracker owns the ingest
+ * queue, write-ahead log, uniqueness index, sketches and the period
+ * numbering; a store only keeps one table of events per period type and
+ * number, which it is told to create ahead of use and to drop on rolloff.
+ * Period types are the UniqueEventTracker.PERIOD_ constants.
+ */
+public interface EventStore {
+
+	/**
+	 * Creates the table if it doesn't exist yet. Called ahead of the roll on
+	 * the tracker's schema thread, never by the writers.
+	 */
+	void createPeriod(int periodType, int tableNo);
+
+	/**
+	 * Waits until tables created so far can be used everywhere.
+	 *
+	 * @return false if that didn't happen within timeoutMillis
+	 */
+	boolean awaitSchema(long timeoutMillis);
+
+	/**
+	 * Does whatever is needed up front so the first inserts into the table
+	 * don't stall, e.g. preparing statements. Called on the schema thread
+	 * before the table becomes current.
+	 */
+	void preparePeriod(int periodType, int tableNo);
+
+	void dropPeriod(int periodType, int tableNo);
+
+	/**
+	 * @return the numbers of the period type's tables that exist, for the
+	 * tracker to check its saved period numbers against at startup; null if
+	 * the store has no tables per period or can't tell
+	 */
+	default SortedSet<Integer> listPeriods(int periodType) {
+		return null;
+	}
+
+	/**
+	 * Writes each event to the current table of every period type.
+	 *
+	 * @param values the value (URL) of each event
+	 * @param tableNos the current table number per period type, hour first
+	 * @param done told once, after every write of the batch finished, whether
+	 * they all succeeded; may be called on another thread
+	 */
+	void insert(List<Event> events, List<String> values, int[] tableNos, Consumer<Boolean> done);
+
+	/**
+	 * Adds the occurrence times of the matching records in the tables to
+	 * seen. Stores without tables per period use the from, to range of
+	 * occurrence times instead.
+	 *
+	 * @param dimensions records with any of the bits match
+	 */
+	void collectTotalUniques(int periodType, int[] tables, Instant from, Instant to, String type,
+			String tenantId, String actorUuid, int dimensions, String value, Set<Date> seen) throws SQLException;
+
+	/**
+	 * Hands the matching records to the consumer, tables in the order given
+	 * and a record found in more than one of them once.
+	 *
+	 * @param values the values to look for, per table
+	 */
+	void forEachUnique(int periodType, int[] tables, List<List<String>> values, Instant from, Instant to,
+			String type, String tenantId, String actorUuid, Consumer<Event> consumer) throws SQLException;
+
+	/**
+	 * forEachUnique without merging the tables, for results kept per table:
+	 * each record comes with the index in tables of the table it was found
+	 * in, once per table. The default reads the tables one after another.
+	 *
+	 * @param from the start of each table's range of occurrence times
+	 * @param to the end of each table's range
+	 */
+	default void forEachUniqueByTable(int periodType, int[] tables, List<List<String>> values, Instant[] from,
+			Instant[] to, String type, String tenantId, String actorUuid, ObjIntConsumer<Event> consumer)
+			throws SQLException {
+		for (int i = 0; i < tables.length; i++) {
+			int index = i;
+			forEachUnique(periodType, new int[] {tables[i]}, Collections.singletonList(values.get(i)), from[i], to[i],
+				type, tenantId, actorUuid, event -> consumer.accept(event, index));
+		}
+	}
+
+	/**
+	 * Hands the store the tracker's metrics to add its own to, before any
+	 * other call. Stores without metrics of their own can ignore it.
+	 */
+	default void setMetrics(TrackerMetrics metrics) {
+	}
+
+	/**
+	 * Waits for outstanding writes; the store is not used afterwards.
+	 */
+	void close();
+}
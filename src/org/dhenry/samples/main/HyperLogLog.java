@@ -0,0 +1,122 @@
+package org.dhenry.samples.main;
+
+/**
+ * HyperLogLog cardinality sketch over 64 bit hashes: 2^precision one-byte
+ * registers, each holding the longest run of leading zeros seen for the
+ * hashes routed to it. Sketches of the same precision merge by taking the
+ * register-wise maximum, which is the sketch of the union of their inputs.
+ * The standard error is about 1.04 / sqrt(2^precision).
+ */
+public class HyperLogLog {
+
+	private final int precision;
+	private final byte[] registers;
+
+	public HyperLogLog(int precision) {
+		if (precision < 4 || precision > 18) {
+			throw new IllegalArgumentException("precision must be between 4 and 18: " + precision);
+		}
+		this.precision = precision;
+		this.registers = new byte[1 << precision];
+	}
+
+	/**
+	 * @param registers as returned by toBytes
+	 */
+	public static HyperLogLog fromBytes(byte[] registers) {
+		int precision = Integer.numberOfTrailingZeros(registers.length);
+		if (registers.length != 1 << precision) {
+			throw new IllegalArgumentException("register count must be a power of two: " + registers.length);
+		}
+		HyperLogLog hll = new HyperLogLog(precision);
+		System.arraycopy(registers, 0, hll.registers, 0, registers.length);
+		return hll;
+	}
+
+	/**
+	 * @return true if a register changed
+	 */
+	public synchronized boolean add(long hash) {
+		int index = (int) (hash >>> (64 - precision));
+		byte rank = (byte) (Long.numberOfLeadingZeros((hash << precision) | (1L << (precision - 1))) + 1);
+		if (rank > registers[index]) {
+			registers[index] = rank;
+			return true;
+		}
+		return false;
+	}
+
+	public synchronized void merge(HyperLogLog other) {
+		if (other.precision != precision) {
+			throw new IllegalArgumentException("precision mismatch: " + other.precision + " != " + precision);
+		}
+		byte[] theirs = other.toBytes();
+		for (int i = 0; i < registers.length; i++) {
+			if (theirs[i] > registers[i]) {
+				registers[i] = theirs[i];
+			}
+		}
+	}
+
+	/**
+	 * Folds the sketch down to a lower precision, giving the same registers
+	 * as if its hashes had been added at that one; there is no going up.
+	 * The index bits dropped become the leading bits of the rank.
+	 */
+	public synchronized HyperLogLog reduce(int newPrecision) {
+		if (newPrecision > precision) {
+			throw new IllegalArgumentException("can't raise precision " + precision + " to " + newPrecision);
+		}
+		HyperLogLog reduced = new HyperLogLog(newPrecision);
+		int shift = precision - newPrecision;
+		for (int i = 0; i < registers.length; i++) {
+			if (registers[i] == 0) {
+				continue;
+			}
+			int dropped = i & ((1 << shift) - 1);
+			byte rank = (byte) (dropped != 0 ? Integer.numberOfLeadingZeros(dropped) - (32 - shift) + 1
+				: shift + registers[i]);
+			int index = i >>> shift;
+			if (rank > reduced.registers[index]) {
+				reduced.registers[index] = rank;
+			}
+		}
+		return reduced;
+	}
+
+	public synchronized long estimate() {
+		int m = registers.length;
+		double sum = 0;
+		int zeros = 0;
+		for (byte r : registers) {
+			sum += 1.0 / (1L << r);
+			if (r == 0) {
+				zeros++;
+			}
+		}
+		double alpha;
+		if (m == 16) {
+			alpha = 0.673;
+		} else if (m == 32) {
+			alpha = 0.697;
+		} else if (m == 64) {
+			alpha = 0.709;
+		} else {
+			alpha = 0.7213 / (1 + 1.079 / m);
+		}
+		double estimate = alpha * m * m / sum;
+		if (estimate <= 2.5 * m && zeros > 0) {
+			// linear counting is more accurate for small cardinalities
+			estimate = m * Math.log((double) m / zeros);
+		}
+		return Math.round(estimate);
+	}
+
+	public synchronized byte[] toBytes() {
+		return registers.clone();
+	}
+
+	public int getPrecision() {
+		return precision;
+	}
+}
@@ -0,0 +1,70 @@
+package org.dhenry.samples.main;
+
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * What a consumer thread does when it finds no work: busy-spin for the first
+ * few attempts, then yield, then park with an exponentially growing timeout.
+ * The busy-spin, yield and park strategies are the same thing with the other
+ * phases turned off. A parked consumer is expected to be unparked by the
+ * producer, the park timeout is only a safety net.
+ */
+public class IdleStrategy {
+
+	private final int spins;
+	private final int yields;
+	private final long minParkNanos;
+	private final long maxParkNanos;
+
+	public IdleStrategy(int spins, int yields, long minParkNanos, long maxParkNanos) {
+		this.spins = Math.max(0, spins);
+		this.yields = Math.max(0, yields);
+		this.minParkNanos = Math.max(1, minParkNanos);
+		this.maxParkNanos = Math.max(this.minParkNanos, maxParkNanos);
+	}
+
+	/**
+	 * @param name one of spin, yield, park or backoff (spin, then yield, then park)
+	 */
+	public static IdleStrategy named(String name, int spins, int yields, long maxParkMicros) {
+		long maxParkNanos = TimeUnit.MICROSECONDS.toNanos(maxParkMicros);
+		switch (name.trim().toLowerCase(Locale.ROOT)) {
+		case "spin":
+			return new IdleStrategy(Integer.MAX_VALUE, 0, maxParkNanos, maxParkNanos);
+		case "yield":
+			return new IdleStrategy(0, Integer.MAX_VALUE, maxParkNanos, maxParkNanos);
+		case "park":
+			return new IdleStrategy(0, 0, maxParkNanos, maxParkNanos);
+		case "backoff":
+			return new IdleStrategy(spins, yields, TimeUnit.MICROSECONDS.toNanos(1), maxParkNanos);
+		default:
+			throw new IllegalArgumentException("unknown idle strategy " + name);
+		}
+	}
+
+	/**
+	 * @param idleCount how many times in a row the caller found no work
+	 * @return true if idle will park at this count, so the caller should
+	 * advertise itself for unparking first
+	 */
+	public boolean willPark(int idleCount) {
+		return idleCount - spins >= yields;
+	}
+
+	public void idle(int idleCount) {
+		if (idleCount < spins) {
+			Thread.onSpinWait();
+		} else if (idleCount - spins < yields) {
+			Thread.yield();
+		} else {
+			int parks = Math.min(idleCount - spins - yields, 62);
+			long parkNanos = minParkNanos << parks;
+			if (parkNanos <= 0 || parkNanos > maxParkNanos) {
+				parkNanos = maxParkNanos;
+			}
+			LockSupport.parkNanos(parkNanos);
+		}
+	}
+}
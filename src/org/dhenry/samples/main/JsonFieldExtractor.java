@@ -0,0 +1,178 @@
+package org.dhenry.samples.main;
+
+/**
+ * Pulls one top-level string field out of a JSON object without building a
+ * parse tree. The document is scanned once; nested objects and arrays are
+ * skipped over. The only allocation is the returned string, plus a builder
+ * when the value contains escapes.
+ */
+public class JsonFieldExtractor {
+
+	private JsonFieldExtractor() {
+	}
+
+	/**
+	 * @return the string value of the field, or null if the document is not
+	 * an object, has no such top-level field, the value is not a string or
+	 * the document is malformed
+	 */
+	public static String getString(String json, String field) {
+		if (json == null) {
+			return null;
+		}
+		int i = skipWhitespace(json, 0);
+		if (i >= json.length() || json.charAt(i) != '{') {
+			return null;
+		}
+		i = skipWhitespace(json, i + 1);
+		if (i < json.length() && json.charAt(i) == '}') {
+			return null;
+		}
+		while (i < json.length()) {
+			if (json.charAt(i) != '"') {
+				return null;
+			}
+			int keyEnd = skipString(json, i);
+			if (keyEnd < 0) {
+				return null;
+			}
+			boolean match = keyEquals(json, i + 1, keyEnd - 1, field);
+			i = skipWhitespace(json, keyEnd);
+			if (i >= json.length() || json.charAt(i) != ':') {
+				return null;
+			}
+			i = skipWhitespace(json, i + 1);
+			if (match) {
+				if (i >= json.length() || json.charAt(i) != '"') {
+					return null;
+				}
+				int valueEnd = skipString(json, i);
+				return valueEnd < 0 ? null : unescape(json, i + 1, valueEnd - 1);
+			}
+			i = skipValue(json, i);
+			if (i < 0) {
+				return null;
+			}
+			i = skipWhitespace(json, i);
+			if (i >= json.length() || json.charAt(i) != ',') {
+				return null;
+			}
+			i = skipWhitespace(json, i + 1);
+		}
+		return null;
+	}
+
+	private static int skipWhitespace(String json, int i) {
+		while (i < json.length()) {
+			char c = json.charAt(i);
+			if (c != ' ' && c != '\t' && c != '\n' && c != '\r') {
+				break;
+			}
+			i++;
+		}
+		return i;
+	}
+
+	/**
+	 * @param i index of the opening quote
+	 * @return index just past the closing quote, or -1
+	 */
+	private static int skipString(String json, int i) {
+		for (i++; i < json.length(); i++) {
+			char c = json.charAt(i);
+			if (c == '\\') {
+				i++;
+			} else if (c == '"') {
+				return i + 1;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * @return index just past the value starting at i, or -1
+	 */
+	private static int skipValue(String json, int i) {
+		if (i >= json.length()) {
+			return -1;
+		}
+		char c = json.charAt(i);
+		if (c == '"') {
+			return skipString(json, i);
+		}
+		if (c == '{' || c == '[') {
+			int depth = 0;
+			for (; i < json.length(); i++) {
+				c = json.charAt(i);
+				if (c == '"') {
+					i = skipString(json, i);
+					if (i < 0) {
+						return -1;
+					}
+					i--;
+				} else if (c == '{' || c == '[') {
+					depth++;
+				} else if (c == '}' || c == ']') {
+					if (--depth == 0) {
+						return i + 1;
+					}
+				}
+			}
+			return -1;
+		}
+		// number, true, false or null
+		while (i < json.length()) {
+			c = json.charAt(i);
+			if (c == ',' || c == '}' || c == ' ' || c == '\t' || c == '\n' || c == '\r') {
+				break;
+			}
+			i++;
+		}
+		return i;
+	}
+
+	private static boolean keyEquals(String json, int from, int to, String field) {
+		if (to - from != field.length()) {
+			// an escaped key can't be compared by length; those are not worth supporting
+			return false;
+		}
+		return json.regionMatches(from, field, 0, field.length());
+	}
+
+	private static String unescape(String json, int from, int to) {
+		int slash = json.indexOf('\\', from);
+		if (slash < 0 || slash >= to) {
+			return json.substring(from, to);
+		}
+		StringBuilder sb = new StringBuilder(to - from);
+		sb.append(json, from, slash);
+		for (int i = slash; i < to; i++) {
+			char c = json.charAt(i);
+			if (c != '\\') {
+				sb.append(c);
+				continue;
+			}
+			c = json.charAt(++i);
+			switch (c) {
+			case 'b': sb.append('\b'); break;
+			case 'f': sb.append('\f'); break;
+			case 'n': sb.append('\n'); break;
+			case 'r': sb.append('\r'); break;
+			case 't': sb.append('\t'); break;
+			case 'u':
+				if (i + 4 >= to) {
+					return null;
+				}
+				try {
+					sb.append((char) Integer.parseInt(json.substring(i + 1, i + 5), 16));
+				} catch (NumberFormatException ex) {
+					return null;
+				}
+				i += 4;
+				break;
+			default: sb.append(c);
+			}
+		}
+		return sb.toString();
+	}
+}
@@ -0,0 +1,119 @@
+package org.dhenry.samples.main;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Latency histogram in the style of HdrHistogram: microsecond values are
+ * counted in log-linear buckets, exact below 64us and within about 3%
+ * above, up to about 12 days. Recording is a few atomic increments and
+ * takes no lock, so it can sit on the insert path.
+ */
+public class LatencyHistogram {
+
+	private static final int SUB_BUCKET_BITS = 5; // 32 linear buckets per power of two
+	private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+	private static final long MAX_MICROS = (1L << 40) - 1;
+	private static final int BUCKETS = bucket(MAX_MICROS) + 1;
+
+	private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+	private final LongAdder count = new LongAdder();
+	private final LongAdder sumMicros = new LongAdder();
+	private final AtomicLong maxMicros = new AtomicLong();
+
+	public void recordNanos(long nanos) {
+		recordMicros(TimeUnit.NANOSECONDS.toMicros(nanos));
+	}
+
+	public void recordMicros(long micros) {
+		micros = Math.min(MAX_MICROS, Math.max(0, micros));
+		counts.incrementAndGet(bucket(micros));
+		count.increment();
+		sumMicros.add(micros);
+		long max = maxMicros.get();
+		while (micros > max && !maxMicros.compareAndSet(max, micros)) {
+			max = maxMicros.get();
+		}
+	}
+
+	/** values below 2 * SUB_BUCKETS have a bucket each, above that SUB_BUCKETS per power of two */
+	private static int bucket(long micros) {
+		if (micros < 2 * SUB_BUCKETS) {
+			return (int) micros;
+		}
+		int shift = 63 - Long.numberOfLeadingZeros(micros) - SUB_BUCKET_BITS;
+		return shift * SUB_BUCKETS + (int) (micros >>> shift);
+	}
+
+	/** @return the largest value counted in the bucket */
+	private static long highestValue(int bucket) {
+		if (bucket < 2 * SUB_BUCKETS) {
+			return bucket;
+		}
+		int shift = bucket / SUB_BUCKETS - 1;
+		long sub = bucket % SUB_BUCKETS + SUB_BUCKETS;
+		return ((sub + 1) << shift) - 1;
+	}
+
+	public Snapshot snapshot() {
+		long[] copy = new long[BUCKETS];
+		long total = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			copy[i] = counts.get(i);
+			total += copy[i];
+		}
+		return new Snapshot(copy, total, sumMicros.sum(), maxMicros.get());
+	}
+
+	/**
+	 * The counts at one point in time. Recording carries on meanwhile, so
+	 * the mean and max can be a few values ahead of the percentiles.
+	 */
+	public static class Snapshot {
+		private final long[] counts;
+		private final long count;
+		private final long sumMicros;
+		private final long maxMicros;
+
+		Snapshot(long[] counts, long count, long sumMicros, long maxMicros) {
+			this.counts = counts;
+			this.count = count;
+			this.sumMicros = sumMicros;
+			this.maxMicros = maxMicros;
+		}
+
+		public long getCount() {
+			return count;
+		}
+
+		public long getMeanMicros() {
+			return count == 0 ? 0 : sumMicros / count;
+		}
+
+		public long getMaxMicros() {
+			return maxMicros;
+		}
+
+		/**
+		 * @param percentile e.g. 99.9
+		 * @return the value at or below which that percentage of values lie,
+		 * rounded up to its bucket's highest value
+		 */
+		public long getPercentileMicros(double percentile) {
+			if (count == 0) {
+				return 0;
+			}
+			long rank = Math.max(1, (long) Math.ceil(count * Math.min(100, percentile) / 100));
+			long seen = 0;
+			for (int i = 0; i < counts.length; i++) {
+				seen += counts[i];
+				if (seen >= rank) {
+					return Math.min(highestValue(i), maxMicros);
+				}
+			}
+			return maxMicros;
+		}
+	}
+}
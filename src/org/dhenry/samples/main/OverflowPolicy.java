@@ -0,0 +1,16 @@
+package org.dhenry.samples.main;
+
+/**
+ * What UniqueEventTracker.processEvent does when the ingest queue is full.
+ */
+public enum OverflowPolicy {
+
+	/** wait up to the offer timeout for room, then reject the event */
+	BLOCK,
+	/** discard the incoming event */
+	DROP_NEWEST,
+	/** discard the oldest queued event to make room */
+	DROP_OLDEST,
+	/** append the event to the spill file, drained once the queue has room */
+	SPILL
+}
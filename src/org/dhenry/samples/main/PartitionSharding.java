@@ -0,0 +1,71 @@
+package org.dhenry.samples.main;
+
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Spreads a partition of the event tables over shards, a shard column in
+ * the partition key, so a heavy tenant's writes for one type don't all land
+ * on one replica set. The shard is a hash of the actor or of the value, both
+ * always known to the reads, so a read only goes to the shards its records
+ * can be in rather than to all of them.
+ *
+ * Records keep the shard they were written with; changing the number of
+ * shards or what they are by only applies cleanly to tables created
+ * afterwards.
+ */
+public class PartitionSharding {
+
+	private final int shards;
+	private final boolean byValue;
+
+	/**
+	 * @param shards shards per partition, 1 for none
+	 * @param byValue hash the value rather than the actor
+	 */
+	public PartitionSharding(int shards, boolean byValue) {
+		this.shards = Math.max(1, shards);
+		this.byValue = byValue;
+	}
+
+	public int getShards() {
+		return shards;
+	}
+
+	public boolean isByValue() {
+		return byValue;
+	}
+
+	public int shard(String value, String actorUuid) {
+		if (shards == 1) {
+			return 0;
+		}
+		String key = byValue ? value : actorUuid;
+		// String.hashCode is the same in every JVM, the finalizer spreads its low bits
+		int h = key == null ? 0 : key.hashCode();
+		h ^= h >>> 16;
+		h *= 0x85ebca6b;
+		h ^= h >>> 13;
+		h *= 0xc2b2ae35;
+		h ^= h >>> 16;
+		return Math.floorMod(h, shards);
+	}
+
+	/**
+	 * @return the shards the records of the actor with any of the values are in
+	 */
+	public List<Integer> shards(List<String> values, String actorUuid) {
+		if (!byValue || shards == 1) {
+			List<Integer> one = new ArrayList<>(1);
+			one.add(shard(null, actorUuid));
+			return one;
+		}
+		Set<Integer> found = new LinkedHashSet<>();
+		for (String value : values) {
+			found.add(shard(value, actorUuid));
+		}
+		return new ArrayList<>(found);
+	}
+}
@@ -0,0 +1,147 @@
+package org.dhenry.samples.main;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Bounded, lock-free multi-producer multi-consumer queue over a preallocated
+ * array. Each slot carries a sequence number telling producers and consumers
+ * whether it is free or filled for their lap around the ring, so offer and
+ * poll are a single CAS and allocate nothing. Every element can carry a long
+ * tag alongside it, again without allocating a wrapper.
+ */
+public class RingBuffer<E> {
+
+	private final Object[] buffer;
+	private final long[] tags;
+	private final AtomicLongArray sequences;
+	private final int mask;
+	private final AtomicLong tail = new AtomicLong(); // next slot to fill
+	private final AtomicLong head = new AtomicLong(); // next slot to drain
+
+	/**
+	 * @param capacity rounded up to the next power of two
+	 */
+	public RingBuffer(int capacity) {
+		int size = 1;
+		while (size < capacity) {
+			size <<= 1;
+		}
+		buffer = new Object[size];
+		tags = new long[size];
+		sequences = new AtomicLongArray(size);
+		for (int i = 0; i < size; i++) {
+			sequences.set(i, i);
+		}
+		mask = size - 1;
+	}
+
+	/**
+	 * @return false if the ring is full
+	 */
+	public boolean offer(E e) {
+		return offer(e, 0);
+	}
+
+	/**
+	 * @return false if the ring is full
+	 */
+	public boolean offer(E e, long tag) {
+		while (true) {
+			long pos = tail.get();
+			int index = (int) pos & mask;
+			long diff = sequences.get(index) - pos;
+			if (diff == 0) {
+				if (tail.compareAndSet(pos, pos + 1)) {
+					buffer[index] = e;
+					tags[index] = tag;
+					sequences.lazySet(index, pos + 1);
+					return true;
+				}
+			} else if (diff < 0) {
+				return false;
+			}
+		}
+	}
+
+	/**
+	 * @return the oldest element or null if the ring is empty
+	 */
+	public E poll() {
+		return poll(null, 0);
+	}
+
+	/**
+	 * @param tagOut if not null, receives the element's tag at tagIndex
+	 * @return the oldest element or null if the ring is empty
+	 */
+	@SuppressWarnings("unchecked")
+	public E poll(long[] tagOut, int tagIndex) {
+		while (true) {
+			long pos = head.get();
+			int index = (int) pos & mask;
+			long diff = sequences.get(index) - (pos + 1);
+			if (diff == 0) {
+				if (head.compareAndSet(pos, pos + 1)) {
+					E e = (E) buffer[index];
+					if (tagOut != null) {
+						tagOut[tagIndex] = tags[index];
+					}
+					buffer[index] = null;
+					sequences.lazySet(index, pos + mask + 1);
+					return e;
+				}
+			} else if (diff < 0) {
+				return null;
+			}
+		}
+	}
+
+	/**
+	 * @return how many elements were moved into the collection
+	 */
+	public int drainTo(Collection<? super E> c, int max) {
+		int count = 0;
+		E e;
+		while (count < max && (e = poll()) != null) {
+			c.add(e);
+			count++;
+		}
+		return count;
+	}
+
+	/**
+	 * Drains elements and their tags; the tag of each element is stored in
+	 * tagsOut at the index the element lands at in the list.
+	 * 
+	 * @return how many elements were moved into the list
+	 */
+	public int drainTo(List<? super E> list, long[] tagsOut, int max) {
+		int count = 0;
+		E e;
+		while (count < max && (e = poll(tagsOut, list.size())) != null) {
+			list.add(e);
+			count++;
+		}
+		return count;
+	}
+
+	/** Approximate while producers or consumers are active. */
+	public int size() {
+		long size = tail.get() - head.get();
+		if (size < 0) {
+			return 0;
+		}
+		return (int) Math.min(size, buffer.length);
+	}
+
+	public boolean isEmpty() {
+		return size() == 0;
+	}
+
+	public int capacity() {
+		return buffer.length;
+	}
+}
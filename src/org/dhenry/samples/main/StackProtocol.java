@@ -0,0 +1,55 @@
+package org.dhenry.samples.main;
+
+/**
+ * The framed StackServer protocol, for clients that keep their connection
+ * and send many requests over it.
+ *
+ * A framed client starts with MAGIC and the protocol version it speaks;
+ * the server answers with MAGIC and its own version. Then both sides send
+ * frames:
+ * <pre>
+ * int length   bytes after this field
+ * byte code    op in a request, status in a response
+ * int id       chosen by the client, echoed in the response
+ * payload      length - 5 bytes
+ * </pre>
+ * A PUSH carries the message, a POP nothing and its OK response the message.
+ * PUSH_N carries up to StackServer.STACK_MAX_SIZE messages, each an int
+ * length and its bytes, pushed together in order so the last ends up on
+ * top; it waits until there is room for all of them. POP_N carries an int
+ * n and its OK response up to n messages in the same layout, top first; it
+ * waits only while the stack is empty.
+ * Requests are taken in the order sent; one waiting for room or for a
+ * message doesn't hold up those behind it, so responses can come back in
+ * a different order. A request that waits longer than the server's limit
+ * gets TIMEOUT. While StackServer.WAITING_MAX_COUNT requests on a connection
+ * wait, the server reads nothing more from it. Ints are big-endian.
+ *
+ * Every first byte already means something to a legacy client, any with
+ * the high bit set being a pop, so MAGIC can't avoid them all: it is a
+ * deliberate break for legacy clients that pop with 0xfe. They must pop
+ * with another header, 0x80 as the legacy clients do, or they are taken
+ * for framed clients and wait for a version byte that never comes.
+ */
+public final class StackProtocol {
+
+	public static final int MAGIC = 0xfe;
+	public static final int VERSION = 1;
+	public static final int HEADER_BYTES = 9; // length, code, id
+	public static final int DEFAULT_MAX_PAYLOAD = 64 * 1024;
+
+	// request ops
+	public static final int PUSH = 1;
+	public static final int POP = 2;
+	public static final int PUSH_N = 3;
+	public static final int POP_N = 4;
+
+	// response statuses
+	public static final int OK = 0;
+	public static final int TIMEOUT = 1;
+	public static final int TOO_LARGE = 2;
+	public static final int BAD_REQUEST = 3;
+
+	private StackProtocol() {
+	}
+}
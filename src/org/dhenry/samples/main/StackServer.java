@@ -3,53 +3,177 @@ package org.dhenry.samples.main;
 import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
 import java.io.DataInputStream;
+import java.io.EOFException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.net.InetSocketAddress;
-import java.net.ServerSocket;
-import java.net.Socket;
-import java.net.SocketTimeoutException;
-import java.util.Comparator;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Deque;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Queue;
-import java.util.concurrent.LinkedBlockingDeque;
-import java.util.concurrent.PriorityBlockingQueue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.LongAdder;
-import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.Condition;
 import java.util.concurrent.locks.ReentrantLock;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
+/**
+ * A bounded stack of messages served over TCP. Legacy clients do one
+ * operation per connection. The first byte is the header: with the high bit set the
+ * client pops and gets back a length byte and the message, otherwise the
+ * low 7 bits are the length of the message that follows, to push, and the
+ * client gets back a 0 byte. A legacy pop passes over messages from framed
+ * clients too long for its length byte, leaving them in place. A push to a full stack waits for a pop and a
+ * pop from an empty one for a push, up to 30 seconds after which the
+ * connection is closed without an answer. When too many connections are
+ * open a new one gets 0xff and is closed. Framed clients keep their
+ * connection and send many requests over it, see StackProtocol; they start
+ * with StackProtocol.MAGIC, so a legacy pop must not use that header.
+ *
+ * The stack itself is a lock-free BoundedStack; pushes and pops only take
+ * a lock when they have to wait or when others are waiting.
+ *
+ * Connections are served by a few event loop threads, each with its own
+ * selector; a waiting push or pop is a pending operation in a queue, not a
+ * blocked thread, so thousands of clients can wait on a handful of cores.
+ * Alternatively each connection gets a thread of its own, a virtual thread
+ * where the JDK has them, with plain blocking I/O; a waiting one parks on a
+ * lock condition rather than a monitor so it doesn't pin its carrier.
+ */
 public class StackServer {
 
 	public static final int STACK_MAX_SIZE = 100;
 	public static final int CONN_MAX_COUNT = 100;
+	// requests one framed connection may have waiting, it isn't read from while there are this many
+	public static final int WAITING_MAX_COUNT = 64;
 	public static final long TEN_MINUTES_IN_MS = 10 * 60 * 1000;
-	
+	public static final int DEFAULT_PORT = 8080;
+
 	private static final Logger log = Logger.getLogger(StackServer.class.getName());
-	
-	private Deque<Message> stack = new LinkedBlockingDeque<>();
-	private Queue<ConnWaitingState> waitingQueue =
-		new PriorityBlockingQueue<>(STACK_MAX_SIZE, getStateAgeComparator());
-	private Server server;
-	private LongAdder stackSize; // instead of stack.size which is not a constant-time op.
+	private static final long TIMEOUT_MS = 30000;
+	private static final long IDLE_TIMEOUT_MS = TEN_MINUTES_IN_MS; // framed connections
+	private static final int ACCEPT_BACKLOG = 1024;
+	private static final int PUSH_OK = 0;
+	private static final int BUSY = 0xff;
+	private static final int LEGACY_MAX_BYTES = 0x7f; // what a legacy length byte holds
+
+	private final BoundedStack<Message> stack = new BoundedStack<>(STACK_MAX_SIZE);
+	// the operations waiting on the stack, guarded by stackLock, and how
+	// many there are for a look without it
+	private final ReentrantLock stackLock = new ReentrantLock();
+	private final Deque<PendingOp> pendingPushes = new ArrayDeque<>();
+	private final Queue<PendingOp> pendingPops = new ArrayDeque<>();
+	private final AtomicInteger waitingPushes = new AtomicInteger();
+	private final AtomicInteger waitingPops = new AtomicInteger();
 	private LongAdder connCount;
-	private Object pushBlockLock = new Object();
-	private Object popBlockLock = new Object();
-	private boolean running = true;
-	
+	private final int maxConnections;
+	private final int maxPayload;
+	private Server server;
+	private EventLoop[] loops;
+	private ExecutorService handlers; // thread per connection, or null for the event loops
+	private volatile boolean running = true;
+
 	public StackServer() {
-		stackSize = new LongAdder();
+		this(DEFAULT_PORT, Math.min(4, Runtime.getRuntime().availableProcessors()), CONN_MAX_COUNT);
+	}
+
+	/**
+	 * @param port 0 for any free port, see getPort
+	 * @param eventLoops threads serving the connections
+	 * @param maxConnections connections open at once, more are told busy
+	 */
+	public StackServer(int port, int eventLoops, int maxConnections) {
+		this(port, eventLoops, maxConnections, false);
+	}
+
+	/**
+	 * @param threadPerConnection serve each connection on a thread of its
+	 * own, virtual if available, instead of on the event loops
+	 */
+	public StackServer(int port, int eventLoops, int maxConnections, boolean threadPerConnection) {
+		this(port, eventLoops, maxConnections, threadPerConnection, StackProtocol.DEFAULT_MAX_PAYLOAD);
+	}
+
+	/**
+	 * @param maxPayload longest message taken from framed clients
+	 */
+	public StackServer(int port, int eventLoops, int maxConnections, boolean threadPerConnection,
+			int maxPayload) {
+		this.maxConnections = maxConnections;
+		this.maxPayload = maxPayload;
 		connCount = new LongAdder();
-		server = new Server();
+		if (threadPerConnection) {
+			handlers = newThreadPerTaskExecutor();
+			loops = new EventLoop[0];
+		} else {
+			loops = new EventLoop[Math.max(1, eventLoops)];
+			for (int i = 0; i < loops.length; i++) {
+				loops[i] = new EventLoop(i);
+			}
+		}
+		server = new Server(port);
 		server.setDaemon(true);
 	}
-	
+
+	/**
+	 * Virtual threads need JDK 21, looked up so this still runs on older
+	 * ones, with a platform thread per connection.
+	 */
+	private static ExecutorService newThreadPerTaskExecutor() {
+		try {
+			return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+		} catch (ReflectiveOperationException ex) {
+			log.warning("no virtual threads in this JDK, using a platform thread per connection");
+			return Executors.newCachedThreadPool(task -> {
+				Thread thread = new Thread(task, "stack-server-handler");
+				thread.setDaemon(true);
+				return thread;
+			});
+		}
+	}
+
 	public void run() {
+		for (EventLoop loop : loops) {
+			loop.start();
+		}
 		server.start();
 	}
 
+	/**
+	 * @return the port listened on, -1 if binding failed
+	 */
+	public int getPort() {
+		return server.srvchannel == null ? -1 : server.srvchannel.socket().getLocalPort();
+	}
+
+	public int getSize() {
+		return stack.size();
+	}
+
+	public int getConnectionCount() {
+		return connCount.intValue();
+	}
+
 	private class Message {
 
 		byte[] data;
@@ -58,194 +182,1075 @@ public class StackServer {
 			this.data = data;
 		}
 	}
-	
-	private class ConnWaitingState {
-		
-		long createTime;
-		Lock lock;
 
-		public ConnWaitingState() {
-			lock = new ReentrantLock();
-			createTime = System.currentTimeMillis();
+	/**
+	 * A push or pop waiting for room or for a message. A push carries its
+	 * messages, which all go on the stack together, the last on top; a pop
+	 * takes up to count of them once there are any. done is called once
+	 * it went through, with the messages popped for a pop, top first,
+	 * possibly on another connection's thread.
+	 */
+	private abstract class PendingOp {
+
+		final List<Message> messages; // null for a pop
+		final int count;
+		int maxBytes = Integer.MAX_VALUE; // longest message a pop takes
+
+		PendingOp(List<Message> messages) {
+			this.messages = messages;
+			this.count = messages.size();
 		}
+
+		PendingOp(int count) {
+			this.messages = null;
+			this.count = count;
+		}
+
+		abstract void done(List<Message> popped);
 	}
 
-	private void handlePush(int header, InputStream in, OutputStream out) throws IOException {
-		connCount.increment();
-		byte[] data = new byte[header & 0x7f];
-		DataInputStream din = new DataInputStream(in);
-		din.readFully(data);
-		Message m = new Message(data);
-		ConnWaitingState state = new ConnWaitingState();
-		waitingQueue.offer(state);
-		int status = 0;
-		synchronized (pushBlockLock) {
-			while (stackSize.intValue() >= STACK_MAX_SIZE) {
-				try {
-					status = din.read();
-				} catch (SocketTimeoutException ex) {
-					status = -1;
-				}
-				log.log(Level.INFO, "push status: " + status);
-				if (status != -1) {
-					try {
-						pushBlockLock.wait();
-					} catch (InterruptedException e) { break; }
-				} else break;
+	/**
+	 * Pushes all of op's messages in one go, which must be at most
+	 * STACK_MAX_SIZE. With nobody waiting that is a push onto the
+	 * lock-free stack; the lock is only taken to line op up behind waiting
+	 * pushes or to hand messages to waiting pops.
+	 *
+	 * @return true if they were pushed, false if there isn't room for all
+	 * of them and op waits for pops
+	 */
+	private boolean push(PendingOp op) {
+		if (waitingPushes.get() == 0 && stack.pushAll(op.messages)) {
+			if (waitingPops.get() > 0) {
+				settle();
 			}
+			return true;
 		}
-		if (status != -1) {
-			stackSize.increment();
-			stack.push(m);
-			synchronized (popBlockLock) {
-				popBlockLock.notifyAll();
+		Completions completions = new Completions();
+		boolean pushed;
+		stackLock.lock();
+		try {
+			pushed = pendingPushes.isEmpty() && stack.pushAll(op.messages);
+			if (!pushed) {
+				pendingPushes.add(op);
+				waitingPushes.incrementAndGet();
 			}
-			out.write(0);
-			out.flush();
-			out.close();
-			waitingQueue.remove(state);
-			connCount.decrement();
+			settle(completions);
+		} finally {
+			stackLock.unlock();
 		}
+		completions.run();
+		return pushed;
 	}
 
-	private void handlePop(int header, InputStream in, OutputStream out) throws IOException {
-		connCount.increment();
-		ConnWaitingState state = new ConnWaitingState();
-		waitingQueue.offer(state);
-		int status = 0;
-		synchronized (popBlockLock) {
-			while (stackSize.intValue() == 0) {
-				try {
-					status = in.read();
-				} catch (SocketTimeoutException ex) {
-					status = -1;
+	/**
+	 * Pops up to op.count messages in one go, lock-free like push unless
+	 * someone waits.
+	 *
+	 * @return the popped messages, top first, null if the stack is empty
+	 * and op waits for a push
+	 */
+	private List<Message> pop(PendingOp op) {
+		List<Message> popped;
+		// a pop that may have to pass over messages does so under the lock
+		if (waitingPops.get() == 0 && op.maxBytes == Integer.MAX_VALUE
+				&& (popped = stack.popAll(op.count)) != null) {
+			if (waitingPushes.get() > 0) {
+				settle();
+			}
+			return popped;
+		}
+		Completions completions = new Completions();
+		stackLock.lock();
+		try {
+			popped = pendingPops.isEmpty() ? take(op) : null;
+			if (popped == null) {
+				pendingPops.add(op);
+				waitingPops.incrementAndGet();
+			}
+			settle(completions);
+		} finally {
+			stackLock.unlock();
+		}
+		completions.run();
+		return popped;
+	}
+
+	private void settle() {
+		Completions completions = new Completions();
+		stackLock.lock();
+		try {
+			settle(completions);
+		} finally {
+			stackLock.unlock();
+		}
+		completions.run();
+	}
+
+	/**
+	 * Lets in the waiting pushes there is room for and feeds the waiting
+	 * pops, in the order they came, until neither can go on; a pop that
+	 * finds nothing short enough for it doesn't hold up those behind it.
+	 * Called holding stackLock, after the waiting counts are raised: a push
+	 * or pop that went straight to the stack meanwhile either shows up here
+	 * or sees the count and settles again.
+	 */
+	private void settle(Completions completions) {
+		boolean progress = true;
+		while (progress) {
+			progress = false;
+			while (!pendingPushes.isEmpty() && stack.pushAll(pendingPushes.peek().messages)) {
+				completions.add(pendingPushes.poll(), null);
+				progress = true;
+			}
+			for (Iterator<PendingOp> it = pendingPops.iterator(); it.hasNext() && !stack.isEmpty();) {
+				PendingOp op = it.next();
+				List<Message> popped = take(op);
+				if (popped != null) {
+					it.remove();
+					completions.add(op, popped);
+					progress = true;
 				}
-				if (status != -1) {
-					try {
-						popBlockLock.wait();
-					} catch (InterruptedException e) { break; }
-				} else break;
-			}
-		}
-		if (status != -1) {
-			Message m = stack.pop();
-			synchronized (pushBlockLock) {
-				pushBlockLock.notifyAll();
-			}
-			OutputStream bout = new BufferedOutputStream(out);
-			bout.write(m.data.length);
-			bout.write(m.data);
-			bout.flush();
-			bout.close();
-			stackSize.decrement();
-			waitingQueue.remove(state);
-			connCount.decrement();
+			}
 		}
+		waitingPushes.set(pendingPushes.size());
+		waitingPops.set(pendingPops.size());
 	}
 
-	private void handleBusy(OutputStream out) throws IOException {
-		ConnWaitingState state = new ConnWaitingState();
-		state.lock.lock();
-		waitingQueue.offer(state);
-		out.write(0xff);
-		out.flush();
-		out.close();
+	/**
+	 * Pops for op, holding stackLock. Messages longer than op.maxBytes are
+	 * passed over and put back, so one a legacy client can't take doesn't
+	 * keep it from those below.
+	 *
+	 * @return the popped messages, top first, null if there are none it
+	 * can take
+	 */
+	private List<Message> take(PendingOp op) {
+		List<Message> popped = stack.popAll(op.count);
+		if (popped == null || op.maxBytes == Integer.MAX_VALUE) {
+			return popped;
+		}
+		List<Message> passed = new ArrayList<>();
+		while (popped != null && popped.get(0).data.length > op.maxBytes) {
+			passed.add(popped.get(0));
+			popped = stack.popAll(1);
+		}
+		if (!passed.isEmpty()) {
+			Collections.reverse(passed);
+			if (!stack.pushAll(passed)) {
+				// a push straight to the stack took their places, they go back first thing
+				pendingPushes.addFirst(new PendingOp(passed) {
+					void done(List<Message> popped) {
+					}
+				});
+			}
+		}
+		return popped;
+	}
+
+	/**
+	 * Ops that went through while the lock was held, finished once it is
+	 * released.
+	 */
+	private static class Completions {
+
+		private final List<PendingOp> ops = new ArrayList<>();
+		private final List<List<Message>> popped = new ArrayList<>();
+
+		void add(PendingOp op, List<Message> messages) {
+			ops.add(op);
+			popped.add(messages);
+		}
+
+		void run() {
+			for (int i = 0; i < ops.size(); i++) {
+				ops.get(i).done(popped.get(i));
+			}
+		}
 	}
 
-	private Comparator<ConnWaitingState> getStateAgeComparator() {
-		return new Comparator<ConnWaitingState>() {
+	/**
+	 * @return true if op was still waiting and now won't go through, false if
+	 * it already did and done is or will be called
+	 */
+	private boolean cancel(PendingOp op) {
+		stackLock.lock();
+		try {
+			if (pendingPushes.remove(op)) {
+				waitingPushes.decrementAndGet();
+				return true;
+			}
+			if (pendingPops.remove(op)) {
+				waitingPops.decrementAndGet();
+				return true;
+			}
+			return false;
+		} finally {
+			stackLock.unlock();
+		}
+	}
 
-			@Override
-			public int compare(ConnWaitingState o1, ConnWaitingState o2) {
-				return -Long.compare(o1.createTime, o2.createTime);
+	/**
+	 * Puts back messages popped for a client that went away before it got
+	 * them, in their old order; if the stack filled up meanwhile they wait
+	 * like any other push.
+	 */
+	private void restore(List<Message> popped) {
+		List<Message> messages = new ArrayList<>(popped);
+		Collections.reverse(messages);
+		push(new PendingOp(messages) {
+			void done(List<Message> popped) {
 			}
-		};
+		});
+	}
+
+	private static byte[] frame(int code, int id, byte[] payload) {
+		int length = StackProtocol.HEADER_BYTES - 4 + (payload == null ? 0 : payload.length);
+		ByteBuffer frame = ByteBuffer.allocate(4 + length);
+		frame.putInt(length).put((byte) code).putInt(id);
+		if (payload != null) {
+			frame.put(payload);
+		}
+		return frame.array();
 	}
 
-	private boolean checkConnCountIsOK() {
-		boolean ok = true;
-		if (connCount.intValue() >= CONN_MAX_COUNT) {
-			ok = false;
-			ConnWaitingState state = waitingQueue.peek();
-			if (state != null && state.createTime <= System.currentTimeMillis() - TEN_MINUTES_IN_MS) {
-				state = waitingQueue.poll();
-				state.lock.unlock();
-				ok = true;
+	private static ByteBuffer frameBuffer(int code, int id, byte[] payload) {
+		return ByteBuffer.wrap(frame(code, id, payload));
+	}
+
+	/**
+	 * @return the payload of a framed response to a pop
+	 */
+	private static byte[] popResponse(int code, List<Message> popped) {
+		if (code == StackProtocol.POP) {
+			return popped.get(0).data;
+		}
+		int length = 0;
+		for (Message m : popped) {
+			length += 4 + m.data.length;
+		}
+		ByteBuffer payload = ByteBuffer.allocate(length);
+		for (Message m : popped) {
+			payload.putInt(m.data.length).put(m.data);
+		}
+		return payload.array();
+	}
+
+	/**
+	 * Reads the messages of a PUSH_N.
+	 *
+	 * @return null if there are none, more than fit on the stack, or the
+	 * lengths don't add up
+	 */
+	private List<Message> unpackMessages(byte[] payload) {
+		List<Message> messages = new ArrayList<>();
+		ByteBuffer in = ByteBuffer.wrap(payload);
+		while (in.hasRemaining()) {
+			if (in.remaining() < 4 || messages.size() == STACK_MAX_SIZE) {
+				return null;
 			}
+			int length = in.getInt();
+			if (length < 0 || length > in.remaining()) {
+				return null;
+			}
+			byte[] data = new byte[length];
+			in.get(data);
+			messages.add(new Message(data));
 		}
-		return ok;
+		return messages.isEmpty() ? null : messages;
 	}
-	
+
+	/**
+	 * Turns a framed request into the op to push or pop.
+	 *
+	 * @return null if the request is bad
+	 */
+	private List<Message> toPush(int code, byte[] payload) {
+		if (code == StackProtocol.PUSH) {
+			return Collections.singletonList(new Message(payload));
+		}
+		return code == StackProtocol.PUSH_N ? unpackMessages(payload) : null;
+	}
+
+	/**
+	 * @return how many to pop, 0 if the request is no pop or a bad one
+	 */
+	private static int toPop(int code, byte[] payload) {
+		if (code == StackProtocol.POP) {
+			return payload.length == 0 ? 1 : 0;
+		}
+		if (code == StackProtocol.POP_N && payload.length == 4) {
+			return Math.max(0, ByteBuffer.wrap(payload).getInt());
+		}
+		return 0;
+	}
+
+	/**
+	 * @param popped a message for a pop with maxBytes LEGACY_MAX_BYTES
+	 */
+	private static byte[] legacyPopResponse(List<Message> popped) {
+		Message m = popped.get(0);
+		byte[] response = new byte[1 + m.data.length];
+		response[0] = (byte) m.data.length;
+		System.arraycopy(m.data, 0, response, 1, m.data.length);
+		return response;
+	}
+
+
 	public void shutdown() {
 		running = false;
+		server.close();
+		if (handlers != null) {
+			// interrupting a blocked channel read closes the connection
+			handlers.shutdownNow();
+		}
+		for (EventLoop loop : loops) {
+			loop.selector.wakeup();
+		}
 	}
-	
+
 	class Server extends Thread {
-		
-		ServerSocket srvsock;
-		
-		Server() {
+
+		ServerSocketChannel srvchannel;
+		int next;
+
+		Server(int port) {
+			super("stack-server-accept");
 			try {
-				srvsock = new ServerSocket();
-				srvsock.setSoTimeout(30000);
-				srvsock.bind(new InetSocketAddress(8080));
+				srvchannel = ServerSocketChannel.open();
+				srvchannel.bind(new InetSocketAddress(port), ACCEPT_BACKLOG);
 			} catch (IOException ex) {
 				log.log(Level.WARNING, "server socket", ex);
+				srvchannel = null;
 			}
 		}
-		
+
 		public void run() {
-			while (running) {
+			while (running && srvchannel != null) {
 				try {
-					Socket sock = srvsock.accept();
-					sock.setSoTimeout(30000);
-					Handler handler = new Handler();
-					handler.handle(sock);
+					SocketChannel channel = srvchannel.accept();
+					if (connCount.intValue() >= maxConnections) {
+						handleBusy(channel);
+						continue;
+					}
+					connCount.increment();
+					if (handlers != null) {
+						handlers.execute(new Handler(channel));
+						continue;
+					}
+					channel.configureBlocking(false);
+					channel.socket().setTcpNoDelay(true);
+					EventLoop loop = loops[next++ % loops.length];
+					loop.execute(() -> loop.register(channel));
+				} catch (ClosedChannelException ex) {
+					break;
 				} catch (IOException ex) {
 					log.log(Level.WARNING, "accept", ex);
 				}
 			}
+		}
+
+		private void handleBusy(SocketChannel channel) {
 			try {
-				srvsock.close();
+				channel.write(ByteBuffer.wrap(new byte[] {(byte) BUSY}));
 			} catch (IOException ex) {
+				log.log(Level.FINE, "busy", ex);
+			} finally {
+				try {
+					channel.close();
+				} catch (IOException ex) {
+				}
 			}
 		}
-		
-		class Handler extends Thread {
-			
-			public void handle(Socket sock) {
-				int type = -1;
+
+		void close() {
+			if (srvchannel != null) {
 				try {
-					InputStream  in = new BufferedInputStream(sock.getInputStream());
-					int header = in.read();
-					if (checkConnCountIsOK()) {
-						log.log(Level.INFO, "result of header & 0x80: " + (header & 0x80));
-						if ((header & 0x80) == 0x80) {
-							handlePop(header, in, sock.getOutputStream());
-							type = 2;
-						} else {
-							handlePush(header, in, sock.getOutputStream());
-							type = 1;
+					srvchannel.close();
+				} catch (IOException ex) {
+				}
+			}
+		}
+	}
+
+	/**
+	 * A push or pop waited for by a thread.
+	 */
+	private class Waiter extends PendingOp {
+
+		private final ReentrantLock lock = new ReentrantLock();
+		private final Condition finished = lock.newCondition();
+		private boolean done;
+		private boolean abandoned;
+		private List<Message> popped;
+
+		Waiter(List<Message> messages) {
+			super(messages);
+		}
+
+		Waiter(int count) {
+			super(count);
+		}
+
+		void done(List<Message> popped) {
+			lock.lock();
+			try {
+				this.popped = popped;
+				done = true;
+				finished.signal();
+			} finally {
+				lock.unlock();
+			}
+		}
+
+		/**
+		 * Makes await give up now, e.g. when the client went away.
+		 */
+		void abandon() {
+			lock.lock();
+			try {
+				abandoned = true;
+				finished.signal();
+			} finally {
+				lock.unlock();
+			}
+		}
+
+		/**
+		 * @return true once the op went through, false if it is given up
+		 * after timeoutMillis, on abandon or on interrupt
+		 */
+		boolean await(long timeoutMillis) {
+			long nanos = TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+			lock.lock();
+			try {
+				while (!done && !abandoned && nanos > 0) {
+					try {
+						nanos = finished.awaitNanos(nanos);
+					} catch (InterruptedException ex) {
+						Thread.currentThread().interrupt();
+						break;
+					}
+				}
+				if (done) {
+					return true;
+				}
+			} finally {
+				lock.unlock();
+			}
+			if (cancel(this)) {
+				return false;
+			}
+			// it went through just now, done is on its way
+			lock.lock();
+			try {
+				while (!done) {
+					finished.awaitUninterruptibly();
+				}
+				return true;
+			} finally {
+				lock.unlock();
+			}
+		}
+	}
+
+	/**
+	 * Serves one connection on its own thread with blocking I/O. A framed
+	 * request that has to wait is handed to a thread of its own, so the
+	 * connection's thread goes on reading the requests behind it.
+	 */
+	class Handler implements Runnable {
+
+		final SocketChannel channel;
+		private final ReentrantLock writeLock = new ReentrantLock();
+		private final Set<Waiter> waiting = ConcurrentHashMap.newKeySet();
+		private final Semaphore waitingSlots = new Semaphore(WAITING_MAX_COUNT);
+		private OutputStream out;
+
+		Handler(SocketChannel channel) {
+			this.channel = channel;
+		}
+
+		public void run() {
+			try {
+				channel.socket().setTcpNoDelay(true);
+				channel.socket().setSoTimeout((int) TIMEOUT_MS);
+				DataInputStream in = new DataInputStream(new BufferedInputStream(channel.socket().getInputStream()));
+				out = new BufferedOutputStream(channel.socket().getOutputStream());
+				int header = in.read();
+				// also a legacy pop header, those clients send 0x80 instead, see StackProtocol
+				if (header == StackProtocol.MAGIC) {
+					serveFramed(in);
+				} else if (header >= 0) {
+					serveLegacy(header, in);
+				}
+			} catch (IOException ex) {
+				log.log(Level.FINE, "connection", ex);
+			} finally {
+				for (Waiter waiter : waiting) {
+					waiter.abandon();
+				}
+				try {
+					channel.close();
+				} catch (IOException ex) {
+				}
+				connCount.decrement();
+			}
+		}
+
+		private void serveLegacy(int header, DataInputStream in) throws IOException {
+			List<Message> popped = null;
+			try {
+				if ((header & 0x80) == 0x80) {
+					Waiter waiter = new Waiter(1);
+					waiter.maxBytes = LEGACY_MAX_BYTES;
+					popped = pop(waiter);
+					if (popped == null) {
+						if (!waiter.await(TIMEOUT_MS)) {
+							return;
 						}
+						popped = waiter.popped;
+					}
+					out.write(legacyPopResponse(popped));
+					out.flush();
+					popped = null;
+				} else {
+					byte[] data = new byte[header];
+					in.readFully(data);
+					Waiter waiter = new Waiter(Collections.singletonList(new Message(data)));
+					if (!push(waiter) && !waiter.await(TIMEOUT_MS)) {
+						return;
+					}
+					out.write(PUSH_OK);
+					out.flush();
+				}
+				log.fine(String.format("size %d conns %d header %d", stack.size(), connCount.intValue(), header));
+			} finally {
+				if (popped != null) {
+					restore(popped);
+				}
+			}
+		}
+
+		private void serveFramed(DataInputStream in) throws IOException {
+			in.readUnsignedByte(); // the client's version, all speak ours so far
+			send(new byte[] {(byte) StackProtocol.MAGIC, StackProtocol.VERSION});
+			channel.socket().setSoTimeout((int) IDLE_TIMEOUT_MS);
+			while (true) {
+				// read no further while WAITING_MAX_COUNT requests wait
+				waitingSlots.acquireUninterruptibly();
+				waitingSlots.release();
+				int length;
+				try {
+					length = in.readInt();
+				} catch (EOFException ex) {
+					return;
+				}
+				if (length < StackProtocol.HEADER_BYTES - 4) {
+					log.fine("bad frame length " + length);
+					return;
+				}
+				int code = in.readUnsignedByte();
+				int id = in.readInt();
+				int payload = length - (StackProtocol.HEADER_BYTES - 4);
+				if (payload > maxPayload) {
+					while (payload > 0) {
+						int skipped = in.skipBytes(payload);
+						if (skipped == 0) {
+							in.readByte(); // blocks for more, or EOFException once the client is gone
+							skipped = 1;
+						}
+						payload -= skipped;
+					}
+					send(frame(StackProtocol.TOO_LARGE, id, null));
+					continue;
+				}
+				byte[] data = new byte[payload];
+				in.readFully(data);
+				List<Message> messages = toPush(code, data);
+				int count = toPop(code, data);
+				if (messages != null) {
+					Waiter waiter = new Waiter(messages);
+					if (push(waiter)) {
+						send(frame(StackProtocol.OK, id, null));
+					} else {
+						waitFor(waiter, code, id);
+					}
+				} else if (count > 0) {
+					Waiter waiter = new Waiter(count);
+					List<Message> popped = pop(waiter);
+					if (popped != null) {
+						sendPopped(code, id, popped);
+					} else {
+						waitFor(waiter, code, id);
+					}
+				} else {
+					send(frame(StackProtocol.BAD_REQUEST, id, null));
+				}
+			}
+		}
+
+		/**
+		 * Only called with a place free, serveFramed waits for one before
+		 * reading a request.
+		 */
+		private void waitFor(Waiter waiter, int code, int id) {
+			waitingSlots.acquireUninterruptibly();
+			waiting.add(waiter);
+			Runnable task = () -> {
+				boolean ok = waiter.await(TIMEOUT_MS);
+				waiting.remove(waiter);
+				waitingSlots.release();
+				try {
+					if (!ok) {
+						send(frame(StackProtocol.TIMEOUT, id, null));
+					} else if (waiter.messages == null) {
+						sendPopped(code, id, waiter.popped);
 					} else {
-						handleBusy(sock.getOutputStream());
-						type = 3;
+						send(frame(StackProtocol.OK, id, null));
 					}
-					log.info(String.format("size %d conns %d type %d", new Object[] {stackSize.intValue(), connCount.intValue(), type}));
 				} catch (IOException ex) {
-					log.log(Level.WARNING, "connection", ex);
-				} finally {
-					try {
-						sock.close();
-					} catch (IOException ex) {
+					log.log(Level.FINE, "connection", ex);
+				}
+			};
+			try {
+				handlers.execute(task);
+			} catch (RejectedExecutionException ex) {
+				// shutting down
+				waiter.abandon();
+				task.run();
+			}
+		}
+
+		private void sendPopped(int code, int id, List<Message> popped) throws IOException {
+			boolean sent = false;
+			try {
+				send(frame(StackProtocol.OK, id, popResponse(code, popped)));
+				sent = true;
+			} finally {
+				if (!sent) {
+					restore(popped);
+				}
+			}
+		}
+
+		private void send(byte[] bytes) throws IOException {
+			writeLock.lock();
+			try {
+				out.write(bytes);
+				out.flush();
+			} finally {
+				writeLock.unlock();
+			}
+		}
+	}
+
+	/**
+	 * Serves its connections: all their reads, writes and state changes
+	 * happen on this thread. Other threads hand it work through execute.
+	 */
+	class EventLoop extends Thread {
+
+		final Selector selector;
+		final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+		final Set<Connection> connections = new HashSet<>();
+
+		EventLoop(int no) {
+			super("stack-server-loop-" + no);
+			setDaemon(true);
+			try {
+				selector = Selector.open();
+			} catch (IOException ex) {
+				throw new IllegalStateException("selector", ex);
+			}
+		}
+
+		void execute(Runnable task) {
+			tasks.add(task);
+			if (Thread.currentThread() != this) {
+				selector.wakeup();
+			}
+		}
+
+		void register(SocketChannel channel) {
+			Connection conn = new Connection(this, channel);
+			try {
+				conn.key = channel.register(selector, SelectionKey.OP_READ, conn);
+				connections.add(conn);
+			} catch (IOException ex) {
+				log.log(Level.WARNING, "register", ex);
+				conn.close();
+			}
+		}
+
+		public void run() {
+			long nextExpiry = System.currentTimeMillis() + 1000;
+			while (running) {
+				try {
+					// tasks queued by this thread itself, e.g. a pop its own push
+					// completed, didn't wake the selector
+					if (tasks.isEmpty()) {
+						selector.select(1000);
+					} else {
+						selector.selectNow();
+					}
+				} catch (IOException ex) {
+					log.log(Level.WARNING, "select", ex);
+				}
+				Runnable task;
+				while ((task = tasks.poll()) != null) {
+					task.run();
+				}
+				Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+				while (keys.hasNext()) {
+					SelectionKey key = keys.next();
+					keys.remove();
+					Connection conn = (Connection) key.attachment();
+					if (key.isValid() && key.isReadable()) {
+						conn.read();
+					}
+					if (key.isValid() && key.isWritable()) {
+						conn.write();
+					}
+				}
+				long now = System.currentTimeMillis();
+				if (now >= nextExpiry) {
+					nextExpiry = now + 1000;
+					for (Connection conn : new ArrayList<>(connections)) {
+						conn.expire(now);
+					}
+				}
+			}
+			for (Connection conn : new ArrayList<>(connections)) {
+				conn.close();
+			}
+			try {
+				selector.close();
+			} catch (IOException ex) {
+			}
+		}
+	}
+
+	/**
+	 * One client: reads its requests, pushes or pops, possibly waiting, and
+	 * writes the answers. A legacy client sends one request and is closed
+	 * once answered; a framed one keeps its connection until it closes it or
+	 * stays idle too long. Only touched by its event loop.
+	 */
+	class Connection {
+
+		private static final int UNKNOWN = 0;
+		private static final int LEGACY = 1;
+		private static final int FRAMED = 2;
+
+		final EventLoop loop;
+		final SocketChannel channel;
+		SelectionKey key;
+		ByteBuffer in = ByteBuffer.allocate(256);
+		final Queue<ByteBuffer> out = new ArrayDeque<>();
+		// requests waiting for room or a message, or answered too late to cancel
+		final List<Op> waiting = new ArrayList<>();
+		int protocol = UNKNOWN;
+		boolean taken; // a legacy request was read
+		boolean closeWhenWritten;
+		int skip; // rest of a frame too large to take
+		long idleSince = System.currentTimeMillis();
+		boolean closed;
+
+		class Op extends PendingOp {
+
+			final int id;
+			final long deadline = System.currentTimeMillis() + TIMEOUT_MS;
+
+			final int code;
+
+			Op(int code, int id, List<Message> messages) {
+				super(messages);
+				this.code = code;
+				this.id = id;
+			}
+
+			Op(int code, int id, int count) {
+				super(count);
+				this.code = code;
+				this.id = id;
+			}
+
+			void done(List<Message> popped) {
+				loop.execute(() -> completed(this, popped));
+			}
+		}
+
+		Connection(EventLoop loop, SocketChannel channel) {
+			this.loop = loop;
+			this.channel = channel;
+		}
+
+		void read() {
+			int n;
+			try {
+				n = channel.read(in);
+			} catch (IOException ex) {
+				log.log(Level.FINE, "read", ex);
+				n = -1;
+			}
+			if (n < 0) {
+				close();
+				return;
+			}
+			idleSince = System.currentTimeMillis();
+			take();
+			write();
+		}
+
+		/**
+		 * Takes the requests read so far, as many as it may.
+		 */
+		private void take() {
+			in.flip();
+			while (!closed && parse()) {
+			}
+			in.compact();
+			if (protocol == FRAMED && !in.hasRemaining() && in.position() >= 4
+					&& 4 + in.getInt(0) > in.capacity()) {
+				// a frame bigger than the buffer, grow it to fit
+				ByteBuffer bigger = ByteBuffer.allocate(4 + in.getInt(0));
+				in.flip();
+				bigger.put(in);
+				in = bigger;
+			}
+		}
+
+		/**
+		 * Takes what it can from in, which is ready to read.
+		 *
+		 * @return true if it may take more
+		 */
+		private boolean parse() {
+			if (skip > 0) {
+				int n = Math.min(skip, in.remaining());
+				in.position(in.position() + n);
+				skip -= n;
+				return skip == 0;
+			}
+			if (!in.hasRemaining()) {
+				return false;
+			}
+			if (protocol == UNKNOWN) {
+				// also a legacy pop header, those clients send 0x80 instead, see StackProtocol
+				if ((in.get(in.position()) & 0xff) != StackProtocol.MAGIC) {
+					protocol = LEGACY;
+				} else if (in.remaining() < 2) {
+					return false;
+				} else {
+					in.get();
+					in.get(); // the client's version, all speak ours so far
+					protocol = FRAMED;
+					out.add(ByteBuffer.wrap(new byte[] {(byte) StackProtocol.MAGIC, StackProtocol.VERSION}));
+					return true;
+				}
+			}
+			if (protocol == LEGACY) {
+				parseLegacy();
+				return false;
+			}
+			return parseFrame();
+		}
+
+		private void parseLegacy() {
+			if (taken) {
+				// nothing more is expected, waiting only watches for the client going away
+				in.position(in.limit());
+				return;
+			}
+			int first = in.get(in.position()) & 0xff;
+			if ((first & 0x80) == 0x80) {
+				in.position(in.limit());
+				taken = true;
+				Op op = new Op(StackProtocol.POP, -1, 1);
+				op.maxBytes = LEGACY_MAX_BYTES;
+				handlePop(op);
+			} else if (in.remaining() >= 1 + first) {
+				in.get();
+				byte[] data = new byte[first];
+				in.get(data);
+				in.position(in.limit());
+				taken = true;
+				handlePush(new Op(StackProtocol.PUSH, -1, Collections.singletonList(new Message(data))));
+			}
+		}
+
+		private boolean parseFrame() {
+			if (in.remaining() < 4 || waiting.size() >= WAITING_MAX_COUNT) {
+				return false;
+			}
+			int length = in.getInt(in.position());
+			int payload = length - (StackProtocol.HEADER_BYTES - 4);
+			if (payload < 0) {
+				log.fine("bad frame length " + length);
+				close();
+				return false;
+			}
+			if (in.remaining() < StackProtocol.HEADER_BYTES
+					|| payload <= maxPayload && in.remaining() < 4 + length) {
+				return false;
+			}
+			in.getInt();
+			int code = in.get() & 0xff;
+			int id = in.getInt();
+			if (payload > maxPayload) {
+				out.add(frameBuffer(StackProtocol.TOO_LARGE, id, null));
+				skip = payload;
+				return true;
+			}
+			byte[] data = new byte[payload];
+			in.get(data);
+			List<Message> messages = toPush(code, data);
+			int count = toPop(code, data);
+			if (messages != null) {
+				handlePush(new Op(code, id, messages));
+			} else if (count > 0) {
+				handlePop(new Op(code, id, count));
+			} else {
+				out.add(frameBuffer(StackProtocol.BAD_REQUEST, id, null));
+			}
+			return true;
+		}
+
+		private void handlePush(Op op) {
+			if (push(op)) {
+				answer(op, null);
+			} else {
+				waiting.add(op);
+			}
+		}
+
+		private void handlePop(Op op) {
+			List<Message> popped = pop(op);
+			if (popped != null) {
+				answer(op, popped);
+			} else {
+				waiting.add(op);
+			}
+		}
+
+		private void completed(Op op, List<Message> popped) {
+			if (closed || !waiting.remove(op)) {
+				if (popped != null) {
+					restore(popped);
+				}
+				return;
+			}
+			answer(op, popped);
+			// there may be room again for requests left unread
+			take();
+			write();
+		}
+
+		private void answer(Op op, List<Message> popped) {
+			log.fine(String.format("size %d conns %d id %d", stack.size(), connCount.intValue(), op.id));
+			if (protocol == FRAMED) {
+				out.add(frameBuffer(StackProtocol.OK, op.id, popped == null ? null : popResponse(op.code, popped)));
+				return;
+			}
+			closeWhenWritten = true;
+			if (popped == null) {
+				out.add(ByteBuffer.wrap(new byte[] {PUSH_OK}));
+			} else {
+				out.add(ByteBuffer.wrap(legacyPopResponse(popped)));
+			}
+		}
+
+		/**
+		 * Gives up waiting requests past their deadline, and closes the
+		 * connection once idle for too long.
+		 */
+		void expire(long now) {
+			for (Op op : new ArrayList<>(waiting)) {
+				if (now >= op.deadline && cancel(op)) {
+					waiting.remove(op);
+					if (protocol == LEGACY) {
+						log.fine("timed out");
+						close();
+						return;
 					}
+					out.add(frameBuffer(StackProtocol.TIMEOUT, op.id, null));
+					take();
 				}
 			}
+			long idleLimit = protocol == FRAMED ? IDLE_TIMEOUT_MS : TIMEOUT_MS;
+			if (waiting.isEmpty() && out.isEmpty() && now - idleSince >= idleLimit) {
+				log.fine("idle");
+				close();
+				return;
+			}
+			write();
+		}
+
+		/**
+		 * Writes what it can of the answers in one go. While some are left the
+		 * connection doesn't read, so a client that doesn't read its answers
+		 * can't make them pile up; nor while WAITING_MAX_COUNT requests wait.
+		 */
+		void write() {
+			if (closed) {
+				return;
+			}
+			try {
+				if (!out.isEmpty()) {
+					channel.write(out.toArray(new ByteBuffer[0]));
+				}
+			} catch (IOException ex) {
+				log.log(Level.FINE, "write", ex);
+				close();
+				return;
+			}
+			while (!out.isEmpty() && !out.peek().hasRemaining()) {
+				out.poll();
+			}
+			if (!out.isEmpty()) {
+				key.interestOps(SelectionKey.OP_WRITE);
+			} else if (closeWhenWritten) {
+				close();
+			} else {
+				key.interestOps(waiting.size() < WAITING_MAX_COUNT ? SelectionKey.OP_READ : 0);
+			}
+		}
+
+		void close() {
+			if (closed) {
+				return;
+			}
+			closed = true;
+			// a waiting request that already went through is finished by its done
+			for (Op op : waiting) {
+				cancel(op);
+			}
+			waiting.clear();
+			loop.connections.remove(this);
+			if (key != null) {
+				key.cancel();
+			}
+			try {
+				channel.close();
+			} catch (IOException ex) {
+			}
+			connCount.decrement();
 		}
 	}
-	
+
+	/**
+	 * Arguments, all optional: port, event loop threads, max connections,
+	 * threads to serve a thread per connection instead of event loops, max
+	 * framed message bytes.
+	 */
 	public static void main(String[] args) {
-		StackServer s = new StackServer();
+		int port = args.length > 0 ? Integer.parseInt(args[0]) : DEFAULT_PORT;
+		int eventLoops = args.length > 1 ? Integer.parseInt(args[1])
+			: Math.min(4, Runtime.getRuntime().availableProcessors());
+		int maxConnections = args.length > 2 ? Integer.parseInt(args[2]) : CONN_MAX_COUNT;
+		boolean threadPerConnection = args.length > 3 && "threads".equals(args[3]);
+		int maxPayload = args.length > 4 ? Integer.parseInt(args[4]) : StackProtocol.DEFAULT_MAX_PAYLOAD;
+		StackServer s = new StackServer(port, eventLoops, maxConnections, threadPerConnection, maxPayload);
 		s.run();
 		System.out.println("ctrl-c to quit");
 		do {
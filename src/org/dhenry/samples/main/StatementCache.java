@@ -0,0 +1,101 @@
+package org.dhenry.samples.main;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+import com.datastax.driver.core.PreparedStatement;
+import com.datastax.driver.core.Session;
+
+/**
+ * Bounded LRU cache of PreparedStatements keyed by query shape and the period
+ * table the query reads, so repeated reads are a single round trip. Entries
+ * for a table are invalidated when it is dropped.
+ */
+public class StatementCache {
+
+	private final int maxSize;
+	private final Map<Key,PreparedStatement> cache;
+	private final LongAdder hits = new LongAdder();
+	private final LongAdder misses = new LongAdder();
+
+	private static class Key {
+		final String shape;
+		final int periodType;
+		final int tableNo;
+
+		Key(String shape, int periodType, int tableNo) {
+			this.shape = shape;
+			this.periodType = periodType;
+			this.tableNo = tableNo;
+		}
+
+		public int hashCode() {
+			return (shape.hashCode() * 31 + periodType) * 31 + tableNo;
+		}
+
+		public boolean equals(Object o) {
+			if (o instanceof Key) {
+				Key other = (Key)o;
+				return periodType == other.periodType && tableNo == other.tableNo && shape.equals(other.shape);
+			}
+			return false;
+		}
+	}
+
+	public StatementCache(int maxSize) {
+		this.maxSize = maxSize;
+		this.cache = new LinkedHashMap<Key,PreparedStatement>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			protected boolean removeEldestEntry(Map.Entry<Key,PreparedStatement> eldest) {
+				return size() > StatementCache.this.maxSize;
+			}
+		};
+	}
+
+	/**
+	 * @param shape names the query, e.g. "totalUniques"
+	 * @param cql prepared on a miss; must be the same for the same key
+	 */
+	public PreparedStatement get(Session sess, String shape, int periodType, int tableNo, String cql) {
+		Key key = new Key(shape, periodType, tableNo);
+		PreparedStatement ps;
+		synchronized (cache) {
+			ps = cache.get(key);
+		}
+		if (ps != null) {
+			hits.increment();
+			return ps;
+		}
+		misses.increment();
+		// prepare outside the lock, a racing miss just prepares the same statement twice
+		ps = sess.prepare(cql);
+		synchronized (cache) {
+			cache.put(key, ps);
+		}
+		return ps;
+	}
+
+	/** removes every shape cached for the table */
+	public void invalidate(int periodType, int tableNo) {
+		synchronized (cache) {
+			Iterator<Key> it = cache.keySet().iterator();
+			while (it.hasNext()) {
+				Key key = it.next();
+				if (key.periodType == periodType && key.tableNo == tableNo) {
+					it.remove();
+				}
+			}
+		}
+	}
+
+	public long getHitCount() {
+		return hits.sum();
+	}
+
+	public long getMissCount() {
+		return misses.sum();
+	}
+}
@@ -0,0 +1,169 @@
+package org.dhenry.samples.main;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.JMException;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
+import javax.management.MBeanOperationInfo;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.ReflectionException;
+
+/**
+ * Named counters, gauges and latency histograms for UniqueEventTracker and
+ * its store. Counters are LongAdders and histograms LatencyHistograms, so
+ * updating either takes no lock; look them up once and keep the reference
+ * on hot paths. Everything is also a read-only JMX attribute, histograms as
+ * name.count, name.meanMicros, name.p50Micros and so on.
+ */
+public class TrackerMetrics implements DynamicMBean {
+
+	private static final Logger log = Logger.getLogger(TrackerMetrics.class.getName());
+	private static final double[] PERCENTILES = {50, 90, 99, 99.9};
+	private static final String[] PERCENTILE_NAMES = {"p50", "p90", "p99", "p999"};
+
+	private final Map<String,LongAdder> counters = new ConcurrentHashMap<>();
+	private final Map<String,LatencyHistogram> histograms = new ConcurrentHashMap<>();
+	private final Map<String,LongSupplier> gauges = new ConcurrentHashMap<>();
+	private ObjectName registeredName;
+
+	public LongAdder counter(String name) {
+		return counters.computeIfAbsent(name, k -> new LongAdder());
+	}
+
+	public LatencyHistogram histogram(String name) {
+		return histograms.computeIfAbsent(name, k -> new LatencyHistogram());
+	}
+
+	/**
+	 * @param value read each time a snapshot is taken
+	 */
+	public void gauge(String name, LongSupplier value) {
+		gauges.put(name, value);
+	}
+
+	/**
+	 * @return every metric by name, histograms flattened into their
+	 * statistics, in name order
+	 */
+	public SortedMap<String,Long> snapshot() {
+		SortedMap<String,Long> snapshot = new TreeMap<>();
+		for (Map.Entry<String,LongAdder> entry : counters.entrySet()) {
+			snapshot.put(entry.getKey(), entry.getValue().sum());
+		}
+		for (Map.Entry<String,LongSupplier> entry : gauges.entrySet()) {
+			snapshot.put(entry.getKey(), entry.getValue().getAsLong());
+		}
+		for (Map.Entry<String,LatencyHistogram> entry : histograms.entrySet()) {
+			LatencyHistogram.Snapshot histogram = entry.getValue().snapshot();
+			String name = entry.getKey();
+			snapshot.put(name + ".count", histogram.getCount());
+			snapshot.put(name + ".meanMicros", histogram.getMeanMicros());
+			for (int i = 0; i < PERCENTILES.length; i++) {
+				snapshot.put(name + "." + PERCENTILE_NAMES[i] + "Micros", histogram.getPercentileMicros(PERCENTILES[i]));
+			}
+			snapshot.put(name + ".maxMicros", histogram.getMaxMicros());
+		}
+		return snapshot;
+	}
+
+	/**
+	 * @return the snapshot as one name=value line per metric
+	 */
+	public String dump() {
+		StringBuilder sb = new StringBuilder("metrics");
+		for (Map.Entry<String,Long> entry : snapshot().entrySet()) {
+			sb.append('\n').append(entry.getKey()).append('=').append(entry.getValue());
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * Registers with the platform MBean server, e.g.
+	 * org.dhenry.samples:type=UniqueEventTracker,name=events. A name already
+	 * taken (a second tracker in the JVM) is logged and the metrics are then
+	 * only available through snapshot and dump.
+	 */
+	public void register(String objectName) {
+		try {
+			ObjectName name = new ObjectName(objectName);
+			ManagementFactory.getPlatformMBeanServer().registerMBean(this, name);
+			registeredName = name;
+		} catch (JMException ex) {
+			log.log(Level.WARNING, "metrics not registered with JMX as " + objectName, ex);
+		}
+	}
+
+	public void unregister() {
+		if (registeredName == null) {
+			return;
+		}
+		try {
+			MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+			server.unregisterMBean(registeredName);
+		} catch (JMException ex) {
+			log.log(Level.FINE, "unregister metrics", ex);
+		}
+		registeredName = null;
+	}
+
+	public Object getAttribute(String attribute) throws AttributeNotFoundException {
+		Long value = snapshot().get(attribute);
+		if (value == null) {
+			throw new AttributeNotFoundException(attribute);
+		}
+		return value;
+	}
+
+	public AttributeList getAttributes(String[] attributes) {
+		Map<String,Long> snapshot = snapshot();
+		AttributeList list = new AttributeList();
+		for (String attribute : attributes) {
+			Long value = snapshot.get(attribute);
+			if (value != null) {
+				list.add(new Attribute(attribute, value));
+			}
+		}
+		return list;
+	}
+
+	public void setAttribute(Attribute attribute) throws AttributeNotFoundException {
+		throw new AttributeNotFoundException(attribute.getName() + " is read-only");
+	}
+
+	public AttributeList setAttributes(AttributeList attributes) {
+		return new AttributeList();
+	}
+
+	public Object invoke(String actionName, Object[] params, String[] signature) throws ReflectionException {
+		throw new ReflectionException(new NoSuchMethodException(actionName));
+	}
+
+	/**
+	 * Built from a fresh snapshot, so metrics created since the last call
+	 * show up.
+	 */
+	public MBeanInfo getMBeanInfo() {
+		List<MBeanAttributeInfo> attributes = new ArrayList<>();
+		for (String name : snapshot().keySet()) {
+			attributes.add(new MBeanAttributeInfo(name, "long", name, true, false, false));
+		}
+		return new MBeanInfo(getClass().getName(), "UniqueEventTracker metrics",
+			attributes.toArray(new MBeanAttributeInfo[0]), null, new MBeanOperationInfo[0], null);
+	}
+}
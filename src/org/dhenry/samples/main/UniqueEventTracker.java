@@ -4,33 +4,46 @@ import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
-import java.net.InetAddress;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
 import java.sql.SQLException;
+import java.time.Duration;
+import java.time.Instant;
 import java.time.LocalDateTime;
-import java.time.ZoneOffset;
 import java.time.ZonedDateTime;
+import java.time.temporal.ChronoUnit;
 import java.time.temporal.TemporalField;
 import java.time.temporal.WeekFields;
 import java.util.ArrayList;
-import java.util.Deque;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Locale;
-import java.util.NoSuchElementException;
+import java.util.Map;
 import java.util.Properties;
-import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.Set;
+import java.util.SortedSet;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Consumer;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 import org.json.JSONObject;
 
-import com.datastax.driver.core.BoundStatement;
-import com.datastax.driver.core.PreparedStatement;
-import com.datastax.driver.core.ResultSet;
-import com.datastax.driver.core.Row;
-import com.datastax.driver.core.Session;
 import com.datastax.driver.core.exceptions.DriverException;
 
 public class UniqueEventTracker {
@@ -42,6 +55,8 @@ public class UniqueEventTracker {
 	public static int PERIOD_MONTH = 4;
 	
 	private volatile int currentHour = -1;
+	// dayValue, weekValue and monthValue: the calendar day, week and month of the current tables,
+	// saved with the numbers so a restart doesn't take them for a new day and roll again
 	private volatile int currentDay = -1;
 	private volatile int dayValue = -1;
 	private volatile int currentMonth = -1;
@@ -52,48 +67,409 @@ public class UniqueEventTracker {
 	private int maxDays = 10;
 	private int maxWeeks = 10;
 	private int maxMonths = 10;
-	private int oldestHour = -1;
-	private int oldestDay = -1;
-	private int oldestWeek = -1;
-	private int oldestMonth = -1;
+	private volatile int oldestHour = -1;
+	private volatile int oldestDay = -1;
+	private volatile int oldestWeek = -1;
+	private volatile int oldestMonth = -1;
+	private int writerThreads = 4; // writer pool limits, also read from settings
+	private int writerBatchSize = 256;
+	private int partitionBatchRows = 32;
+	private int maxInFlight = 128;
+	private int writeRetries = 3; // failed write handling, also read from settings
+	private int writeRetryBaseMillis = 50;
+	private int writeRetryMaxMillis = 2000;
+	private int deadLetterCapacity = 10000;
+	private int deadLetterReplayMillis = 5000;
+	private Properties connectionSettings; // see CassandraConnection.settings, also read from settings
+	private int queueCapacity = 65536; // ingest queue limits, also read from settings
+	private OverflowPolicy overflowPolicy = OverflowPolicy.BLOCK;
+	private int offerTimeoutMillis = 100;
+	private String spillFile = "events.spill";
+	private String idleStrategyName = "backoff"; // writer idle behaviour, also read from settings
+	private int idleSpins = 100;
+	private int idleYields = 10;
+	private int idleMaxParkMicros = 10000;
+	private boolean walEnabled = true; // write-ahead log, also read from settings
+	private String walDir = "events.wal";
+	private int walSegmentBytes = 64 * 1024 * 1024;
+	private int walFsyncMillis = 100;
+	private boolean uniqueIndexEnabled = false; // only for a single tracker writing the tables, also read from settings
+	private int uniqueIndexExpectedPerTenant = 100000;
+	private double uniqueIndexFpp = 0.01;
+	private int uniqueIndexMaxMegabytes = 256;
+	private boolean sketchesEnabled = true; // approximate unique counts, also read from settings
+	private int sketchPrecision = 12;
+	private int sketchFlushSeconds = 60;
+	private int statementCacheSize = 256;
+	private int uniquesCacheEntries = 100000; // checkUniques result cache, 0 for none, also read from settings
+	private int uniquesCacheSeconds = 30;
+	private boolean perBitDimensions = false; // dimensionLayout per_bit, also read from settings
+	private int readFetchSize = 1000;
+	private int partitionShards = 1; // shards per event table partition, also read from settings
+	private boolean shardByValue = false; // shardBy value rather than actor
+	private boolean bucketedStorage = false; // storageMode bucketed, also read from settings
+	private int precreatePeriods = 2; // tables created ahead of the current one, also read from settings
+	private int schemaAgreementSeconds = 10;
+	private boolean embeddedStorage = false; // storage embedded, also read from settings
+	private String embeddedDir = "events.db";
+	private int embeddedFlushMillis = 200;
+	private int metricsDumpSeconds = 60; // metrics logged this often, 0 for never, also read from settings
+	private String metricsJmxName = "org.dhenry.samples:type=UniqueEventTracker,name=events";
 	
-	private boolean running;
+	private volatile boolean running;
 	private CassandraConnection conn;
-	private Deque<Event> queue = new ConcurrentLinkedDeque<>();
-	private Processor processor = new Processor();
+	private RingBuffer<Event> queue;
+	private EventSpill spill;
+	private EventLog eventLog;
+	private UniquenessIndex uniquenessIndex;
+	private UniqueSketches sketches;
+	private StatementCache statementCache;
+	private UniquesCache uniquesCache;
+	private EventStore store;
+	private ScheduledExecutorService scheduler = Executors.newScheduledThreadPool(1);
+	// table creation, drops and preparing the next inserts, kept off the roller and the writers
+	private ExecutorService schemaExecutor = Executors.newSingleThreadExecutor();
+	private final int[] createdUpTo = {-1, -1, -1, -1}; // only touched by the schema thread
+	// looked up once here so the hot paths only touch the adders and histograms
+	private final TrackerMetrics metrics = new TrackerMetrics();
+	private LongAdder rejectedCount = metrics.counter("queue.rejected");
+	private LongAdder droppedCount = metrics.counter("queue.dropped");
+	private LongAdder spilledCount = metrics.counter("queue.spilled");
+	private LongAdder insertedCount = metrics.counter("insert.events");
+	private LongAdder skippedCount = metrics.counter("insert.skipped");
+	private LongAdder failedBatchCount = metrics.counter("insert.failedBatches");
+	private LatencyHistogram insertPrepareLatency = metrics.histogram("insert.prepare");
+	private LatencyHistogram insertStoreLatency = metrics.histogram("insert.store");
+	private LatencyHistogram totalUniquesLatency = metrics.histogram("query.totalUniques");
+	private LatencyHistogram checkUniquesLatency = metrics.histogram("query.checkUniques");
+	private LatencyHistogram approximateUniquesLatency = metrics.histogram("query.approximateUniques");
+	private LongAdder queryErrorCount = metrics.counter("query.errors");
+	private LatencyHistogram rollLatency = metrics.histogram("roll.switch");
+	private LatencyHistogram maintainLatency = metrics.histogram("roll.maintain");
+	private LatencyHistogram schemaWaitLatency = metrics.histogram("roll.schemaWait");
+	private LongAdder schemaTimeoutCount = metrics.counter("roll.schemaTimeouts");
+	private Processor[] processors;
+	private IdleStrategy idleStrategy;
+	private AtomicInteger parkedWriters = new AtomicInteger();
+	private LatencyHistogram handoffLatency = metrics.histogram("writer.handoff");
 	
 	/**
 	 * This system keeps historical events from several time ranges in order
 	 * to allow efficient searching for a matching event. The time ranges
 	 * are implemented as tables in Cassandra, which can be deleted to
-	 * implement efficient rolloff of old data.
+	 * implement efficient rolloff of old data. With storageMode bucketed
+	 * each event is written once to a single table and expires by TTL; the
+	 * period numbers still roll, for the index and sketches.
 	 * 
 	 * @param cassandraDc (datacenter name)
 	 * @param cassandraContactPt (host or address)
 	 */
 	public UniqueEventTracker(String cassandraDc, String cassandraContactPt) {
 		
-		conn = new CassandraConnection();
-		conn.connect(cassandraDc, cassandraContactPt);
-
 		loadSettings();
-		processor.start();
+		if (embeddedStorage) {
+			store = new EmbeddedEventStore(embeddedDir, embeddedFlushMillis);
+		} else {
+			conn = new CassandraConnection();
+			conn.connect(cassandraDc, cassandraContactPt, connectionSettings);
+			statementCache = new StatementCache(statementCacheSize);
+			PartitionSharding sharding = new PartitionSharding(partitionShards, shardByValue);
+			BucketedEventTable bucketedTable = null;
+			if (bucketedStorage) {
+				if (perBitDimensions) {
+					log.warning("dimensionLayout per_bit is not supported with storageMode bucketed, using bitmask");
+					perBitDimensions = false;
+				}
+				bucketedTable = new BucketedEventTable(conn, retentionSeconds(), readFetchSize, sharding);
+				bucketedTable.createTable();
+			}
+			store = new CassandraEventStore(conn, statementCache, bucketedTable, sharding, perBitDimensions,
+				partitionBatchRows, maxInFlight, readFetchSize, new WriteRetryPolicy(writeRetries,
+					writeRetryBaseMillis, writeRetryMaxMillis, deadLetterCapacity, deadLetterReplayMillis));
+		}
+		start();
+	}
+	
+	/**
+	 * A tracker on a store of the caller's choosing, e.g. an
+	 * EmbeddedEventStore for a single node or tests. Sketches are then kept
+	 * in memory only.
+	 */
+	public UniqueEventTracker(EventStore store) {
+		
+		loadSettings();
+		this.store = store;
+		start();
+	}
+	
+	private void start() {
+		queue = new RingBuffer<>(queueCapacity);
+		spill = new EventSpill(spillFile);
+		store.setMetrics(metrics);
+		if (uniqueIndexEnabled) {
+			uniquenessIndex = new UniquenessIndex(uniqueIndexExpectedPerTenant, uniqueIndexFpp,
+				uniqueIndexMaxMegabytes * 1024L * 1024L);
+		}
+		if (sketchesEnabled) {
+			openSketches();
+		}
+		if (uniquesCacheEntries > 0) {
+			uniquesCache = new UniquesCache(uniquesCacheEntries, uniquesCacheSeconds);
+		}
+		reconcilePeriods();
+		for (int periodicityType = PERIOD_HOUR; periodicityType <= PERIOD_MONTH; periodicityType++) {
+			maintainTables(periodicityType);
+		}
+		startWriters();
+		if (walEnabled) {
+			openEventLog();
+		}
 		setupTimeSeriesRoll();
+		startMetrics();
+	}
+	
+	/**
+	 * The settings file can be behind the store after a crash, by a roll or
+	 * a rolloff that wasn't saved yet, so the store's tables are taken as the
+	 * truth where it can list them: the current number is at least the
+	 * newest table less those created ahead, and the oldest is the oldest
+	 * table, so tables left behind roll off as usual instead of leaking.
+	 */
+	private void reconcilePeriods() {
+		boolean changed = false;
+		for (int periodicityType = PERIOD_HOUR; periodicityType <= PERIOD_MONTH; periodicityType++) {
+			SortedSet<Integer> tableNos = store.listPeriods(periodicityType);
+			if (tableNos == null || tableNos.isEmpty()) {
+				continue;
+			}
+			int current = getCurrentPeriodicity(periodicityType);
+			int oldest = getOldestPeriodicity(periodicityType);
+			int newCurrent = Math.max(current, tableNos.last() - precreatePeriods);
+			int newOldest = Math.min(tableNos.first(), newCurrent);
+			if (newCurrent != current || newOldest != oldest) {
+				log.warning("period " + periodicityType + " settings say tables " + oldest + " to " + current
+					+ ", store has " + tableNos.first() + " to " + tableNos.last() + ", using " + newOldest
+					+ " to " + newCurrent);
+				setCurrentPeriodicity(periodicityType, newCurrent);
+				setOldestPeriodicity(periodicityType, newOldest);
+				changed = true;
+			}
+		}
+		if (changed) {
+			saveSettings();
+		}
+	}
+	
+	private void startMetrics() {
+		metrics.gauge("queue.depth", this::getQueueDepth);
+		metrics.gauge("writer.parked", parkedWriters::get);
+		metrics.gauge("index.hits", this::getIndexHitCount);
+		metrics.gauge("index.misses", this::getIndexMissCount);
+		metrics.gauge("statementCache.hits", this::getStatementCacheHitCount);
+		metrics.gauge("statementCache.misses", this::getStatementCacheMissCount);
+		if (conn != null) {
+			metrics.gauge("pool.hosts", conn::getConnectedHosts);
+			metrics.gauge("pool.openConnections", conn::getOpenConnections);
+			metrics.gauge("pool.inFlight", conn::getInFlightRequests);
+			metrics.gauge("pool.utilizationPercent", conn::getPoolUtilizationPercent);
+		}
+		if (uniquesCache != null) {
+			metrics.gauge("uniquesCache.hits", uniquesCache::getHitCount);
+			metrics.gauge("uniquesCache.misses", uniquesCache::getMissCount);
+			metrics.gauge("uniquesCache.size", uniquesCache::size);
+		}
+		if (!metricsJmxName.isEmpty()) {
+			metrics.register(metricsJmxName);
+		}
+		if (metricsDumpSeconds > 0) {
+			scheduler.scheduleAtFixedRate(() -> log.info(metrics.dump()), metricsDumpSeconds,
+				metricsDumpSeconds, TimeUnit.SECONDS);
+		}
+	}
+	
+	/**
+	 * @return the longest of the period retentions, months counted as 31 days
+	 */
+	private int retentionSeconds() {
+		long hours = Math.max(Math.max(maxHours, maxDays * 24L), Math.max(maxWeeks * 7L * 24, maxMonths * 31L * 24));
+		return (int) Math.min(Integer.MAX_VALUE, TimeUnit.HOURS.toSeconds(hours));
+	}
+	
+	private void openSketches() {
+		sketches = new UniqueSketches(conn, sketchPrecision);
+		sketches.createTable();
+		sketches.load(PERIOD_HOUR, currentHour);
+		sketches.load(PERIOD_DAY, currentDay);
+		sketches.load(PERIOD_WEEK, currentWeek);
+		sketches.load(PERIOD_MONTH, currentMonth);
+		scheduler.scheduleWithFixedDelay(sketches::flush, sketchFlushSeconds, sketchFlushSeconds, TimeUnit.SECONDS);
+	}
+	
+	/**
+	 * Events left in the log by the previous run are queued again before new
+	 * events are accepted; the writers are already running to make room.
+	 */
+	private void openEventLog() {
+		eventLog = new EventLog(walDir, walSegmentBytes, walFsyncMillis);
+		try {
+			eventLog.replay((event, position) -> {
+				while (!queue.offer(event, position)) {
+					LockSupport.parkNanos(TimeUnit.MICROSECONDS.toNanos(50));
+				}
+				if (parkedWriters.get() > 0) {
+					wakeWriter();
+				}
+			});
+		} catch (IOException ex) {
+			log.log(Level.WARNING, "event log replay, continuing without write-ahead log", ex);
+			eventLog = null;
+		}
 	}
 
 	/**
-	 * @return boolean if queuing was successful
+	 * The event is appended to the write-ahead log (if enabled) before it is
+	 * queued. The ingest queue is bounded; what happens when it is full
+	 * depends on the overflowPolicy setting.
+	 * 
+	 * @return boolean if queuing was successful, false if the event was
+	 * rejected or dropped
 	 */
 	public boolean processEvent(Event event) {
-		boolean queued = queue.offer(event);
-		if (processor.waiting) {
-			synchronized (processor) {
-				processor.notify();
-			}
+		long position = eventLog == null ? EventLog.NO_POSITION : eventLog.append(event);
+		boolean queued = queue.offer(event, position);
+		if (!queued) {
+			queued = handleOverflow(event, position);
+		}
+		if (queued && parkedWriters.get() > 0) {
+			wakeWriter();
 		}
 		return queued;
 	}
 	
+	private void wakeWriter() {
+		for (Processor processor : processors) {
+			if (processor.parked.compareAndSet(true, false)) {
+				parkedWriters.decrementAndGet();
+				processor.wakeNanos = System.nanoTime();
+				LockSupport.unpark(processor);
+				return;
+			}
+		}
+	}
+	
+	/**
+	 * Events that are dropped or rejected are acknowledged in the log
+	 * straight away, they will never be written.
+	 */
+	private boolean handleOverflow(Event event, long position) {
+		switch (overflowPolicy) {
+		case DROP_NEWEST:
+			droppedCount.increment();
+			acknowledge(position);
+			return false;
+		case DROP_OLDEST:
+			long[] droppedPosition = new long[1];
+			do {
+				if (queue.poll(droppedPosition, 0) != null) {
+					droppedCount.increment();
+					acknowledge(droppedPosition[0]);
+				}
+			} while (!queue.offer(event, position));
+			return true;
+		case SPILL:
+			if (spill.append(event, position)) {
+				spilledCount.increment();
+				return true;
+			}
+			rejectedCount.increment();
+			acknowledge(position);
+			return false;
+		default:
+			long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(offerTimeoutMillis);
+			do {
+				LockSupport.parkNanos(TimeUnit.MICROSECONDS.toNanos(50));
+				if (queue.offer(event, position)) {
+					return true;
+				}
+			} while (System.nanoTime() - deadline < 0);
+			rejectedCount.increment();
+			acknowledge(position);
+			return false;
+		}
+	}
+	
+	private void acknowledge(long position) {
+		if (eventLog != null) {
+			eventLog.acknowledge(position);
+		}
+	}
+	
+	/**
+	 * @return events waiting to be written, including any spilled to disk
+	 */
+	public long getQueueDepth() {
+		return queue.size() + spill.size();
+	}
+	
+	/**
+	 * @return events refused by processEvent after a BLOCK timeout or failed spill
+	 */
+	public long getRejectedCount() {
+		return rejectedCount.sum();
+	}
+	
+	/**
+	 * @return events discarded by the DROP_NEWEST or DROP_OLDEST policies
+	 */
+	public long getDroppedCount() {
+		return droppedCount.sum();
+	}
+	
+	public long getSpilledCount() {
+		return spilledCount.sum();
+	}
+	
+	/**
+	 * @return mean time from an event waking a parked writer until the writer runs
+	 */
+	public long getHandoffMeanMicros() {
+		return handoffLatency.snapshot().getMeanMicros();
+	}
+	
+	public long getHandoffMaxMicros() {
+		return handoffLatency.snapshot().getMaxMicros();
+	}
+	
+	/**
+	 * @return lookups answered "never seen" by the uniqueness index without a Cassandra read
+	 */
+	public long getIndexHitCount() {
+		return uniquenessIndex == null ? 0 : uniquenessIndex.getHitCount();
+	}
+	
+	/**
+	 * @return lookups the uniqueness index could not rule out, so went to Cassandra
+	 */
+	public long getIndexMissCount() {
+		return uniquenessIndex == null ? 0 : uniquenessIndex.getMissCount();
+	}
+	
+	public long getStatementCacheHitCount() {
+		return statementCache == null ? 0 : statementCache.getHitCount();
+	}
+	
+	public long getStatementCacheMissCount() {
+		return statementCache == null ? 0 : statementCache.getMissCount();
+	}
+	
+	/**
+	 * @return the counters and latency histograms of the ingest, insert,
+	 * query and roll stages, also registered with JMX as metricsJmxName
+	 */
+	public TrackerMetrics getMetrics() {
+		return metrics;
+	}
+	
 	/**
 	 * 
 	 * @param value: probably a url, denormalized from properties
@@ -106,31 +482,129 @@ public class UniqueEventTracker {
 	public int getTotalUniques(String type, String tenantId, int periodicityType,
 			int periodicityValue, String actorUuid, int dimensions, String value) throws SQLException {
 		
-		int currentPeriodicity = getCurrentPeriodicity(periodicityType);
+		return getTotalUniquesRange(type, tenantId, periodicityType, periodicityValue, 1, actorUuid, dimensions, value);
+	}
+	
+	/**
+	 * getTotalUniques over span consecutive tables ending periodicityValue
+	 * back, e.g. PERIOD_DAY, 0, 3 for the last three days including today.
+	 * The tables are queried concurrently, so this takes about as long as the
+	 * slowest one, and a record found in more than one table counts once.
+	 * 
+	 * @param periodicityType one of the public static period constants
+	 * @param periodicityValue is how many back the newest table is.
+	 * @param span how many tables to read
+	 * @return the count of distinct matching records found.
+	 */
+	public int getTotalUniquesRange(String type, String tenantId, int periodicityType,
+			int periodicityValue, int span, String actorUuid, int dimensions, String value) throws SQLException {
 		
-		String cql = "select source_api_key, source_remote_ip, tenant_id, actor_uuid, type, "
-			+ "properties, dimensions, value, occurrence_time, ingestion_time "
-			+ "from " + makeTableName(periodicityType, currentPeriodicity-periodicityValue)
-			+ "where type = ? and tenant_id = ? and value = ? and actor_uuid = ?";
-
+		long start = System.nanoTime();
 		try {
-			Session sess = conn.getSession();
-			PreparedStatement ps = sess.prepare(cql);
-			BoundStatement bs = ps.bind(type, tenantId, value, actorUuid);
-			ResultSet rs = sess.execute(bs);
-			int count = 0;
-			Row row = null;
-			while ((row = rs.one()) != null) {
-				// cassandra only has >, >=, =, <, <= (indexable) operators
-				int dimensionsFromEvent = row.getInt("dimensions");
-				if ((dimensions & dimensionsFromEvent) != 0) {
-					count++;
+			int[] tables = tablesInRange(periodicityType, periodicityValue, span);
+			if (uniquenessIndex != null) {
+				int found = 0;
+				for (int tableNo : tables) {
+					if (uniquenessIndex.mightContain(periodicityType, tableNo, type, tenantId, value, actorUuid)) {
+						tables[found++] = tableNo;
+					}
+				}
+				if (found == 0) {
+					return 0;
 				}
+				tables = Arrays.copyOf(tables, found);
 			}
-			return count;
+			Instant[] range = periodRange(periodicityType, periodicityValue, span);
+			Set<Date> seen = new HashSet<>();
+			store.collectTotalUniques(periodicityType, tables, range[0], range[1], type, tenantId, actorUuid,
+				dimensions, value, seen);
+			return seen.size();
+		} catch (SQLException ex) {
+			queryErrorCount.increment();
+			throw ex;
+		} finally {
+			totalUniquesLatency.recordNanos(System.nanoTime() - start);
+		}
+	}
+	
+	/**
+	 * @return the table numbers from newest - span + 1 to newest, leaving out
+	 * tables already rolled off
+	 */
+	private int[] tablesInRange(int periodicityType, int periodicityValue, int span) {
+		int newest = getCurrentPeriodicity(periodicityType) - periodicityValue;
+		int oldest = Math.max(newest - Math.max(1, span) + 1, getOldestPeriodicity(periodicityType));
+		if (oldest > newest) {
+			return new int[] {newest};
+		}
+		int[] tables = new int[newest - oldest + 1];
+		for (int i = 0; i < tables.length; i++) {
+			tables[i] = oldest + i;
+		}
+		return tables;
+	}
+	
+	/**
+	 * For stores without tables per period (bucketed storage) the periods
+	 * become a range of occurrence times: from the start of the oldest period up to the end of
+	 * the newest, with the same hour, day, week and month boundaries the
+	 * roller uses.
+	 * 
+	 * @return from (inclusive) and to (exclusive)
+	 */
+	private Instant[] periodRange(int periodicityType, int periodicityValue, int span) {
+		ZonedDateTime now = ZonedDateTime.now();
+		ZonedDateTime start;
+		ChronoUnit unit;
+		if (periodicityType == PERIOD_DAY) {
+			start = now.truncatedTo(ChronoUnit.DAYS);
+			unit = ChronoUnit.DAYS;
+		} else if (periodicityType == PERIOD_WEEK) {
+			start = now.truncatedTo(ChronoUnit.DAYS).with(WeekFields.of(Locale.getDefault()).dayOfWeek(), 1);
+			unit = ChronoUnit.WEEKS;
+		} else if (periodicityType == PERIOD_MONTH) {
+			start = now.truncatedTo(ChronoUnit.DAYS).withDayOfMonth(1);
+			unit = ChronoUnit.MONTHS;
+		} else {
+			start = now.truncatedTo(ChronoUnit.HOURS);
+			unit = ChronoUnit.HOURS;
+		}
+		ZonedDateTime from = start.minus(periodicityValue + Math.max(1, span) - 1, unit);
+		ZonedDateTime to = start.minus(periodicityValue - 1, unit);
+		return new Instant[] {from.toInstant(), to.toInstant()};
+	}
+	
+	/**
+	 * Approximate count of distinct (value, actor) pairs with any of the
+	 * dimension bits set, over span consecutive tables ending periodicityValue
+	 * back, e.g. PERIOD_DAY, 0, 7 for the last seven days including today.
+	 * Answered from mergeable HyperLogLog sketches rather than table scans,
+	 * with a standard error of about 1.04 / sqrt(2^sketchPrecision).
+	 * 
+	 * @param periodicityType one of the public static period constants
+	 * @param periodicityValue is how many back the newest table is.
+	 * @param span how many tables to union
+	 * @param dimensions is bit-mapped, pairs seen with any of the bits count
+	 * @return the estimated count
+	 */
+	public long getApproximateUniques(String type, String tenantId, int periodicityType,
+			int periodicityValue, int span, int dimensions) throws SQLException {
+		
+		if (sketches == null) {
+			throw new SQLException("sketches are disabled");
+		}
+		int current = getCurrentPeriodicity(periodicityType);
+		int newest = current - periodicityValue;
+		long start = System.nanoTime();
+		try {
+			return sketches.estimate(periodicityType, newest - Math.max(1, span) + 1, newest, current,
+				type, tenantId, dimensions);
 		} catch (DriverException ex) {
 			log.log(Level.WARNING, "", ex);
+			queryErrorCount.increment();
 			throw new SQLException(ex.getMessage());
+		} finally {
+			approximateUniquesLatency.recordNanos(System.nanoTime() - start);
 		}
 	}
 	
@@ -147,38 +621,193 @@ public class UniqueEventTracker {
 			throws SQLException {
 
 		List<Event> results = new ArrayList<>();
-		int currentPeriodicity = getCurrentPeriodicity(periodicityType);
-		
-		String cql = "select source_api_key, source_remote_ip, tenant_id, actor_uuid, type, "
-			+ "properties, dimensions, value, occurrence_time, ingestion_time "
-			+ "from " + makeTableName(periodicityType, currentPeriodicity-periodicityValue)
-			+ "where type = ? and tenant_id = ? and actor_uuid = ? and value in ?";
+		forEachUnique(type, tenantId, periodicityType, periodicityValue, actorUuid, possible_values, results::add);
+		return results;
+	}
+	
+	/**
+	 * Streaming form of checkUniques: rows are fetched a page of readFetchSize
+	 * at a time and handed to the consumer as they arrive, so large results
+	 * are never held in memory. With the uniques cache the records of each
+	 * value come from the cache where it has them and the rest are read
+	 * whole.
+	 * 
+	 * @param actorUuid added because other params are not specific enough
+	 * @param periodicityType one of the public static period constants
+	 * @param PeriodicityValue is how many back.
+	 * @param consumer receives each matching record
+	 */
+	public void forEachUnique(String type, String tenantId,
+			int periodicityType, int periodicityValue, String actorUuid,
+			List<String> possible_values, Consumer<Event> consumer)
+			throws SQLException {
 
+		long start = System.nanoTime();
 		try {
-			Session sess = conn.getSession();
-			PreparedStatement ps = sess.prepare(cql);
-			BoundStatement bs = ps.bind(type, tenantId, actorUuid, possible_values);
-			ResultSet rs = sess.execute(bs);
-			Row row = null;
-			while ((row = rs.one()) != null) {
-				Event e = new Event(row.getString("source_api_key"),
-					row.getString("source_remote_ip"),
-					row.getString("tenant_id"),
-					row.getString("actor_uuid"),
-					row.getString("type"),
-					row.getString("properties"), 
-					row.getString("occurrence_time"),
-					row.getString("ingestion_time"),
-					row.getInt("dimensions"));
-				results.add(e);
+			int tableNo = getCurrentPeriodicity(periodicityType) - periodicityValue;
+			List<String> values = maybeSeen(periodicityType, tableNo, type, tenantId, actorUuid, possible_values);
+			if (values.isEmpty()) {
+				return;
 			}
-		} catch (DriverException ex) {
-			log.log(Level.WARNING, "", ex);
-			throw new SQLException(ex.getMessage());
+			if (uniquesCache != null) {
+				cachedUniques(periodicityType, new int[] {tableNo}, Collections.singletonList(values), type,
+					tenantId, actorUuid).get(0).forEach(consumer);
+				return;
+			}
+			Instant[] range = periodRange(periodicityType, periodicityValue, 1);
+			store.forEachUnique(periodicityType, new int[] {tableNo}, Arrays.asList(values), range[0], range[1],
+				type, tenantId, actorUuid, consumer);
+		} catch (SQLException ex) {
+			queryErrorCount.increment();
+			throw ex;
+		} finally {
+			checkUniquesLatency.recordNanos(System.nanoTime() - start);
+		}
+	}
+	
+	/**
+	 * checkUniques over span consecutive tables ending periodicityValue back.
+	 * The tables are queried concurrently and a record found in more than one
+	 * table is returned once.
+	 * 
+	 * @param periodicityType one of the public static period constants
+	 * @param periodicityValue is how many back the newest table is.
+	 * @param span how many tables to read
+	 * @return distinct matching records, newest table first.
+	 */
+	public List<Event> checkUniquesRange(String type, String tenantId,
+			int periodicityType, int periodicityValue, int span, String actorUuid,
+			List<String> possible_values)
+			throws SQLException {
+
+		long start = System.nanoTime();
+		int[] tables = tablesInRange(periodicityType, periodicityValue, span);
+		int[] newestFirst = new int[tables.length];
+		List<List<String>> values = new ArrayList<>(tables.length);
+		int found = 0;
+		for (int i = tables.length - 1; i >= 0; i--) {
+			List<String> tableValues = maybeSeen(periodicityType, tables[i], type, tenantId, actorUuid, possible_values);
+			if (!tableValues.isEmpty()) {
+				newestFirst[found++] = tables[i];
+				values.add(tableValues);
+			}
+		}
+		List<Event> results = new ArrayList<>();
+		try {
+			if (found > 0 && uniquesCache != null) {
+				// still read concurrently, but kept apart so what is read can be cached per table
+				List<List<Event>> perTable = cachedUniques(periodicityType, Arrays.copyOf(newestFirst, found),
+					values, type, tenantId, actorUuid);
+				Set<String> seen = found > 1 ? new HashSet<>() : null;
+				for (int i = 0; i < found; i++) {
+					for (Event event : perTable.get(i)) {
+						if (seen == null || seen.add(extractValue(event.getProperties()) + '\0'
+								+ event.getOccurrenceTime().toInstant())) {
+							results.add(event);
+						}
+					}
+				}
+			} else if (found > 0) {
+				Instant[] range = periodRange(periodicityType, periodicityValue, span);
+				store.forEachUnique(periodicityType, Arrays.copyOf(newestFirst, found), values, range[0], range[1],
+					type, tenantId, actorUuid, results::add);
+			}
+		} catch (SQLException ex) {
+			queryErrorCount.increment();
+			throw ex;
+		} finally {
+			checkUniquesLatency.recordNanos(System.nanoTime() - start);
 		}
 		return results;
 	}
 	
+	/**
+	 * The tables' records for the values, from the uniques cache where it
+	 * has them. The other values are read from the store for all the tables
+	 * at once, concurrently, and cached per table, values without records
+	 * too.
+	 *
+	 * @param values the values to look for, per table
+	 * @return the records per table, in the order of tables
+	 */
+	private List<List<Event>> cachedUniques(int periodicityType, int[] tables, List<List<String>> values,
+			String type, String tenantId, String actorUuid) throws SQLException {
+		int current = getCurrentPeriodicity(periodicityType);
+		List<List<Event>> found = new ArrayList<>(tables.length);
+		int[] missingTables = new int[tables.length];
+		int[] missingAt = new int[tables.length]; // where each missing table is in tables
+		List<List<String>> missingValues = new ArrayList<>();
+		for (int t = 0; t < tables.length; t++) {
+			List<Event> tableFound = new ArrayList<>();
+			List<String> missing = new ArrayList<>();
+			for (String value : values.get(t)) {
+				List<Event> cached = uniquesCache.get(periodicityType, tables[t], tables[t] < current, type,
+					tenantId, actorUuid, value);
+				if (cached == null) {
+					missing.add(value);
+				} else {
+					tableFound.addAll(cached);
+				}
+			}
+			found.add(tableFound);
+			if (!missing.isEmpty()) {
+				missingAt[missingValues.size()] = t;
+				missingTables[missingValues.size()] = tables[t];
+				missingValues.add(missing);
+			}
+		}
+		int n = missingValues.size();
+		if (n == 0) {
+			return found;
+		}
+		long stamp = uniquesCache.stamp(type, tenantId, actorUuid);
+		List<Map<String,List<Event>>> byValue = new ArrayList<>(n);
+		Instant[] from = new Instant[n];
+		Instant[] to = new Instant[n];
+		for (int j = 0; j < n; j++) {
+			Map<String,List<Event>> tableByValue = new HashMap<>();
+			for (String value : missingValues.get(j)) {
+				tableByValue.put(value, new ArrayList<>());
+			}
+			byValue.add(tableByValue);
+			Instant[] range = periodRange(periodicityType, current - missingTables[j], 1);
+			from[j] = range[0];
+			to[j] = range[1];
+		}
+		store.forEachUniqueByTable(periodicityType, Arrays.copyOf(missingTables, n), missingValues, from, to,
+			type, tenantId, actorUuid, (event, j) -> {
+				List<Event> events = byValue.get(j).get(extractValue(event.getProperties()));
+				if (events != null) {
+					events.add(event);
+				}
+				found.get(missingAt[j]).add(event);
+			});
+		for (int j = 0; j < n; j++) {
+			for (Map.Entry<String,List<Event>> entry : byValue.get(j).entrySet()) {
+				uniquesCache.put(periodicityType, missingTables[j], type, tenantId, actorUuid, entry.getKey(),
+					entry.getValue(), stamp);
+			}
+		}
+		return found;
+	}
+	
+	/**
+	 * @return the values the uniqueness index can't rule out for the table
+	 */
+	private List<String> maybeSeen(int periodicityType, int tableNo, String type, String tenantId,
+			String actorUuid, List<String> possible_values) {
+		if (uniquenessIndex == null) {
+			return possible_values;
+		}
+		List<String> maybeSeen = new ArrayList<>(possible_values.size());
+		for (String value : possible_values) {
+			if (uniquenessIndex.mightContain(periodicityType, tableNo, type, tenantId, value, actorUuid)) {
+				maybeSeen.add(value);
+			}
+		}
+		return maybeSeen;
+	}
+	
 	private void loadSettings() {
 		Properties properties = new Properties();
 		FileInputStream fin = null;
@@ -206,6 +835,11 @@ public class UniqueEventTracker {
 		currentDay = getIntProperty("currentDay", properties, 0);
 		currentWeek = getIntProperty("currentWeek", properties, 0);
 		currentMonth = getIntProperty("currentMonth", properties, 0);
+		// settings from before these were saved: take the current tables to be today's
+		LocalDateTime today = LocalDateTime.now();
+		dayValue = getIntProperty("dayValue", properties, today.getDayOfMonth());
+		weekValue = getIntProperty("weekValue", properties, weekOf(today));
+		monthValue = getIntProperty("monthValue", properties, today.getMonthValue());
 		maxHours = getIntProperty("maxHours", properties, maxHours);
 		maxDays = getIntProperty("maxDays", properties, maxDays);
 		maxWeeks = getIntProperty("maxWeeks", properties, maxWeeks);
@@ -214,6 +848,70 @@ public class UniqueEventTracker {
 		oldestDay = getIntProperty("oldestDay", properties, 0);
 		oldestWeek = getIntProperty("oldestWeek", properties, 0);
 		oldestMonth = getIntProperty("oldestMonth", properties, 0);
+		writerThreads = Math.max(1, getIntProperty("writerThreads", properties, writerThreads));
+		writerBatchSize = Math.max(1, getIntProperty("writerBatchSize", properties, writerBatchSize));
+		partitionBatchRows = Math.max(1, getIntProperty("partitionBatchRows", properties, partitionBatchRows));
+		maxInFlight = Math.max(1, getIntProperty("maxInFlight", properties, maxInFlight));
+		writeRetries = getIntProperty("writeRetries", properties, writeRetries);
+		writeRetryBaseMillis = Math.max(1, getIntProperty("writeRetryBaseMillis", properties, writeRetryBaseMillis));
+		writeRetryMaxMillis = getIntProperty("writeRetryMaxMillis", properties, writeRetryMaxMillis);
+		deadLetterCapacity = getIntProperty("deadLetterCapacity", properties, deadLetterCapacity);
+		deadLetterReplayMillis = Math.max(1, getIntProperty("deadLetterReplayMillis", properties, deadLetterReplayMillis));
+		connectionSettings = CassandraConnection.settings(properties);
+		queueCapacity = Math.max(1, getIntProperty("queueCapacity", properties, queueCapacity));
+		offerTimeoutMillis = getIntProperty("offerTimeoutMillis", properties, offerTimeoutMillis);
+		spillFile = properties.getProperty("spillFile", spillFile);
+		String policy = properties.getProperty("overflowPolicy");
+		if (policy != null) {
+			try {
+				overflowPolicy = OverflowPolicy.valueOf(policy.trim().toUpperCase(Locale.ROOT));
+			} catch (IllegalArgumentException ex) {
+				log.warning("unknown overflowPolicy " + policy + ", using " + overflowPolicy);
+			}
+		}
+		idleStrategyName = properties.getProperty("idleStrategy", idleStrategyName);
+		idleSpins = getIntProperty("idleSpins", properties, idleSpins);
+		idleYields = getIntProperty("idleYields", properties, idleYields);
+		idleMaxParkMicros = Math.max(1, getIntProperty("idleMaxParkMicros", properties, idleMaxParkMicros));
+		walEnabled = Boolean.parseBoolean(properties.getProperty("walEnabled", Boolean.toString(walEnabled)));
+		walDir = properties.getProperty("walDir", walDir);
+		walSegmentBytes = Math.max(4096, getIntProperty("walSegmentBytes", properties, walSegmentBytes));
+		walFsyncMillis = getIntProperty("walFsyncMillis", properties, walFsyncMillis);
+		uniqueIndexEnabled = Boolean.parseBoolean(properties.getProperty("uniqueIndexEnabled", Boolean.toString(uniqueIndexEnabled)));
+		uniqueIndexExpectedPerTenant = Math.max(1, getIntProperty("uniqueIndexExpectedPerTenant", properties, uniqueIndexExpectedPerTenant));
+		uniqueIndexMaxMegabytes = getIntProperty("uniqueIndexMaxMegabytes", properties, uniqueIndexMaxMegabytes);
+		try {
+			uniqueIndexFpp = Double.parseDouble(properties.getProperty("uniqueIndexFpp", Double.toString(uniqueIndexFpp)));
+		} catch (NumberFormatException ex) {
+		}
+		if (uniqueIndexFpp <= 0 || uniqueIndexFpp >= 1) {
+			uniqueIndexFpp = 0.01;
+		}
+		sketchesEnabled = Boolean.parseBoolean(properties.getProperty("sketchesEnabled", Boolean.toString(sketchesEnabled)));
+		sketchPrecision = Math.min(18, Math.max(4, getIntProperty("sketchPrecision", properties, sketchPrecision)));
+		sketchFlushSeconds = Math.max(1, getIntProperty("sketchFlushSeconds", properties, sketchFlushSeconds));
+		statementCacheSize = Math.max(1, getIntProperty("statementCacheSize", properties, statementCacheSize));
+		uniquesCacheEntries = getIntProperty("uniquesCacheEntries", properties, uniquesCacheEntries);
+		uniquesCacheSeconds = getIntProperty("uniquesCacheSeconds", properties, uniquesCacheSeconds);
+		perBitDimensions = "per_bit".equalsIgnoreCase(properties.getProperty("dimensionLayout", perBitDimensions ? "per_bit" : "bitmask"));
+		readFetchSize = Math.max(2, getIntProperty("readFetchSize", properties, readFetchSize));
+		partitionShards = Math.max(1, getIntProperty("partitionShards", properties, partitionShards));
+		shardByValue = "value".equalsIgnoreCase(properties.getProperty("shardBy", shardByValue ? "value" : "actor"));
+		embeddedStorage = "embedded".equalsIgnoreCase(properties.getProperty("storage", embeddedStorage ? "embedded" : "cassandra"));
+		embeddedDir = properties.getProperty("embeddedDir", embeddedDir);
+		embeddedFlushMillis = Math.max(1, getIntProperty("embeddedFlushMillis", properties, embeddedFlushMillis));
+		metricsDumpSeconds = getIntProperty("metricsDumpSeconds", properties, metricsDumpSeconds);
+		metricsJmxName = properties.getProperty("metricsJmxName", metricsJmxName).trim();
+		precreatePeriods = Math.max(1, getIntProperty("precreatePeriods", properties, precreatePeriods));
+		schemaAgreementSeconds = getIntProperty("schemaAgreementSeconds", properties, schemaAgreementSeconds);
+		bucketedStorage = "bucketed".equalsIgnoreCase(properties.getProperty("storageMode", bucketedStorage ? "bucketed" : "tables"));
+		try {
+			idleStrategy = IdleStrategy.named(idleStrategyName, idleSpins, idleYields, idleMaxParkMicros);
+		} catch (IllegalArgumentException ex) {
+			log.warning(ex.getMessage() + ", using backoff");
+			idleStrategyName = "backoff";
+			idleStrategy = IdleStrategy.named(idleStrategyName, idleSpins, idleYields, idleMaxParkMicros);
+		}
 	}
 
 	private int getIntProperty(String name, Properties props, int defaultValue) {
@@ -228,8 +926,13 @@ public class UniqueEventTracker {
 		}
 	}
 	
-	private void saveSettings() {
-		FileOutputStream fout = null;
+	/**
+	 * Called on every roll and rolloff as well as at shutdown, so a crash
+	 * leaves the period numbers at most one step behind. The file is
+	 * written next to the old one and renamed over it, so it is always
+	 * either the old or the new settings, never partly written.
+	 */
+	private synchronized void saveSettings() {
 		String filename = "events.settings";
 		Properties properties = new Properties();
 		properties.put("currentHour", Integer.toString(currentHour));
@@ -244,22 +947,116 @@ public class UniqueEventTracker {
 		properties.put("currentMonth", Integer.toString(currentMonth));
 		properties.put("maxMonths", Integer.toString(maxMonths));
 		properties.put("oldestMonth", Integer.toString(oldestMonth));
+		properties.put("dayValue", Integer.toString(dayValue));
+		properties.put("weekValue", Integer.toString(weekValue));
+		properties.put("monthValue", Integer.toString(monthValue));
+		properties.put("writerThreads", Integer.toString(writerThreads));
+		properties.put("writerBatchSize", Integer.toString(writerBatchSize));
+		properties.put("partitionBatchRows", Integer.toString(partitionBatchRows));
+		properties.put("maxInFlight", Integer.toString(maxInFlight));
+		properties.put("writeRetries", Integer.toString(writeRetries));
+		properties.put("writeRetryBaseMillis", Integer.toString(writeRetryBaseMillis));
+		properties.put("writeRetryMaxMillis", Integer.toString(writeRetryMaxMillis));
+		properties.put("deadLetterCapacity", Integer.toString(deadLetterCapacity));
+		properties.put("deadLetterReplayMillis", Integer.toString(deadLetterReplayMillis));
+		properties.putAll(connectionSettings);
+		properties.put("queueCapacity", Integer.toString(queueCapacity));
+		properties.put("overflowPolicy", overflowPolicy.name());
+		properties.put("offerTimeoutMillis", Integer.toString(offerTimeoutMillis));
+		properties.put("spillFile", spillFile);
+		properties.put("idleStrategy", idleStrategyName);
+		properties.put("idleSpins", Integer.toString(idleSpins));
+		properties.put("idleYields", Integer.toString(idleYields));
+		properties.put("idleMaxParkMicros", Integer.toString(idleMaxParkMicros));
+		properties.put("walEnabled", Boolean.toString(walEnabled));
+		properties.put("walDir", walDir);
+		properties.put("walSegmentBytes", Integer.toString(walSegmentBytes));
+		properties.put("walFsyncMillis", Integer.toString(walFsyncMillis));
+		properties.put("uniqueIndexEnabled", Boolean.toString(uniqueIndexEnabled));
+		properties.put("uniqueIndexExpectedPerTenant", Integer.toString(uniqueIndexExpectedPerTenant));
+		properties.put("uniqueIndexFpp", Double.toString(uniqueIndexFpp));
+		properties.put("uniqueIndexMaxMegabytes", Integer.toString(uniqueIndexMaxMegabytes));
+		properties.put("sketchesEnabled", Boolean.toString(sketchesEnabled));
+		properties.put("sketchPrecision", Integer.toString(sketchPrecision));
+		properties.put("sketchFlushSeconds", Integer.toString(sketchFlushSeconds));
+		properties.put("statementCacheSize", Integer.toString(statementCacheSize));
+		properties.put("uniquesCacheEntries", Integer.toString(uniquesCacheEntries));
+		properties.put("uniquesCacheSeconds", Integer.toString(uniquesCacheSeconds));
+		properties.put("dimensionLayout", perBitDimensions ? "per_bit" : "bitmask");
+		properties.put("readFetchSize", Integer.toString(readFetchSize));
+		properties.put("partitionShards", Integer.toString(partitionShards));
+		properties.put("shardBy", shardByValue ? "value" : "actor");
+		properties.put("storage", embeddedStorage ? "embedded" : "cassandra");
+		properties.put("embeddedDir", embeddedDir);
+		properties.put("embeddedFlushMillis", Integer.toString(embeddedFlushMillis));
+		properties.put("metricsDumpSeconds", Integer.toString(metricsDumpSeconds));
+		properties.put("metricsJmxName", metricsJmxName);
+		properties.put("storageMode", bucketedStorage ? "bucketed" : "tables");
+		properties.put("precreatePeriods", Integer.toString(precreatePeriods));
+		properties.put("schemaAgreementSeconds", Integer.toString(schemaAgreementSeconds));
 		
+		Path file = Paths.get(filename);
+		Path tmp = Paths.get(filename + ".tmp");
 		try {
-			fout = new FileOutputStream(filename);
-			properties.store(fout, null);
+			try (FileOutputStream fout = new FileOutputStream(tmp.toFile())) {
+				properties.store(fout, null);
+				fout.getFD().sync();
+			}
+			try {
+				Files.move(tmp, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+			} catch (AtomicMoveNotSupportedException ex) {
+				Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING);
+			}
 		} catch (IOException ex) {
 		    log.log(Level.WARNING, "error saving events.settings", ex);
-		} finally {
-			 if (fout != null) {
-				 try {
-					 fout.close();
-				 } catch (IOException ex2) {}
-			}
 		}
 
 	}
 	
+	private int getOldestPeriodicity(int periodicityType) {
+		int oldestPeriodicity = oldestHour;
+		if (periodicityType == PERIOD_DAY)
+			oldestPeriodicity = oldestDay;
+		else if (periodicityType == PERIOD_WEEK)
+			oldestPeriodicity = oldestWeek;
+		else if (periodicityType == PERIOD_MONTH)
+			oldestPeriodicity = oldestMonth;
+		return oldestPeriodicity;
+	}
+	
+	private void setOldestPeriodicity(int periodicityType, int oldest) {
+		if (periodicityType == PERIOD_DAY)
+			oldestDay = oldest;
+		else if (periodicityType == PERIOD_WEEK)
+			oldestWeek = oldest;
+		else if (periodicityType == PERIOD_MONTH)
+			oldestMonth = oldest;
+		else
+			oldestHour = oldest;
+	}
+	
+	private int getMaxPeriodicity(int periodicityType) {
+		int maxPeriodicity = maxHours;
+		if (periodicityType == PERIOD_DAY)
+			maxPeriodicity = maxDays;
+		else if (periodicityType == PERIOD_WEEK)
+			maxPeriodicity = maxWeeks;
+		else if (periodicityType == PERIOD_MONTH)
+			maxPeriodicity = maxMonths;
+		return maxPeriodicity;
+	}
+	
+	private void setCurrentPeriodicity(int periodicityType, int current) {
+		if (periodicityType == PERIOD_DAY)
+			currentDay = current;
+		else if (periodicityType == PERIOD_WEEK)
+			currentWeek = current;
+		else if (periodicityType == PERIOD_MONTH)
+			currentMonth = current;
+		else
+			currentHour = current;
+	}
+	
 	private int getCurrentPeriodicity(int periodicityType) {
 		int currentPeriodicity = currentHour;
 		if (periodicityType == PERIOD_DAY)
@@ -271,189 +1068,254 @@ public class UniqueEventTracker {
 		return currentPeriodicity;
 	}
 	
-	// caching the prepared statements for optimal insert performance
-	private PreparedStatement hourInsertPs = null, dayInsertPs = null, weekInsertPs = null, monthInsertPs = null;
-	private static String templateTableName = "event_P_X";
-	private String insertTemplate = "insert into " + templateTableName
-			+ " (source_api_key, source_remote_ip, tenant_id, actor_uuid ,type, properties, "
-			+ "dimensions, value, occurrence_time, ingestion_time, bucket) values "
-			+ "(?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?)";
-	
-	private void insert(Event event) {
+	/**
+	 * Hands a drained batch of events to the store, after noting them in the
+	 * uniqueness index, sketches and uniques cache under the current period
+	 * numbers. The
+	 * events' log positions are acknowledged once the store reports every
+	 * write succeeded; after a failure they stay in the log and are replayed
+	 * on the next start.
+	 */
+	private void insert(List<Event> events, long[] positions) {
 
-		Session sess = conn.getSession();
-		String properties = event.getProperties();
-		JSONObject obj = new JSONObject(properties);
-		String value = obj.getString("URL");
-		
-		String sourceApiKey = event.getSourceApiKey();
-		InetAddress sourceRemoteIp = event.getSourceRemoteIp();
-		String tenantId = event.getTenantId();
-		String actorUuid = event.getActorUuid();
-		String type = event.getType();
-		int dimensions = event.getDimensions();
-		ZonedDateTime occurrenceTime = event.getOccurrenceTime();
-		ZonedDateTime ingestionTime = event.getIngestionTime();
-		int bucket  = occurrenceTime.getHour() * 10 + (occurrenceTime.getMinute() / 10);
-		
-		try {
-			if (hourInsertPs == null) {
-				String hourCql = insertTemplate.replace(templateTableName, "event_hour_" + currentHour);
-				hourInsertPs = sess.prepare(hourCql);
+		long start = System.nanoTime();
+		int[] tableNos = {currentHour, currentDay, currentWeek, currentMonth};
+		List<Event> written = new ArrayList<>(events.size());
+		List<String> values = new ArrayList<>(events.size());
+		for (Event event : events) {
+			String properties = event.getProperties();
+			String value = extractValue(properties);
+			if (value == null) {
+				log.warning("no URL in event properties, skipping: " + properties);
+				skippedCount.increment();
+				continue;
 			}
-			BoundStatement hourBs = hourInsertPs.bind(sourceApiKey, sourceRemoteIp.getHostAddress(),
-				tenantId, actorUuid, type, properties, dimensions, value, occurrenceTime, ingestionTime, bucket);
-			sess.execute(hourBs);
-		} catch (DriverException ex) {
-			log.log(Level.WARNING, "at hour insert", ex);
-		}
-		try {
-			if (dayInsertPs == null) {
-				String dayCql = insertTemplate.replace(templateTableName, "event_day_" + currentDay);
-				dayInsertPs = sess.prepare(dayCql);
+			String tenantId = event.getTenantId();
+			String actorUuid = event.getActorUuid();
+			String type = event.getType();
+			for (int i = 0; i < tableNos.length; i++) {
+				if (uniquenessIndex != null) {
+					uniquenessIndex.put(i + 1, tableNos[i], type, tenantId, value, actorUuid);
+				}
+				if (sketches != null) {
+					sketches.add(i + 1, tableNos[i], type, tenantId, event.getDimensions(), value, actorUuid);
+				}
+				if (uniquesCache != null) {
+					uniquesCache.written(i + 1, tableNos[i], type, tenantId, actorUuid, value, event);
+				}
 			}
-			BoundStatement dayBs = dayInsertPs.bind(sourceApiKey, sourceRemoteIp.getHostAddress(),
-				tenantId, actorUuid, type, properties, dimensions, value, occurrenceTime, ingestionTime, bucket);
-			sess.execute(dayBs);
-		} catch (DriverException ex) {
-			log.log(Level.WARNING, "at day insert", ex);
+			written.add(event);
+			values.add(value);
 		}
 		
-		try {
-			if (weekInsertPs == null) {
-				String weekCql = insertTemplate.replace(templateTableName, "event_week_" + currentWeek);
-				weekInsertPs = sess.prepare(weekCql);
+		long[] batchPositions = Arrays.copyOf(positions, events.size());
+		long prepared = System.nanoTime();
+		insertPrepareLatency.recordNanos(prepared - start);
+		if (written.isEmpty()) {
+			// every event was skipped, there is nothing to wait for
+			for (long position : batchPositions) {
+				acknowledge(position);
 			}
-			BoundStatement weekBs = weekInsertPs.bind(sourceApiKey, sourceRemoteIp.getHostAddress(),
-				tenantId, actorUuid, type, properties, dimensions, value, occurrenceTime, ingestionTime, bucket);
-			sess.execute(weekBs);
-		} catch (DriverException ex) {
-			log.log(Level.WARNING, "at week insert", ex);
+			return;
 		}
-		
-		try {
-			if (monthInsertPs == null) {
-				String monthCql = insertTemplate.replace(templateTableName, "event_month_" + currentMonth);
-				monthInsertPs = sess.prepare(monthCql);
+		store.insert(written, values, tableNos, success -> {
+			insertStoreLatency.recordNanos(System.nanoTime() - prepared);
+			if (uniquesCache != null) {
+				for (int e = 0; e < written.size(); e++) {
+					Event event = written.get(e);
+					for (int i = 0; i < tableNos.length; i++) {
+						uniquesCache.stored(i + 1, tableNos[i], event.getType(), event.getTenantId(),
+							event.getActorUuid(), values.get(e), success);
+					}
+				}
 			}
-			BoundStatement monthBs = monthInsertPs.bind(sourceApiKey, sourceRemoteIp.getHostAddress(),
-				tenantId, actorUuid, type, properties, dimensions, value, occurrenceTime, ingestionTime, bucket);
-			sess.execute(monthBs);
-		} catch (DriverException ex) {
-			log.log(Level.WARNING, "at month insert", ex);
-		}
+			if (success) {
+				insertedCount.add(written.size());
+				for (long position : batchPositions) {
+					acknowledge(position);
+				}
+			} else {
+				failedBatchCount.increment();
+			}
+		});
 	}
 	
-	private String makeTableName(int periodicityType, int bucketNo) {
-		String typeString = "Hour";
-		if (periodicityType == PERIOD_DAY)
-			typeString = "Day";
-		else if (periodicityType == PERIOD_WEEK)
-			typeString = "Week";
-		else if (periodicityType == PERIOD_MONTH)
-			typeString = "Month";
-		return "event_" + typeString + "_" + bucketNo;
-	}
-
-	private void createTable(int periodicityType, int bucketNo) {
-		
-		String tableName = makeTableName(periodicityType, bucketNo);
-		String createStmt =
-		"create table " + tableName + " ("
-		+"	    source_api_key text,"
-		+"	    source_remote_ip inet,"
-		+"	    tenant_id text,"
-		+"	    actor_uuid uuid,"
-		+"	    type text,"
-		+"	    properties frozen map,"
-		+"	    dimensions int,"
-		+"	    value text,"
-		+"	    occurrence_time timestamp,"
-		+"		ingestion_time timestamp,"
-		+"      bucket int,"
-		+"	    primary key((type, tenant_id, bucket), value, actor_uuid, occurrence_time)"
-		+"	) WITH COMPACTION = {'class': 'TimeWindowCompactionStrategy', "
-		+"	                     'compaction_window_unit': 'DAYS',"
-		+"	                     'compaction_window_size': 1};";
-		try {
-			Session sess = conn.getSession();
-			sess.execute(createStmt);
-			String indexStmt = "create index " + tableName + "_alt on " + tableName + " ("
-				+ "type, tenant_id, value, actor_uuid);";
-			sess.execute(indexStmt);
-		} catch (DriverException ex) {
-			log.log(Level.WARNING, "create table or index", ex);
+	/**
+	 * The value column is the URL property. It is pulled out with a single
+	 * scan of the properties string; only documents the scanner can't handle
+	 * (escaped keys and the like) go through a full JSON parse.
+	 * 
+	 * @return null if there is no URL
+	 */
+	static String extractValue(String properties) {
+		String value = JsonFieldExtractor.getString(properties, "URL");
+		if (value == null && properties != null) {
+			try {
+				value = new JSONObject(properties).getString("URL");
+			} catch (RuntimeException ex) {
+				return null;
+			}
 		}
+		return value;
 	}
-
+	
    // roll the numbers used to name the tables, avoiding resetting to 0 at start of year
     private void setupTimeSeriesRoll() {
 	   
-	  ScheduledExecutorService scheduler = Executors.newScheduledThreadPool(1);
-	 
       Runnable roller = new Runnable() {
 	    public void run() {
-		   currentHour++;
-		   hourInsertPs = null;
-		   createTable(PERIOD_HOUR, currentHour);
-		   oldestHour = checkForRolloff(PERIOD_HOUR, currentHour, oldestHour, maxHours);
+		   rollPeriod(PERIOD_HOUR);
 		   LocalDateTime date = LocalDateTime.now();
 		   int newDay = date.getDayOfMonth();
 		   if (newDay != dayValue) {
-			   currentDay++;
 			   dayValue = newDay;
-			   dayInsertPs = null;
-			   createTable(PERIOD_DAY, currentDay);
-			   oldestDay = checkForRolloff(PERIOD_DAY, currentDay, oldestDay, maxDays);
+			   rollPeriod(PERIOD_DAY);
 		   }
-		   TemporalField woy = WeekFields.of(Locale.getDefault()).weekOfWeekBasedYear(); 
-		   int newWeek = date.get(woy);
+		   int newWeek = weekOf(date);
 		   if (newWeek != weekValue) {
-			   currentWeek++;
 			   weekValue = newWeek;
-			   weekInsertPs = null;
-			   createTable(PERIOD_WEEK, currentWeek);
-			   oldestWeek = checkForRolloff(PERIOD_WEEK, currentWeek, oldestWeek, maxWeeks);
+			   rollPeriod(PERIOD_WEEK);
 		   }
 		   int newMonth = date.getMonthValue();
 		   if (newMonth != monthValue) {
-			   currentMonth++;
 			   monthValue = newMonth;
-			   monthInsertPs = null;
-			   createTable(PERIOD_MONTH, currentMonth);
-			   oldestMonth = checkForRolloff(PERIOD_MONTH, currentMonth, oldestMonth, maxMonths);
+			   rollPeriod(PERIOD_MONTH);
 		   }
 	     }
        };
  
-       long nextHour = LocalDateTime.now().withMinute(0).plusHours(1).toInstant(ZoneOffset.ofHours(0)).toEpochMilli();
-       scheduler.scheduleAtFixedRate(roller, nextHour, 1,  TimeUnit.HOURS);
+       ZonedDateTime now = ZonedDateTime.now();
+       long untilNextHour = Duration.between(now, now.truncatedTo(ChronoUnit.HOURS).plusHours(1)).toMillis();
+       scheduler.scheduleAtFixedRate(roller, untilNextHour, TimeUnit.HOURS.toMillis(1), TimeUnit.MILLISECONDS);
    	}
     
+    private static int weekOf(LocalDateTime date) {
+    	TemporalField woy = WeekFields.of(Locale.getDefault()).weekOfWeekBasedYear();
+    	return date.get(woy);
+    }
+    
+    /**
+     * The switch at the boundary: the table already exists and the store is
+     * ready for it, so this only bumps the number. Creating the
+     * next table ahead and rolling off the oldest is queued for the schema
+     * thread.
+     */
+    private void rollPeriod(int periodicityType) {
+    	long start = System.nanoTime();
+    	int next = getCurrentPeriodicity(periodicityType) + 1;
+    	startIndexPeriod(periodicityType, next);
+    	setCurrentPeriodicity(periodicityType, next);
+    	rollLatency.recordNanos(System.nanoTime() - start);
+    	saveSettings();
+    	try {
+    		schemaExecutor.execute(() -> maintainTables(periodicityType));
+    	} catch (RejectedExecutionException ex) {
+    		// shutting down
+    	}
+    }
+    
+    /**
+     * Makes sure the tables from the current one to precreatePeriods ahead
+     * exist and every node has them, has the store get ready for the next one,
+     * and rolls off tables past the limit. Runs on the schema thread, and
+     * once per period type at startup before the writers start.
+     */
+    private void maintainTables(int periodicityType) {
+    	long start = System.nanoTime();
+    	int current = getCurrentPeriodicity(periodicityType);
+    	int upTo = current + precreatePeriods;
+    	boolean created = false;
+    	for (int tableNo = Math.max(current, createdUpTo[periodicityType - 1] + 1); tableNo <= upTo; tableNo++) {
+    		store.createPeriod(periodicityType, tableNo);
+    		created = true;
+    	}
+    	createdUpTo[periodicityType - 1] = upTo;
+    	if (created) {
+    		long waitStart = System.nanoTime();
+    		if (!store.awaitSchema(TimeUnit.SECONDS.toMillis(schemaAgreementSeconds))) {
+    			log.warning("no schema agreement after " + schemaAgreementSeconds + "s, continuing");
+    			schemaTimeoutCount.increment();
+    		}
+    		schemaWaitLatency.recordNanos(System.nanoTime() - waitStart);
+    	}
+    	store.preparePeriod(periodicityType, current);
+    	store.preparePeriod(periodicityType, current + 1);
+    	int oldest = getOldestPeriodicity(periodicityType);
+    	int newOldest = checkForRolloff(periodicityType, current, oldest, getMaxPeriodicity(periodicityType));
+    	if (newOldest != oldest) {
+    		setOldestPeriodicity(periodicityType, newOldest);
+    		saveSettings();
+    	}
+    	maintainLatency.recordNanos(System.nanoTime() - start);
+    }
+    
+    // a new period is registered before the writers can see its number, so the index misses no insert
+    private void startIndexPeriod(int periodicityType, int bucketNo) {
+    	if (uniquenessIndex != null) {
+    		uniquenessIndex.startPeriod(periodicityType, bucketNo);
+    	}
+    }
+    
     private int checkForRolloff(int periodicityType, int current, int oldest, int max) {
     	
-    	int count = oldest - current + 1;
+    	int count = current - oldest + 1;
     	while (count > max) {
-    		dropTable(periodicityType, oldest);
+    		store.dropPeriod(periodicityType, oldest);
+    		if (uniquenessIndex != null) {
+    			uniquenessIndex.dropPeriod(periodicityType, oldest);
+    		}
+    		if (sketches != null) {
+    			sketches.drop(periodicityType, oldest);
+    		}
+    		if (uniquesCache != null) {
+    			uniquesCache.dropPeriod(periodicityType, oldest);
+    		}
     		oldest++;
     		count--;
     	}
     	return oldest;
     }
     
-    private void dropTable(int periodicityType, int bucketNo) {
-    	
-    	String cql = "drop table " + makeTableName(periodicityType, bucketNo) + ";";
-    	Session sess = conn.getSession();
-    	try {
-    		sess.execute(cql);
-    	} catch (DriverException ex) {
-    		log.log(Level.WARNING, "drop table", ex);
+    private void startWriters() {
+    	running = true;
+    	processors = new Processor[writerThreads];
+    	for (int i = 0; i < writerThreads; i++) {
+    		processors[i] = new Processor();
+    		processors[i].setName("event-writer-" + i);
+    		processors[i].start();
     	}
     }
     
     public void shutdown() {
-    	conn.close();
+    	running = false;
+    	scheduler.shutdown();
+    	schemaExecutor.shutdown();
+    	for (Processor processor : processors) {
+    		LockSupport.unpark(processor);
+    	}
+    	for (Processor processor : processors) {
+    		try {
+    			processor.join(30000);
+    		} catch (InterruptedException e) {
+    		}
+    	}
+    	try {
+    		schemaExecutor.awaitTermination(30, TimeUnit.SECONDS);
+    	} catch (InterruptedException e) {
+    	}
+    	// let the outstanding writes complete before closing
+    	store.close();
+    	spill.close();
+    	if (eventLog != null) {
+    		eventLog.close();
+    	}
+    	if (sketches != null) {
+    		sketches.flush();
+    	}
+    	if (conn != null) {
+    		conn.close();
+    	}
+    	metrics.unregister();
     	saveSettings();
     }
 
@@ -464,26 +1326,49 @@ public class UniqueEventTracker {
 	
 	class Processor extends Thread {
 		
-		volatile boolean waiting = false;
+		private List<Event> batch = new ArrayList<>(writerBatchSize);
+		private long[] positions = new long[writerBatchSize];
+		// set while parked so processEvent knows which writer to unpark
+		final AtomicBoolean parked = new AtomicBoolean();
+		volatile long wakeNanos;
 
 		public void run() {
 			
+			int idleCount = 0;
 			do {
-				try {
-					waiting = false;
-					Event event = queue.getFirst();
-					insert(event);
-				} catch (NoSuchElementException ex) {
-					// to be cooperative on cpu usage if there is a lull and not spin
-					waiting = true;
-					synchronized (processor) {
-						try {
-							processor.wait(30000);
-						} catch (InterruptedException e) {
-						}
+				queue.drainTo(batch, positions, writerBatchSize);
+				if (batch.size() < writerBatchSize && spill.hasPending()) {
+					spill.drainTo(batch, positions, writerBatchSize - batch.size());
+				}
+				if (!batch.isEmpty()) {
+					insert(batch, positions);
+					batch.clear();
+					idleCount = 0;
+				} else if (running) {
+					if (idleStrategy.willPark(idleCount)) {
+						park(idleCount);
+					} else {
+						idleStrategy.idle(idleCount);
+					}
+					if (idleCount < Integer.MAX_VALUE - 1) {
+						idleCount++;
 					}
 				}
-			} while (running);
+			} while (running || !queue.isEmpty() || spill.hasPending());
+		}
+		
+		private void park(int idleCount) {
+			parked.set(true);
+			parkedWriters.incrementAndGet();
+			// re-check after advertising, an event offered before this point saw no parked writer
+			if (running && queue.isEmpty() && !spill.hasPending()) {
+				idleStrategy.idle(idleCount);
+			}
+			if (parked.compareAndSet(true, false)) {
+				parkedWriters.decrementAndGet();
+			} else {
+				handoffLatency.recordNanos(System.nanoTime() - wakeNanos);
+			}
 		}
 	}
 	
@@ -0,0 +1,369 @@
+package org.dhenry.samples.main;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.datastax.driver.core.BoundStatement;
+import com.datastax.driver.core.PreparedStatement;
+import com.datastax.driver.core.ResultSet;
+import com.datastax.driver.core.ResultSetFuture;
+import com.datastax.driver.core.Row;
+import com.datastax.driver.core.Session;
+import com.datastax.driver.core.exceptions.DriverException;
+
+/**
+ * HyperLogLog sketches of the distinct (value, actor) pairs per type, tenant
+ * and dimension bit for each period table. Sketches are kept in memory,
+ * merged into the event_sketches table by flush, and read back from there for
+ * tables this process has not seen. Since several trackers can write the same
+ * rows, flush merges with what is saved and writes only if no one else has
+ * written in between. The event_sketches partition of a table is deleted when
+ * the table rolls off. Without a connection the sketches are only kept in
+ * memory.
+ */
+public class UniqueSketches {
+
+	private static final Logger log = Logger.getLogger(UniqueSketches.class.getName());
+
+	private final CassandraConnection conn;
+	private final int precision;
+	private final Map<Long,Map<String,Sketch>> periods = new ConcurrentHashMap<>();
+	private PreparedStatement insertPs, updatePs, selectOnePs, selectPs, selectTablePs, deletePs;
+	private static final int MAX_FLUSH_ATTEMPTS = 5;
+
+	private static class Sketch {
+		final String type;
+		final String tenantId;
+		final int dimensionBit;
+		final HyperLogLog hll;
+		volatile boolean dirty;
+
+		Sketch(String type, String tenantId, int dimensionBit, HyperLogLog hll) {
+			this.type = type;
+			this.tenantId = tenantId;
+			this.dimensionBit = dimensionBit;
+			this.hll = hll;
+		}
+	}
+
+	private static class Flushing {
+		final int periodType;
+		final int tableNo;
+		final Sketch sketch;
+
+		Flushing(int periodType, int tableNo, Sketch sketch) {
+			this.periodType = periodType;
+			this.tableNo = tableNo;
+			this.sketch = sketch;
+		}
+	}
+
+	/**
+	 * @param conn where sketches are persisted, null to keep them in memory only
+	 */
+	public UniqueSketches(CassandraConnection conn, int precision) {
+		this.conn = conn;
+		this.precision = precision;
+	}
+
+	public void createTable() {
+		if (conn == null) {
+			return;
+		}
+		Session sess = conn.getSession();
+		try {
+			sess.execute("create table if not exists event_sketches ("
+				+ "    period_type int,"
+				+ "    table_no int,"
+				+ "    type text,"
+				+ "    tenant_id text,"
+				+ "    dimension_bit int,"
+				+ "    registers blob,"
+				+ "    primary key((period_type, table_no), type, tenant_id, dimension_bit));");
+		} catch (DriverException ex) {
+			log.log(Level.WARNING, "create sketch table", ex);
+		}
+	}
+
+	/**
+	 * Adds the pair to the sketch of every dimension bit set.
+	 */
+	public void add(int periodType, int tableNo, String type, String tenantId, int dimensions,
+			String value, String actorUuid) {
+		if (dimensions == 0) {
+			return;
+		}
+		Map<String,Sketch> sketches = periods.computeIfAbsent(key(periodType, tableNo), k -> new ConcurrentHashMap<>());
+		long hash = BloomFilter.hash(value, actorUuid, null);
+		int bits = dimensions;
+		while (bits != 0) {
+			int bit = Integer.numberOfTrailingZeros(bits);
+			bits &= bits - 1;
+			Sketch sketch = sketches.get(sketchKey(type, tenantId, bit));
+			if (sketch == null) {
+				sketch = sketches.computeIfAbsent(sketchKey(type, tenantId, bit),
+					k -> new Sketch(type, tenantId, bit, new HyperLogLog(precision)));
+			}
+			if (sketch.hll.add(hash)) {
+				sketch.dirty = true;
+			}
+		}
+	}
+
+	/**
+	 * Union of the sketches for the given tables and every dimension bit set
+	 * in dimensions. Tables not in memory are read from event_sketches; closed
+	 * ones no longer change, so they are read whole once and kept.
+	 * 
+	 * @param currentTableNo the table still being written, tables before it are closed
+	 * @return estimated distinct (value, actor) pairs
+	 */
+	public long estimate(int periodType, int fromTableNo, int toTableNo, int currentTableNo, String type,
+			String tenantId, int dimensions) {
+		HyperLogLog union = new HyperLogLog(precision);
+		List<Integer> closed = new ArrayList<>();
+		List<Integer> open = new ArrayList<>();
+		for (int tableNo = fromTableNo; tableNo <= toTableNo; tableNo++) {
+			Map<String,Sketch> sketches = periods.get(key(periodType, tableNo));
+			if (sketches == null) {
+				(tableNo < currentTableNo ? closed : open).add(tableNo);
+				continue;
+			}
+			merge(union, sketches, type, tenantId, dimensions);
+		}
+		if ((!closed.isEmpty() || !open.isEmpty()) && conn != null) {
+			List<Integer> dimensionBits = new ArrayList<>();
+			for (int bit = 0; bit < 32; bit++) {
+				if ((dimensions & (1 << bit)) != 0) {
+					dimensionBits.add(bit);
+				}
+			}
+			Session sess = conn.getSession();
+			PreparedStatement ps = getSelect(sess);
+			List<ResultSetFuture> closedFutures = new ArrayList<>(closed.size());
+			for (int tableNo : closed) {
+				closedFutures.add(readTable(sess, periodType, tableNo));
+			}
+			List<ResultSetFuture> openFutures = new ArrayList<>(open.size());
+			for (int tableNo : open) {
+				openFutures.add(sess.executeAsync(ps.bind(periodType, tableNo, type, tenantId, dimensionBits)));
+			}
+			for (int i = 0; i < closed.size(); i++) {
+				Map<String,Sketch> loaded = toSketches(closedFutures.get(i).getUninterruptibly(), periodType);
+				Map<String,Sketch> sketches = periods.putIfAbsent(key(periodType, closed.get(i)), loaded);
+				merge(union, sketches != null ? sketches : loaded, type, tenantId, dimensions);
+			}
+			for (ResultSetFuture future : openFutures) {
+				for (Row row : future.getUninterruptibly()) {
+					HyperLogLog hll = atPrecision(HyperLogLog.fromBytes(bytes(row.getBytes("registers"))),
+						periodType, type, tenantId);
+					if (hll != null) {
+						union.merge(hll);
+					}
+				}
+			}
+		}
+		return union.estimate();
+	}
+
+	/**
+	 * Merges every sketch that changed since the last flush into its saved
+	 * row and waits for the writes to complete. A row is only written if it
+	 * still holds what was read, otherwise it is read and merged again; what
+	 * can't be written is left for the next flush.
+	 */
+	public void flush() {
+		if (conn == null) {
+			return;
+		}
+		Session sess = conn.getSession();
+		List<Flushing> pending = new ArrayList<>();
+		try {
+			if (insertPs == null) {
+				insertPs = sess.prepare("insert into event_sketches "
+					+ "(period_type, table_no, type, tenant_id, dimension_bit, registers) values (?, ?, ?, ?, ?, ?) "
+					+ "if not exists");
+				updatePs = sess.prepare("update event_sketches set registers = ? "
+					+ "where period_type = ? and table_no = ? and type = ? and tenant_id = ? and dimension_bit = ? "
+					+ "if registers = ?");
+				selectOnePs = sess.prepare("select registers from event_sketches "
+					+ "where period_type = ? and table_no = ? and type = ? and tenant_id = ? and dimension_bit = ?");
+			}
+			for (Map.Entry<Long,Map<String,Sketch>> period : periods.entrySet()) {
+				int periodType = (int) (period.getKey() >>> 32);
+				int tableNo = (int) (long) period.getKey();
+				for (Sketch sketch : period.getValue().values()) {
+					if (sketch.dirty) {
+						sketch.dirty = false;
+						pending.add(new Flushing(periodType, tableNo, sketch));
+					}
+				}
+			}
+			for (int attempt = 0; attempt < MAX_FLUSH_ATTEMPTS && !pending.isEmpty(); attempt++) {
+				List<ResultSetFuture> reads = new ArrayList<>(pending.size());
+				for (Flushing f : pending) {
+					reads.add(sess.executeAsync(selectOnePs.bind(f.periodType, f.tableNo, f.sketch.type,
+						f.sketch.tenantId, f.sketch.dimensionBit)));
+				}
+				List<ResultSetFuture> writes = new ArrayList<>(pending.size());
+				for (int i = 0; i < pending.size(); i++) {
+					Flushing f = pending.get(i);
+					Row row = reads.get(i).getUninterruptibly().one();
+					BoundStatement bs;
+					if (row == null) {
+						bs = insertPs.bind(f.periodType, f.tableNo, f.sketch.type, f.sketch.tenantId,
+							f.sketch.dimensionBit, ByteBuffer.wrap(f.sketch.hll.toBytes()));
+					} else {
+						// what the other trackers saved becomes part of this one's sketch
+						ByteBuffer saved = row.getBytes("registers");
+						HyperLogLog hll = atPrecision(HyperLogLog.fromBytes(bytes(saved)), f.periodType,
+							f.sketch.type, f.sketch.tenantId);
+						if (hll != null) {
+							f.sketch.hll.merge(hll);
+						}
+						bs = updatePs.bind(ByteBuffer.wrap(f.sketch.hll.toBytes()), f.periodType, f.tableNo,
+							f.sketch.type, f.sketch.tenantId, f.sketch.dimensionBit, saved);
+					}
+					writes.add(sess.executeAsync(bs));
+				}
+				List<Flushing> lost = new ArrayList<>();
+				for (int i = 0; i < pending.size(); i++) {
+					if (!writes.get(i).getUninterruptibly().wasApplied()) {
+						lost.add(pending.get(i));
+					}
+				}
+				pending = lost;
+			}
+			if (!pending.isEmpty()) {
+				log.warning(pending.size() + " sketches lost the race to other writers, retrying next flush");
+			}
+		} catch (DriverException ex) {
+			log.log(Level.WARNING, "flush sketches", ex);
+		} finally {
+			for (Flushing f : pending) {
+				f.sketch.dirty = true;
+			}
+		}
+	}
+
+	/**
+	 * Loads the persisted sketches of a table, so a table written before a
+	 * restart keeps counting from where it was.
+	 */
+	public void load(int periodType, int tableNo) {
+		Map<String,Sketch> sketches = periods.computeIfAbsent(key(periodType, tableNo), k -> new ConcurrentHashMap<>());
+		if (conn == null) {
+			return;
+		}
+		try {
+			Map<String,Sketch> loaded = toSketches(readTable(conn.getSession(), periodType, tableNo)
+				.getUninterruptibly(), periodType);
+			for (Map.Entry<String,Sketch> entry : loaded.entrySet()) {
+				Sketch existing = sketches.putIfAbsent(entry.getKey(), entry.getValue());
+				if (existing != null) {
+					existing.hll.merge(entry.getValue().hll);
+				}
+			}
+		} catch (DriverException ex) {
+			log.log(Level.WARNING, "load sketches", ex);
+		}
+	}
+
+	public void drop(int periodType, int tableNo) {
+		periods.remove(key(periodType, tableNo));
+		if (conn == null) {
+			return;
+		}
+		Session sess = conn.getSession();
+		try {
+			if (deletePs == null) {
+				deletePs = sess.prepare("delete from event_sketches where period_type = ? and table_no = ?");
+			}
+			sess.execute(deletePs.bind(periodType, tableNo));
+		} catch (DriverException ex) {
+			log.log(Level.WARNING, "drop sketches", ex);
+		}
+	}
+
+	private ResultSetFuture readTable(Session sess, int periodType, int tableNo) {
+		if (selectTablePs == null) {
+			selectTablePs = sess.prepare("select type, tenant_id, dimension_bit, registers from event_sketches "
+				+ "where period_type = ? and table_no = ?");
+		}
+		return sess.executeAsync(selectTablePs.bind(periodType, tableNo));
+	}
+
+	private Map<String,Sketch> toSketches(ResultSet rs, int periodType) {
+		Map<String,Sketch> sketches = new ConcurrentHashMap<>();
+		for (Row row : rs) {
+			String type = row.getString("type");
+			String tenantId = row.getString("tenant_id");
+			int bit = row.getInt("dimension_bit");
+			HyperLogLog hll = atPrecision(HyperLogLog.fromBytes(bytes(row.getBytes("registers"))),
+				periodType, type, tenantId);
+			if (hll != null) {
+				sketches.put(sketchKey(type, tenantId, bit), new Sketch(type, tenantId, bit, hll));
+			}
+		}
+		return sketches;
+	}
+
+	private static void merge(HyperLogLog union, Map<String,Sketch> sketches, String type, String tenantId,
+			int dimensions) {
+		int bits = dimensions;
+		while (bits != 0) {
+			int bit = Integer.numberOfTrailingZeros(bits);
+			bits &= bits - 1;
+			Sketch sketch = sketches.get(sketchKey(type, tenantId, bit));
+			if (sketch != null) {
+				union.merge(sketch.hll);
+			}
+		}
+	}
+
+	private PreparedStatement getSelect(Session sess) {
+		if (selectPs == null) {
+			selectPs = sess.prepare("select registers from event_sketches "
+				+ "where period_type = ? and table_no = ? and type = ? and tenant_id = ? and dimension_bit in ?");
+		}
+		return selectPs;
+	}
+
+	/**
+	 * Sketches saved before the precision setting changed: a finer one is
+	 * folded down to it, a coarser one can't be brought up and is left out,
+	 * so a table counts from scratch rather than failing every estimate.
+	 *
+	 * @return hll at this precision, or null
+	 */
+	private HyperLogLog atPrecision(HyperLogLog hll, int periodType, String type, String tenantId) {
+		if (hll.getPrecision() == precision) {
+			return hll;
+		}
+		if (hll.getPrecision() > precision) {
+			return hll.reduce(precision);
+		}
+		log.warning("skipping a period " + periodType + " sketch of " + type + " for " + tenantId + " at precision "
+			+ hll.getPrecision() + ", below " + precision);
+		return null;
+	}
+
+	private static byte[] bytes(ByteBuffer buffer) {
+		byte[] bytes = new byte[buffer.remaining()];
+		buffer.duplicate().get(bytes);
+		return bytes;
+	}
+
+	private static String sketchKey(String type, String tenantId, int bit) {
+		return type + '\0' + tenantId + '\0' + bit;
+	}
+
+	private static long key(int periodType, int tableNo) {
+		return ((long) periodType << 32) | (tableNo & 0xffffffffL);
+	}
+}
@@ -0,0 +1,129 @@
+package org.dhenry.samples.main;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * In-process index of the (type, value, actor) keys written to each period
+ * table, one Bloom filter per tenant, so lookups for something never seen can
+ * be answered without a Cassandra read.
+ * 
+ * A period is treated as authoritative if it was started here before
+ * anything was written to it, so the index is only correct when this process
+ * is the only one writing the tables: it has no way to see another tracker's
+ * inserts, and would answer "never seen" for them. For that reason it is off
+ * unless uniqueIndexEnabled is set. Tables that already existed when the
+ * process started are always a "maybe", and so is a tenant whose filter did
+ * not fit in the memory budget.
+ */
+public class UniquenessIndex {
+
+	private final long expectedPerTenant;
+	private final double fpp;
+	private final long maxBytes;
+	private final AtomicLong usedBytes = new AtomicLong();
+	private final Map<Long,Map<String,BloomFilter>> periods = new ConcurrentHashMap<>();
+	private final LongAdder hits = new LongAdder();
+	private final LongAdder misses = new LongAdder();
+	// marks a tenant whose filter did not fit the budget
+	private static final BloomFilter OVER_BUDGET = new BloomFilter(64, 1);
+
+	/**
+	 * @param expectedPerTenant keys per tenant per period the filters are sized for
+	 * @param fpp false-positive rate at that size
+	 * @param maxBytes budget for all filters together
+	 */
+	public UniquenessIndex(long expectedPerTenant, double fpp, long maxBytes) {
+		this.expectedPerTenant = expectedPerTenant;
+		this.fpp = fpp;
+		this.maxBytes = maxBytes;
+	}
+
+	/**
+	 * Must be called before any insert can reach the table.
+	 */
+	public void startPeriod(int periodType, int tableNo) {
+		periods.putIfAbsent(key(periodType, tableNo), new ConcurrentHashMap<>());
+	}
+
+	public void dropPeriod(int periodType, int tableNo) {
+		Map<String,BloomFilter> filters = periods.remove(key(periodType, tableNo));
+		if (filters != null) {
+			for (BloomFilter filter : filters.values()) {
+				if (filter != OVER_BUDGET) {
+					usedBytes.addAndGet(-filter.sizeInBytes());
+				}
+			}
+		}
+	}
+
+	public void put(int periodType, int tableNo, String type, String tenantId, String value, String actorUuid) {
+		Map<String,BloomFilter> filters = periods.get(key(periodType, tableNo));
+		if (filters == null) {
+			return;
+		}
+		BloomFilter filter = filters.computeIfAbsent(tenantId, t -> allocate());
+		if (filter != OVER_BUDGET) {
+			filter.put(BloomFilter.hash(type, value, actorUuid));
+		}
+	}
+
+	/**
+	 * @return false only if the key was definitely never written to the table
+	 */
+	public boolean mightContain(int periodType, int tableNo, String type, String tenantId,
+			String value, String actorUuid) {
+		boolean maybe = check(periodType, tableNo, type, tenantId, value, actorUuid);
+		if (maybe) {
+			misses.increment();
+		} else {
+			hits.increment();
+		}
+		return maybe;
+	}
+
+	private boolean check(int periodType, int tableNo, String type, String tenantId,
+			String value, String actorUuid) {
+		Map<String,BloomFilter> filters = periods.get(key(periodType, tableNo));
+		if (filters == null) {
+			return true;
+		}
+		BloomFilter filter = filters.get(tenantId);
+		if (filter == null) {
+			return false;
+		}
+		return filter == OVER_BUDGET || filter.mightContain(BloomFilter.hash(type, value, actorUuid));
+	}
+
+	private BloomFilter allocate() {
+		long size = BloomFilter.sizeInBytes(expectedPerTenant, fpp);
+		long used;
+		do {
+			used = usedBytes.get();
+			if (used + size > maxBytes) {
+				return OVER_BUDGET;
+			}
+		} while (!usedBytes.compareAndSet(used, used + size));
+		return BloomFilter.create(expectedPerTenant, fpp);
+	}
+
+	/** @return lookups answered "never seen" without going to Cassandra */
+	public long getHitCount() {
+		return hits.sum();
+	}
+
+	/** @return lookups that had to go to Cassandra */
+	public long getMissCount() {
+		return misses.sum();
+	}
+
+	public long getUsedBytes() {
+		return usedBytes.get();
+	}
+
+	private static long key(int periodType, int tableNo) {
+		return ((long) periodType << 32) | (tableNo & 0xffffffffL);
+	}
+}
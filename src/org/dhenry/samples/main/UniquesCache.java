@@ -0,0 +1,274 @@
+package org.dhenry.samples.main;
+
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * In-process read-through cache of checkUniques results: the records of one
+ * (type, tenant, actor, value) in one period table, including none. Tables
+ * of closed periods no longer change once the writes to them have landed,
+ * so their entries only leave when the cache is full or the table is
+ * dropped. Entries for a current table are kept up to date by the tracker's
+ * inserts and expire after ttl, for writers in other processes.
+ *
+ * Inserts only bump a striped stamp and count of writes in flight, and
+ * append to an entry that exists, no lock; the store's completion bumps the
+ * stamp again and counts the write down. A read that loaded from the store
+ * only keeps its result if no insert for the same actor came in meanwhile
+ * and none is still on its way to the store, retries and dead-letter
+ * replays included.
+ */
+public class UniquesCache {
+
+	private static final int STRIPES = 1024;
+
+	private final int maxEntries;
+	private final long ttlNanos;
+	private final Map<Key,Entry> entries = new ConcurrentHashMap<>();
+	private final AtomicLongArray stamps = new AtomicLongArray(STRIPES);
+	private final AtomicIntegerArray inFlight = new AtomicIntegerArray(STRIPES);
+	private final ReentrantLock evicting = new ReentrantLock();
+	private final LongAdder hits = new LongAdder();
+	private final LongAdder misses = new LongAdder();
+
+	private static class Key {
+		final int periodType;
+		final int tableNo;
+		final String type;
+		final String tenantId;
+		final String actorUuid;
+		final String value;
+		final int hash;
+
+		Key(int periodType, int tableNo, String type, String tenantId, String actorUuid, String value) {
+			this.periodType = periodType;
+			this.tableNo = tableNo;
+			this.type = type;
+			this.tenantId = tenantId;
+			this.actorUuid = actorUuid;
+			this.value = value;
+			int h = Objects.hashCode(type);
+			h = h * 31 + Objects.hashCode(tenantId);
+			h = h * 31 + Objects.hashCode(actorUuid);
+			h = h * 31 + Objects.hashCode(value);
+			hash = (h * 31 + periodType) * 31 + tableNo;
+		}
+
+		public int hashCode() {
+			return hash;
+		}
+
+		public boolean equals(Object o) {
+			if (o instanceof Key) {
+				Key other = (Key)o;
+				return hash == other.hash && periodType == other.periodType && tableNo == other.tableNo
+					&& Objects.equals(value, other.value) && Objects.equals(actorUuid, other.actorUuid)
+					&& Objects.equals(tenantId, other.tenantId) && Objects.equals(type, other.type);
+			}
+			return false;
+		}
+	}
+
+	/** the records of one key, a record being identified by its occurrence time */
+	private static class Entry {
+		final long loadedNanos = System.nanoTime();
+		volatile long lastUsedNanos = loadedNanos;
+		private final List<Event> events;
+
+		Entry(List<Event> events) {
+			this.events = new ArrayList<>(events);
+		}
+
+		synchronized List<Event> events() {
+			return new ArrayList<>(events);
+		}
+
+		synchronized void add(Event event) {
+			Instant occurred = event.getOccurrenceTime().toInstant();
+			for (int i = 0; i < events.size(); i++) {
+				if (events.get(i).getOccurrenceTime().toInstant().equals(occurred)) {
+					events.set(i, event);
+					return;
+				}
+			}
+			events.add(event);
+		}
+	}
+
+	/**
+	 * @param maxEntries entries kept, the least recently used go first
+	 * @param ttlSeconds how long an entry of a current table is trusted
+	 */
+	public UniquesCache(int maxEntries, int ttlSeconds) {
+		this.maxEntries = Math.max(1, maxEntries);
+		this.ttlNanos = TimeUnit.SECONDS.toNanos(ttlSeconds);
+	}
+
+	/**
+	 * @param closed the table belongs to a past period and no longer changes
+	 * @return the cached records, null if not cached
+	 */
+	public List<Event> get(int periodType, int tableNo, boolean closed, String type, String tenantId,
+			String actorUuid, String value) {
+		Key key = new Key(periodType, tableNo, type, tenantId, actorUuid, value);
+		Entry entry = entries.get(key);
+		long now = System.nanoTime();
+		// a closed table may still get the writes in flight, e.g. dead-lettered ones
+		boolean settled = closed && inFlight.get(stripe(type, tenantId, actorUuid)) == 0;
+		if (entry != null && !settled && now - entry.loadedNanos > ttlNanos) {
+			entries.remove(key, entry);
+			entry = null;
+		}
+		if (entry == null) {
+			misses.increment();
+			return null;
+		}
+		hits.increment();
+		entry.lastUsedNanos = now;
+		return entry.events();
+	}
+
+	/**
+	 * Taken before reading the store, for put.
+	 */
+	public long stamp(String type, String tenantId, String actorUuid) {
+		return stamps.get(stripe(type, tenantId, actorUuid));
+	}
+
+	/**
+	 * Caches what the store returned, unless an insert for the actor came in
+	 * since the stamp was taken or is still on its way to the store, and may
+	 * be missing from it.
+	 */
+	public void put(int periodType, int tableNo, String type, String tenantId, String actorUuid, String value,
+			List<Event> events, long stamp) {
+		int stripe = stripe(type, tenantId, actorUuid);
+		if (stamps.get(stripe) != stamp || inFlight.get(stripe) > 0) {
+			return;
+		}
+		Key key = new Key(periodType, tableNo, type, tenantId, actorUuid, value);
+		Entry entry = new Entry(events);
+		entries.put(key, entry);
+		// an insert between the check and the put may not have seen the entry
+		if (stamps.get(stripe) != stamp || inFlight.get(stripe) > 0) {
+			entries.remove(key, entry);
+			return;
+		}
+		if (entries.size() > maxEntries) {
+			evict();
+		}
+	}
+
+	/**
+	 * Write-through from insert, before the write is sent: the record joins
+	 * a cached entry, if there is one. Each call must be followed by stored
+	 * once the store is done with the write.
+	 */
+	public void written(int periodType, int tableNo, String type, String tenantId, String actorUuid,
+			String value, Event event) {
+		int stripe = stripe(type, tenantId, actorUuid);
+		inFlight.incrementAndGet(stripe);
+		stamps.incrementAndGet(stripe);
+		if (entries.isEmpty()) {
+			return;
+		}
+		Entry entry = entries.get(new Key(periodType, tableNo, type, tenantId, actorUuid, value));
+		if (entry != null) {
+			entry.add(event);
+		}
+	}
+
+	/**
+	 * From the store's completion of a write written was told about. A read
+	 * that ran before the write landed isn't cached; if it failed the record
+	 * isn't in the store, so the entry it joined goes.
+	 */
+	public void stored(int periodType, int tableNo, String type, String tenantId, String actorUuid,
+			String value, boolean success) {
+		int stripe = stripe(type, tenantId, actorUuid);
+		if (!success) {
+			entries.remove(new Key(periodType, tableNo, type, tenantId, actorUuid, value));
+		}
+		stamps.incrementAndGet(stripe);
+		inFlight.decrementAndGet(stripe);
+	}
+
+	public void dropPeriod(int periodType, int tableNo) {
+		Iterator<Key> it = entries.keySet().iterator();
+		while (it.hasNext()) {
+			Key key = it.next();
+			if (key.periodType == periodType && key.tableNo == tableNo) {
+				it.remove();
+			}
+		}
+	}
+
+	/**
+	 * Removes the least recently used tenth once the cache is over size, so
+	 * the sort is paid for now and then rather than on every put.
+	 */
+	private void evict() {
+		if (!evicting.tryLock()) {
+			return;
+		}
+		try {
+			int excess = entries.size() - maxEntries;
+			if (excess <= 0) {
+				return;
+			}
+			// ages relative to now, a snapshot that can't change under the sort
+			long now = System.nanoTime();
+			long[] ages = new long[entries.size()];
+			int n = 0;
+			for (Entry entry : entries.values()) {
+				if (n == ages.length) {
+					break;
+				}
+				ages[n++] = now - entry.lastUsedNanos;
+			}
+			Arrays.sort(ages, 0, n);
+			int remove = Math.min(n, excess + maxEntries / 10);
+			if (remove == 0) {
+				return;
+			}
+			long oldest = ages[n - remove];
+			Iterator<Entry> it = entries.values().iterator();
+			while (it.hasNext()) {
+				if (now - it.next().lastUsedNanos >= oldest) {
+					it.remove();
+				}
+			}
+		} finally {
+			evicting.unlock();
+		}
+	}
+
+	private static int stripe(String type, String tenantId, String actorUuid) {
+		int h = (Objects.hashCode(type) * 31 + Objects.hashCode(tenantId)) * 31 + Objects.hashCode(actorUuid);
+		h ^= h >>> 16;
+		return h & (STRIPES - 1);
+	}
+
+	public int size() {
+		return entries.size();
+	}
+
+	public long getHitCount() {
+		return hits.sum();
+	}
+
+	public long getMissCount() {
+		return misses.sum();
+	}
+}
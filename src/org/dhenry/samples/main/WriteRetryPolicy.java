@@ -0,0 +1,62 @@
+package org.dhenry.samples.main;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+import com.datastax.driver.core.exceptions.DriverException;
+import com.datastax.driver.core.exceptions.QueryValidationException;
+
+/**
+ * How CassandraEventStore retries a failed write: up to retries more
+ * attempts with exponential backoff and full jitter, then the write goes to
+ * its period's dead-letter queue of at most deadLetterCapacity writes, which
+ * is replayed every deadLetterReplayMillis.
+ */
+public class WriteRetryPolicy {
+
+	private final int retries;
+	private final int baseMillis;
+	private final int maxMillis;
+	private final int deadLetterCapacity;
+	private final int deadLetterReplayMillis;
+
+	public WriteRetryPolicy(int retries, int baseMillis, int maxMillis, int deadLetterCapacity,
+			int deadLetterReplayMillis) {
+		this.retries = Math.max(0, retries);
+		this.baseMillis = Math.max(1, baseMillis);
+		this.maxMillis = Math.max(this.baseMillis, maxMillis);
+		this.deadLetterCapacity = Math.max(0, deadLetterCapacity);
+		this.deadLetterReplayMillis = Math.max(1, deadLetterReplayMillis);
+	}
+
+	/**
+	 * Timeouts, unavailable and overloaded replicas and connection problems
+	 * are worth another try; a statement the cluster rejects as invalid (e.g.
+	 * its table was dropped) fails the same way every time.
+	 *
+	 * @param attempt the attempt that failed, 1 for the first
+	 */
+	public boolean shouldRetry(Throwable t, int attempt) {
+		return attempt <= retries && isTransient(t);
+	}
+
+	public boolean isTransient(Throwable t) {
+		return t instanceof DriverException && !(t instanceof QueryValidationException);
+	}
+
+	/**
+	 * @return a random delay up to baseMillis * 2^(attempt - 1), capped at
+	 * maxMillis, so retries from many writers don't arrive together
+	 */
+	public long backoffMillis(int attempt) {
+		long ceiling = Math.min(maxMillis, (long) baseMillis << Math.min(30, attempt - 1));
+		return 1 + ThreadLocalRandom.current().nextLong(ceiling);
+	}
+
+	public int getDeadLetterCapacity() {
+		return deadLetterCapacity;
+	}
+
+	public int getDeadLetterReplayMillis() {
+		return deadLetterReplayMillis;
+	}
+}
@@ -0,0 +1,210 @@
+package org.dhenry.samples.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.dhenry.samples.main.BoundedStack;
+import org.junit.After;
+import org.junit.Test;
+
+/**
+ * Besides the single-threaded cases, races in the manner of jcstress: each
+ * round sets up a fresh stack, lets a few actors loose on it at once and
+ * records what they saw and what an arbiter finds afterwards; over many
+ * rounds only the outcomes a linearizable stack allows may turn up.
+ */
+public class BoundedStackTests {
+
+	private static final int ROUNDS = 20000;
+
+	private final ExecutorService actors = Executors.newCachedThreadPool();
+
+	public BoundedStackTests() {
+
+	}
+
+	@After
+	public void tearDown() {
+		actors.shutdownNow();
+	}
+
+	@Test
+	public void popShouldBeLastPushed() {
+		BoundedStack<Integer> stack = new BoundedStack<>(4);
+		assertNull(stack.pop());
+		assertTrue(stack.push(1));
+		assertTrue(stack.push(2));
+		assertEquals(Integer.valueOf(2), stack.pop());
+		assertEquals(Integer.valueOf(1), stack.pop());
+		assertTrue(stack.isEmpty());
+	}
+
+	@Test
+	public void pushShouldFailWhenFull() {
+		BoundedStack<Integer> stack = new BoundedStack<>(4);
+		for (int i = 0; i < 4; i++) {
+			assertTrue(stack.push(i));
+		}
+		assertFalse(stack.push(4));
+		assertEquals(4, stack.size());
+		assertEquals(Integer.valueOf(3), stack.pop());
+		assertTrue(stack.push(4));
+	}
+
+	@Test
+	public void pushAllShouldBeAllOrNothing() {
+		BoundedStack<Integer> stack = new BoundedStack<>(4);
+		assertTrue(stack.push(0));
+		assertFalse(stack.pushAll(Arrays.asList(1, 2, 3, 4)));
+		assertEquals(1, stack.size());
+		assertTrue(stack.pushAll(Arrays.asList(1, 2, 3)));
+		assertEquals(Arrays.asList(3, 2), stack.popAll(2));
+		assertEquals(Arrays.asList(1, 0), stack.popAll(10));
+		assertNull(stack.popAll(10));
+	}
+
+	@Test
+	public void racingPushesShouldNotBothTakeTheLastSlot() throws Exception {
+		Set<String> outcomes = race(() -> {
+			BoundedStack<Integer> stack = new BoundedStack<>(1);
+			return new Callable<?>[] {() -> stack.push(1), () -> stack.push(2), () -> stack.pop(), stack::size};
+		});
+		assertAllowed(outcomes, "true false null 1", "false true null 1", "true false 1 0", "false true 2 0",
+			"true true 1 1", "true true 2 1");
+	}
+
+	@Test
+	public void racingPopsShouldNotBothTakeTheSameElement() throws Exception {
+		Set<String> outcomes = race(() -> {
+			BoundedStack<Integer> stack = new BoundedStack<>(2);
+			stack.push(1);
+			return new Callable<?>[] {() -> stack.pop(), () -> stack.pop(), stack::size};
+		});
+		assertAllowed(outcomes, "1 null 0", "null 1 0");
+	}
+
+	@Test
+	public void popAllShouldSeeABatchWholeOrNotAtAll() throws Exception {
+		Set<String> outcomes = race(() -> {
+			BoundedStack<Integer> stack = new BoundedStack<>(4);
+			return new Callable<?>[] {() -> stack.pushAll(Arrays.asList(1, 2, 3)), () -> stack.popAll(4),
+				() -> stack.popAll(1), stack::size};
+		});
+		// the single pop may go first and take the top of the batch
+		assertAllowed(outcomes, "true null null 3", "true [3, 2, 1] null 0", "true null [3] 2",
+			"true [2, 1] [3] 0");
+	}
+
+	@Test
+	public void pushAndPopOnOneSlotShouldHandTheElementOver() throws Exception {
+		// the push may claim the slot just as the pop empties it
+		Set<String> outcomes = race(() -> {
+			BoundedStack<Integer> stack = new BoundedStack<>(1);
+			stack.push(1);
+			return new Callable<?>[] {() -> stack.pop(), () -> stack.push(2), () -> stack.pop()};
+		});
+		assertAllowed(outcomes, "1 true 2", "1 false null");
+	}
+
+	@Test
+	public void concurrentPushesAndPopsShouldNotLoseElementsOrOverfill() throws InterruptedException {
+		BoundedStack<Integer> stack = new BoundedStack<>(16);
+		int pushers = 4;
+		int perPusher = 100000;
+		LongAdder popped = new LongAdder();
+		LongAdder sum = new LongAdder();
+		AtomicInteger maxSize = new AtomicInteger();
+		List<Thread> threads = new ArrayList<>();
+		for (int p = 0; p < pushers; p++) {
+			boolean batches = p % 2 == 0;
+			threads.add(new Thread(() -> {
+				for (int i = 1; i <= perPusher; i += batches ? 2 : 1) {
+					while (!(batches ? stack.pushAll(Arrays.asList(i, i + 1)) : stack.push(i))) {
+						Thread.yield();
+					}
+					maxSize.accumulateAndGet(stack.size(), Math::max);
+				}
+			}));
+		}
+		for (int c = 0; c < 2; c++) {
+			boolean batches = c == 0;
+			threads.add(new Thread(() -> {
+				while (popped.sum() < pushers * perPusher) {
+					List<Integer> taken = batches ? stack.popAll(3) : null;
+					Integer one = batches ? null : stack.pop();
+					if (taken != null) {
+						for (Integer i : taken) {
+							sum.add(i);
+						}
+						popped.add(taken.size());
+					} else if (one != null) {
+						sum.add(one);
+						popped.increment();
+					} else {
+						Thread.yield();
+					}
+				}
+			}));
+		}
+		for (Thread t : threads) {
+			t.start();
+		}
+		for (Thread t : threads) {
+			t.join();
+		}
+		assertEquals(pushers * perPusher, popped.sum());
+		assertEquals((long) pushers * perPusher * (perPusher + 1) / 2, sum.sum());
+		assertTrue(maxSize.get() <= 16);
+		assertTrue(stack.isEmpty());
+	}
+
+	/**
+	 * Runs ROUNDS rounds of what setup returns: actors started together,
+	 * then the last one, the arbiter, once they are done.
+	 *
+	 * @return the outcomes seen, each the actors' and arbiter's results
+	 */
+	private Set<String> race(Callable<Callable<?>[]> setup) throws Exception {
+		Set<String> outcomes = new HashSet<>();
+		for (int round = 0; round < ROUNDS; round++) {
+			Callable<?>[] callables = setup.call();
+			int n = callables.length - 1;
+			CyclicBarrier start = new CyclicBarrier(n);
+			List<Future<?>> results = new ArrayList<>();
+			for (int i = 0; i < n; i++) {
+				Callable<?> actor = callables[i];
+				results.add(actors.submit(() -> {
+					start.await();
+					return actor.call();
+				}));
+			}
+			StringBuilder outcome = new StringBuilder();
+			for (Future<?> result : results) {
+				outcome.append(result.get()).append(' ');
+			}
+			outcomes.add(outcome.append(callables[n].call()).toString());
+		}
+		return outcomes;
+	}
+
+	private void assertAllowed(Set<String> outcomes, String... allowed) {
+		Set<String> forbidden = new HashSet<>(outcomes);
+		forbidden.removeAll(Arrays.asList(allowed));
+		assertTrue("forbidden outcomes " + forbidden, forbidden.isEmpty());
+	}
+}
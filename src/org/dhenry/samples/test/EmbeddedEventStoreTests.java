@@ -0,0 +1,184 @@
+package org.dhenry.samples.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.time.Instant;
+import java.time.ZonedDateTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.dhenry.samples.main.EmbeddedEventStore;
+import org.dhenry.samples.main.Event;
+import org.dhenry.samples.main.JsonFieldExtractor;
+import org.dhenry.samples.main.UniqueEventTracker;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class EmbeddedEventStoreTests {
+
+	private static final String ACTOR = "6f1b3c2e-8f4a-4c1d-9a57-3b2e1d0c9f8a";
+	private static final int[] TABLES = {5, 2, 1, 1};
+	private File dir;
+
+	public EmbeddedEventStoreTests() {
+
+	}
+
+	@Before
+	public void setUp() throws IOException {
+		dir = Files.createTempDirectory("event-store").toFile();
+	}
+
+	@After
+	public void tearDown() {
+		delete(dir);
+	}
+
+	@Test
+	public void insertedRecordsShouldBeCountedByDimension() throws Exception {
+		EmbeddedEventStore store = new EmbeddedEventStore(dir.getPath(), 10);
+		ZonedDateTime now = ZonedDateTime.now();
+		insert(store, event("http://a", now, 1), event("http://a", now.plusSeconds(1), 2),
+			event("http://b", now, 3));
+		assertEquals(2, count(store, UniqueEventTracker.PERIOD_HOUR, 5, 3, "http://a"));
+		assertEquals(1, count(store, UniqueEventTracker.PERIOD_MONTH, 1, 1, "http://a"));
+		assertEquals(0, count(store, UniqueEventTracker.PERIOD_HOUR, 5, 4, "http://a"));
+		assertEquals(0, count(store, UniqueEventTracker.PERIOD_HOUR, 4, 3, "http://a"));
+		store.close();
+	}
+
+	@Test
+	public void writingAnEventTwiceShouldLeaveOneRecord() throws Exception {
+		EmbeddedEventStore store = new EmbeddedEventStore(dir.getPath(), 10);
+		Event event = event("http://a", ZonedDateTime.now(), 1);
+		insert(store, event);
+		insert(store, event);
+		assertEquals(1, count(store, UniqueEventTracker.PERIOD_DAY, 2, 1, "http://a"));
+		List<Event> found = new ArrayList<>();
+		store.forEachUnique(UniqueEventTracker.PERIOD_DAY, new int[] {2},
+			Collections.singletonList(Arrays.asList("http://a", "http://b")), Instant.EPOCH, Instant.now(),
+			"click", "tenant", ACTOR, found::add);
+		assertEquals(1, found.size());
+		store.close();
+	}
+
+	@Test
+	public void recordsShouldSurviveReopen() throws Exception {
+		EmbeddedEventStore store = new EmbeddedEventStore(dir.getPath(), 10);
+		insert(store, event("http://a", ZonedDateTime.now(), 1));
+		store.close();
+		store = new EmbeddedEventStore(dir.getPath(), 10);
+		assertEquals(1, count(store, UniqueEventTracker.PERIOD_WEEK, 1, 1, "http://a"));
+		insert(store, event("http://a", ZonedDateTime.now().plusSeconds(1), 1));
+		assertEquals(2, count(store, UniqueEventTracker.PERIOD_WEEK, 1, 1, "http://a"));
+		store.close();
+	}
+
+	@Test
+	public void droppedPeriodShouldBeEmpty() throws Exception {
+		EmbeddedEventStore store = new EmbeddedEventStore(dir.getPath(), 10);
+		insert(store, event("http://a", ZonedDateTime.now(), 1));
+		store.dropPeriod(UniqueEventTracker.PERIOD_HOUR, 5);
+		assertEquals(0, count(store, UniqueEventTracker.PERIOD_HOUR, 5, 1, "http://a"));
+		assertEquals(1, count(store, UniqueEventTracker.PERIOD_DAY, 2, 1, "http://a"));
+		store.close();
+	}
+
+	@Test
+	public void periodsShouldBeListedFromDisk() throws Exception {
+		EmbeddedEventStore store = new EmbeddedEventStore(dir.getPath(), 10);
+		store.createPeriod(UniqueEventTracker.PERIOD_HOUR, 3);
+		store.createPeriod(UniqueEventTracker.PERIOD_HOUR, 4);
+		insert(store, event("http://a", ZonedDateTime.now(), 1));
+		store.dropPeriod(UniqueEventTracker.PERIOD_HOUR, 3);
+		store.close();
+		store = new EmbeddedEventStore(dir.getPath(), 10);
+		assertEquals(new TreeSet<>(Arrays.asList(4, 5)), store.listPeriods(UniqueEventTracker.PERIOD_HOUR));
+		assertEquals(new TreeSet<>(Arrays.asList(1)), store.listPeriods(UniqueEventTracker.PERIOD_MONTH));
+		store.close();
+	}
+
+	@Test
+	public void insertAfterDropShouldNotRecreatePeriod() throws Exception {
+		EmbeddedEventStore store = new EmbeddedEventStore(dir.getPath(), 10);
+		insert(store, event("http://a", ZonedDateTime.now(), 1));
+		store.dropPeriod(UniqueEventTracker.PERIOD_HOUR, 5);
+		insert(store, event("http://a", ZonedDateTime.now().plusSeconds(1), 1));
+		assertEquals(0, count(store, UniqueEventTracker.PERIOD_HOUR, 5, 1, "http://a"));
+		assertEquals(new TreeSet<>(), store.listPeriods(UniqueEventTracker.PERIOD_HOUR));
+		assertEquals(2, count(store, UniqueEventTracker.PERIOD_DAY, 2, 1, "http://a"));
+		store.close();
+	}
+
+	@Test
+	public void segmentsShouldBeMergedWithoutLosingRecords() throws Exception {
+		EmbeddedEventStore store = new EmbeddedEventStore(dir.getPath(), 10);
+		ZonedDateTime now = ZonedDateTime.now();
+		// each insert waits for its own flush, so its own segment
+		for (int i = 0; i < 40; i++) {
+			insert(store, event("http://a", now.plusSeconds(i), 1), event("http://" + i, now, 1));
+		}
+		insert(store, event("http://a", now, 1));
+		String[] segments = new File(dir, "hour-5").list((d, name) -> name.endsWith(".seg"));
+		assertTrue(segments.length + " segments", segments.length <= 10);
+		assertEquals(40, count(store, UniqueEventTracker.PERIOD_HOUR, 5, 1, "http://a"));
+		assertEquals(1, count(store, UniqueEventTracker.PERIOD_HOUR, 5, 1, "http://39"));
+		store.close();
+		store = new EmbeddedEventStore(dir.getPath(), 10);
+		assertEquals(40, count(store, UniqueEventTracker.PERIOD_HOUR, 5, 1, "http://a"));
+		store.close();
+	}
+
+	private static Event event(String url, ZonedDateTime occurred, int dimensions) {
+		return new Event("key", "10.0.0.1", "tenant", ACTOR, "click", "{\"URL\":\"" + url + "\"}",
+			occurred.toString(), occurred.toString(), dimensions);
+	}
+
+	// waits for the flush, inserts are only reported done once on disk
+	private static void insert(EmbeddedEventStore store, Event... events) throws InterruptedException {
+		List<String> values = new ArrayList<>();
+		for (Event event : events) {
+			values.add(JsonFieldExtractor.getString(event.getProperties(), "URL"));
+		}
+		CountDownLatch latch = new CountDownLatch(1);
+		AtomicBoolean success = new AtomicBoolean();
+		store.insert(Arrays.asList(events), values, TABLES, ok -> {
+			success.set(ok);
+			latch.countDown();
+		});
+		assertTrue(latch.await(10, TimeUnit.SECONDS));
+		assertTrue(success.get());
+	}
+
+	private static int count(EmbeddedEventStore store, int periodType, int tableNo, int dimensions,
+			String value) throws Exception {
+		Set<Date> seen = new HashSet<>();
+		store.collectTotalUniques(periodType, new int[] {tableNo}, Instant.EPOCH, Instant.now(), "click",
+			"tenant", ACTOR, dimensions, value, seen);
+		return seen.size();
+	}
+
+	private static void delete(File file) {
+		File[] children = file.listFiles();
+		if (children != null) {
+			for (File child : children) {
+				delete(child);
+			}
+		}
+		file.delete();
+	}
+}
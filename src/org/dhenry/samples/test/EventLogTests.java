@@ -0,0 +1,178 @@
+package org.dhenry.samples.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.time.ZonedDateTime;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.dhenry.samples.main.Event;
+import org.dhenry.samples.main.EventLog;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class EventLogTests {
+
+	private static final String ACTOR = "6f1b3c2e-8f4a-4c1d-9a57-3b2e1d0c9f8a";
+	private File dir;
+
+	public EventLogTests() {
+
+	}
+
+	@Before
+	public void setUp() throws IOException {
+		dir = Files.createTempDirectory("event-log").toFile();
+	}
+
+	@After
+	public void tearDown() {
+		delete(dir);
+	}
+
+	@Test
+	public void acknowledgedSegmentShouldBeDeletedOnClose() throws IOException {
+		EventLog eventLog = open(1 << 16);
+		long position = eventLog.append(event("http://a"));
+		assertEquals(1, eventLog.getPendingCount());
+		eventLog.acknowledge(position);
+		assertEquals(0, eventLog.getPendingCount());
+		// still being appended to
+		assertTrue(segmentFile(0).exists());
+		eventLog.close();
+		assertFalse(segmentFile(0).exists());
+	}
+
+	@Test
+	public void rolledSegmentShouldBeKeptUntilAcknowledged() throws IOException {
+		EventLog eventLog = open(256);
+		List<Long> first = new ArrayList<>();
+		long position;
+		while ((position = eventLog.append(event("http://a"))) >>> 32 == 0) {
+			first.add(position);
+		}
+		assertTrue(first.size() > 0);
+		assertEquals(1, position >>> 32);
+		assertTrue(segmentFile(0).exists());
+		for (long p : first.subList(1, first.size())) {
+			eventLog.acknowledge(p);
+		}
+		assertTrue(segmentFile(0).exists());
+		eventLog.acknowledge(first.get(0));
+		assertFalse(segmentFile(0).exists());
+		assertTrue(segmentFile(1).exists());
+		assertEquals(1, eventLog.getPendingCount());
+		eventLog.close();
+	}
+
+	@Test
+	public void unacknowledgedRecordsShouldBeReplayedAfterRestart() throws IOException {
+		EventLog eventLog = open(1 << 16);
+		eventLog.acknowledge(eventLog.append(event("http://a")));
+		eventLog.append(event("http://b"));
+		eventLog.append(event("http://c"));
+		eventLog.close();
+
+		eventLog = new EventLog(dir.getPath(), 1 << 16, 0);
+		List<String> replayed = new ArrayList<>();
+		List<Long> positions = new ArrayList<>();
+		eventLog.replay((event, position) -> {
+			replayed.add(event.getProperties());
+			positions.add(position);
+		});
+		// acknowledged records are only dropped with their segment
+		assertEquals(3, replayed.size());
+		assertEquals("{\"URL\":\"http://c\"}", replayed.get(2));
+		assertEquals(3, eventLog.getPendingCount());
+		for (long position : positions) {
+			eventLog.acknowledge(position);
+		}
+		assertFalse(segmentFile(0).exists());
+		// appends go to a new segment
+		assertEquals(1, eventLog.append(event("http://d")) >>> 32);
+		eventLog.close();
+	}
+
+	@Test
+	public void tornTrailingRecordShouldBeIgnored() throws IOException {
+		EventLog eventLog = open(1 << 16);
+		eventLog.append(event("http://a"));
+		eventLog.append(event("http://b"));
+		long torn = eventLog.append(event("http://c"));
+		eventLog.close();
+		try (RandomAccessFile raf = new RandomAccessFile(segmentFile(0), "rw")) {
+			// past the length and checksum
+			long offset = (torn & 0xffffffffL) + 9;
+			raf.seek(offset);
+			int b = raf.read();
+			raf.seek(offset);
+			raf.write(b ^ 0xff);
+		}
+
+		eventLog = new EventLog(dir.getPath(), 1 << 16, 0);
+		List<String> replayed = new ArrayList<>();
+		eventLog.replay((event, position) -> replayed.add(event.getProperties()));
+		assertEquals(2, replayed.size());
+		assertEquals("{\"URL\":\"http://b\"}", replayed.get(1));
+		assertEquals(2, eventLog.getPendingCount());
+		eventLog.close();
+	}
+
+	@Test
+	public void acknowledgingDuringReplayShouldNotDeleteTheSegment() throws IOException {
+		EventLog eventLog = open(1 << 16);
+		eventLog.append(event("http://a"));
+		eventLog.append(event("http://b"));
+		eventLog.append(event("http://c"));
+		eventLog.close();
+
+		EventLog replaying = new EventLog(dir.getPath(), 1 << 16, 0);
+		List<Long> positions = new ArrayList<>();
+		// as if a writer stored each event as soon as it was handed over
+		replaying.replay((event, position) -> {
+			if (positions.isEmpty()) {
+				replaying.acknowledge(position);
+			}
+			positions.add(position);
+		});
+		assertEquals(3, positions.size());
+		assertTrue(segmentFile(0).exists());
+		assertEquals(2, replaying.getPendingCount());
+		replaying.acknowledge(positions.get(1));
+		replaying.acknowledge(positions.get(2));
+		assertFalse(segmentFile(0).exists());
+		replaying.close();
+	}
+
+	private EventLog open(int segmentBytes) throws IOException {
+		EventLog eventLog = new EventLog(dir.getPath(), segmentBytes, 0);
+		eventLog.replay((event, position) -> {});
+		return eventLog;
+	}
+
+	private File segmentFile(int number) {
+		return new File(dir, String.format("segment-%010d.log", number));
+	}
+
+	private static Event event(String url) {
+		String now = ZonedDateTime.now().toString();
+		return new Event("key", "10.0.0.1", "tenant", ACTOR, "click", "{\"URL\":\"" + url + "\"}", now, now, 1);
+	}
+
+	private static void delete(File file) {
+		File[] children = file.listFiles();
+		if (children != null) {
+			for (File child : children) {
+				delete(child);
+			}
+		}
+		file.delete();
+	}
+}
@@ -0,0 +1,81 @@
+package org.dhenry.samples.test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.dhenry.samples.main.BloomFilter;
+import org.dhenry.samples.main.HyperLogLog;
+import org.junit.Test;
+
+public class HyperLogLogTests {
+
+	public HyperLogLogTests() {
+		
+	}
+
+	private static long hash(int i) {
+		return BloomFilter.hash("value" + i, "actor", null);
+	}
+
+	@Test
+	public void smallCountsShouldBeNearlyExact() {
+		HyperLogLog hll = new HyperLogLog(12);
+		for (int i = 0; i < 100; i++) {
+			hll.add(hash(i));
+			hll.add(hash(i));
+		}
+		long estimate = hll.estimate();
+		assertTrue("estimate " + estimate, Math.abs(estimate - 100) <= 2);
+	}
+
+	@Test
+	public void largeCountsShouldBeWithinThreePercent() {
+		// standard error at precision 14 is 0.8%
+		HyperLogLog hll = new HyperLogLog(14);
+		for (int i = 0; i < 1000000; i++) {
+			hll.add(hash(i));
+		}
+		long estimate = hll.estimate();
+		assertTrue("estimate " + estimate, Math.abs(estimate - 1000000) < 30000);
+	}
+
+	@Test
+	public void mergeShouldEstimateTheUnion() {
+		HyperLogLog day1 = new HyperLogLog(14);
+		HyperLogLog day2 = new HyperLogLog(14);
+		for (int i = 0; i < 60000; i++) {
+			day1.add(hash(i));
+		}
+		for (int i = 40000; i < 100000; i++) {
+			day2.add(hash(i));
+		}
+		day1.merge(day2);
+		long estimate = day1.estimate();
+		assertTrue("estimate " + estimate, Math.abs(estimate - 100000) < 3000);
+	}
+
+	@Test
+	public void reducedSketchShouldMatchOneBuiltAtTheLowerPrecision() {
+		HyperLogLog fine = new HyperLogLog(14);
+		HyperLogLog coarse = new HyperLogLog(10);
+		for (int i = 0; i < 50000; i++) {
+			fine.add(hash(i));
+			coarse.add(hash(i));
+		}
+		HyperLogLog reduced = fine.reduce(10);
+		assertEquals(10, reduced.getPrecision());
+		assertArrayEquals(coarse.toBytes(), reduced.toBytes());
+	}
+
+	@Test
+	public void bytesShouldRoundTrip() {
+		HyperLogLog hll = new HyperLogLog(10);
+		for (int i = 0; i < 5000; i++) {
+			hll.add(hash(i));
+		}
+		HyperLogLog copy = HyperLogLog.fromBytes(hll.toBytes());
+		assertEquals(10, copy.getPrecision());
+		assertEquals(hll.estimate(), copy.estimate());
+	}
+}
@@ -0,0 +1,42 @@
+package org.dhenry.samples.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import org.dhenry.samples.main.JsonFieldExtractor;
+import org.junit.Test;
+
+public class JsonFieldExtractorTests {
+
+	public JsonFieldExtractorTests() {
+		
+	}
+
+	@Test
+	public void topLevelFieldShouldBeFound() {
+		assertEquals("http://a.com/x", JsonFieldExtractor.getString("{\"URL\":\"http://a.com/x\"}", "URL"));
+		assertEquals("http://a.com/x", JsonFieldExtractor.getString(
+			" { \"n\" : 1.5e3 , \"ok\": true, \"URL\" : \"http://a.com/x\", \"z\": null } ", "URL"));
+	}
+
+	@Test
+	public void nestedFieldsShouldBeSkipped() {
+		String json = "{\"meta\":{\"URL\":\"inner\",\"list\":[1,{\"URL\":\"deeper\"},\"]}\"]},\"URL\":\"outer\"}";
+		assertEquals("outer", JsonFieldExtractor.getString(json, "URL"));
+	}
+
+	@Test
+	public void escapesShouldBeDecoded() {
+		assertEquals("a\"b\\c/d\u00e9", JsonFieldExtractor.getString("{\"URL\":\"a\\\"b\\\\c\\/d\\u00e9\"}", "URL"));
+	}
+
+	@Test
+	public void missingOrMalformedShouldBeNull() {
+		assertNull(JsonFieldExtractor.getString("{\"url\":\"lower case\"}", "URL"));
+		assertNull(JsonFieldExtractor.getString("{\"URL\":42}", "URL"));
+		assertNull(JsonFieldExtractor.getString("{\"URL\":\"unterminated}", "URL"));
+		assertNull(JsonFieldExtractor.getString("[\"URL\"]", "URL"));
+		assertNull(JsonFieldExtractor.getString("{}", "URL"));
+		assertNull(JsonFieldExtractor.getString(null, "URL"));
+	}
+}
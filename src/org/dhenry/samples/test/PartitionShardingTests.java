@@ -0,0 +1,56 @@
+package org.dhenry.samples.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+
+import org.dhenry.samples.main.PartitionSharding;
+import org.junit.Test;
+
+public class PartitionShardingTests {
+
+	public PartitionShardingTests() {
+
+	}
+
+	@Test
+	public void actorsShouldSpreadOverAllShards() {
+		PartitionSharding sharding = new PartitionSharding(8, false);
+		int[] counts = new int[8];
+		for (int i = 0; i < 8000; i++) {
+			counts[sharding.shard("http://a", UUID.randomUUID().toString())]++;
+		}
+		for (int count : counts) {
+			assertTrue(count > 700 && count < 1300);
+		}
+	}
+
+	@Test
+	public void readsShouldOnlyVisitShardsOfTheirRecords() {
+		String actor = UUID.randomUUID().toString();
+		List<String> values = Arrays.asList("http://a", "http://b", "http://c", "http://d");
+		PartitionSharding byActor = new PartitionSharding(8, false);
+		assertEquals(Arrays.asList(byActor.shard("http://a", actor)), byActor.shards(values, actor));
+
+		PartitionSharding byValue = new PartitionSharding(8, true);
+		Set<Integer> expected = new HashSet<>();
+		for (String value : values) {
+			expected.add(byValue.shard(value, actor));
+		}
+		List<Integer> shards = byValue.shards(values, actor);
+		assertEquals(expected, new HashSet<>(shards));
+		assertEquals(expected.size(), shards.size());
+	}
+
+	@Test
+	public void oneShardShouldAlwaysBeZero() {
+		PartitionSharding sharding = new PartitionSharding(1, true);
+		assertEquals(0, sharding.shard("http://a", UUID.randomUUID().toString()));
+		assertEquals(Arrays.asList(0), sharding.shards(Arrays.asList("http://a", "http://b"), null));
+	}
+}
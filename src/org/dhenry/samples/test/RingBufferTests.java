@@ -0,0 +1,101 @@
+package org.dhenry.samples.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.dhenry.samples.main.RingBuffer;
+import org.junit.Test;
+
+public class RingBufferTests {
+
+	public RingBufferTests() {
+		
+	}
+
+	@Test
+	public void capacityShouldRoundUpToPowerOfTwo() {
+		RingBuffer<Integer> ring = new RingBuffer<>(100);
+		assertEquals(128, ring.capacity());
+	}
+
+	@Test
+	public void offerShouldFailWhenFull() {
+		RingBuffer<Integer> ring = new RingBuffer<>(4);
+		for (int i = 0; i < 4; i++) {
+			assertTrue(ring.offer(i));
+		}
+		assertFalse(ring.offer(4));
+		assertEquals(4, ring.size());
+		assertEquals(Integer.valueOf(0), ring.poll());
+		assertTrue(ring.offer(4));
+	}
+
+	@Test
+	public void pollShouldBeFifoAcrossLaps() {
+		RingBuffer<Integer> ring = new RingBuffer<>(4);
+		for (int i = 0; i < 10; i++) {
+			assertTrue(ring.offer(i));
+			assertTrue(ring.offer(i + 100));
+			assertEquals(Integer.valueOf(i), ring.poll());
+			assertEquals(Integer.valueOf(i + 100), ring.poll());
+		}
+		assertNull(ring.poll());
+		assertTrue(ring.isEmpty());
+	}
+
+	@Test
+	public void drainToShouldStopAtMax() {
+		RingBuffer<Integer> ring = new RingBuffer<>(16);
+		for (int i = 0; i < 10; i++) {
+			ring.offer(i);
+		}
+		List<Integer> batch = new ArrayList<>();
+		assertEquals(6, ring.drainTo(batch, 6));
+		assertEquals(6, batch.size());
+		assertEquals(4, ring.size());
+	}
+
+	@Test
+	public void concurrentProducersAndConsumersShouldNotLoseElements() throws InterruptedException {
+		RingBuffer<Integer> ring = new RingBuffer<>(64);
+		int producers = 4;
+		int perProducer = 100000;
+		LongAdder consumed = new LongAdder();
+		LongAdder sum = new LongAdder();
+		List<Thread> threads = new ArrayList<>();
+		for (int p = 0; p < producers; p++) {
+			threads.add(new Thread(() -> {
+				for (int i = 1; i <= perProducer; i++) {
+					while (!ring.offer(i)) {
+						Thread.yield();
+					}
+				}
+			}));
+		}
+		for (int c = 0; c < 2; c++) {
+			threads.add(new Thread(() -> {
+				while (consumed.sum() < producers * perProducer) {
+					Integer i = ring.poll();
+					if (i != null) {
+						sum.add(i);
+						consumed.increment();
+					}
+				}
+			}));
+		}
+		for (Thread t : threads) {
+			t.start();
+		}
+		for (Thread t : threads) {
+			t.join();
+		}
+		assertEquals(producers * perProducer, consumed.sum());
+		assertEquals((long) producers * perProducer * (perProducer + 1) / 2, sum.sum());
+	}
+}
@@ -0,0 +1,371 @@
+package org.dhenry.samples.test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.dhenry.samples.main.StackProtocol;
+import org.dhenry.samples.main.StackServer;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class StackServerTests {
+
+	private StackServer server;
+	private ExecutorService clients = Executors.newCachedThreadPool();
+
+	public StackServerTests() {
+
+	}
+
+	@Before
+	public void setUp() {
+		server = new StackServer(0, 2, StackServer.CONN_MAX_COUNT);
+		server.run();
+	}
+
+	@After
+	public void tearDown() {
+		server.shutdown();
+		clients.shutdownNow();
+	}
+
+	@Test
+	public void poppedShouldBeLastPushed() throws Exception {
+		assertEquals(0, push("a".getBytes()));
+		assertEquals(0, push("bc".getBytes()));
+		assertArrayEquals("bc".getBytes(), pop());
+		assertArrayEquals("a".getBytes(), pop());
+		assertEquals(0, server.getSize());
+	}
+
+	@Test
+	public void popShouldWaitForAPush() throws Exception {
+		Future<byte[]> popped = clients.submit(this::pop);
+		Thread.sleep(100);
+		assertFalse(popped.isDone());
+		assertEquals(0, push("a".getBytes()));
+		assertArrayEquals("a".getBytes(), popped.get(5, TimeUnit.SECONDS));
+	}
+
+	@Test
+	public void pushToFullStackShouldWaitForAPop() throws Exception {
+		for (int i = 0; i < StackServer.STACK_MAX_SIZE; i++) {
+			assertEquals(0, push(new byte[] {(byte) i}));
+		}
+		Future<Integer> pushed = clients.submit(() -> push("x".getBytes()));
+		Thread.sleep(100);
+		assertFalse(pushed.isDone());
+		assertArrayEquals(new byte[] {StackServer.STACK_MAX_SIZE - 1}, pop());
+		assertEquals(0, (int) pushed.get(5, TimeUnit.SECONDS));
+		assertArrayEquals("x".getBytes(), pop());
+	}
+
+	@Test
+	public void messageShouldNotBeLostToAClientThatLeft() throws Exception {
+		Socket waiting = new Socket("localhost", server.getPort());
+		waiting.getOutputStream().write(0x80);
+		Thread.sleep(100);
+		waiting.close();
+		Thread.sleep(100);
+		assertEquals(0, push("a".getBytes()));
+		assertArrayEquals("a".getBytes(), pop());
+	}
+
+	@Test
+	public void threadPerConnectionShouldWaitTheSameWay() throws Exception {
+		server.shutdown();
+		server = new StackServer(0, 0, StackServer.CONN_MAX_COUNT, true);
+		server.run();
+		Future<byte[]> popped = clients.submit(this::pop);
+		Thread.sleep(100);
+		assertFalse(popped.isDone());
+		assertEquals(0, push("a".getBytes()));
+		assertArrayEquals("a".getBytes(), popped.get(5, TimeUnit.SECONDS));
+		assertEquals(0, push("b".getBytes()));
+		assertArrayEquals("b".getBytes(), pop());
+	}
+
+	@Test
+	public void framedClientShouldPipelineOnOneConnection() throws Exception {
+		framedClientShouldPipeline();
+	}
+
+	@Test
+	public void framedClientShouldPipelineWithThreadPerConnection() throws Exception {
+		server.shutdown();
+		server = new StackServer(0, 0, StackServer.CONN_MAX_COUNT, true);
+		server.run();
+		framedClientShouldPipeline();
+	}
+
+	@Test
+	public void batchesShouldBePushedAndPoppedTogether() throws Exception {
+		batchesShouldMoveTogether();
+	}
+
+	@Test
+	public void batchesShouldBePushedAndPoppedTogetherWithThreadPerConnection() throws Exception {
+		server.shutdown();
+		server = new StackServer(0, 0, StackServer.CONN_MAX_COUNT, true);
+		server.run();
+		batchesShouldMoveTogether();
+	}
+
+	private void batchesShouldMoveTogether() throws Exception {
+		try (Socket sock = new Socket("localhost", server.getPort())) {
+			DataOutputStream out = new DataOutputStream(sock.getOutputStream());
+			DataInputStream in = new DataInputStream(sock.getInputStream());
+			handshake(out, in);
+
+			// a waiting POP_N gets a whole PUSH_N at once
+			send(out, StackProtocol.POP_N, 1, ByteBuffer.allocate(4).putInt(10).array());
+			send(out, StackProtocol.PUSH_N, 2, messages("a", "b", "c"));
+			out.flush();
+			Map<Integer, byte[]> responses = new HashMap<>();
+			for (int i = 0; i < 2; i++) {
+				int length = in.readInt();
+				assertEquals(StackProtocol.OK, in.read());
+				byte[] payload = new byte[length - 5];
+				int id = in.readInt();
+				in.readFully(payload);
+				responses.put(id, payload);
+			}
+			assertArrayEquals(messages("c", "b", "a"), responses.get(1));
+			assertArrayEquals(new byte[0], responses.get(2));
+
+			send(out, StackProtocol.PUSH_N, 3, messages("d", "e", "f"));
+			send(out, StackProtocol.POP_N, 4, ByteBuffer.allocate(4).putInt(2).array());
+			send(out, StackProtocol.PUSH_N, 5, new byte[] {0, 0, 0, 9, 1});
+			out.flush();
+			assertEquals(5, in.readInt());
+			assertEquals(StackProtocol.OK, in.read());
+			assertEquals(3, in.readInt());
+			byte[] popped = messages("f", "e");
+			assertEquals(5 + popped.length, in.readInt());
+			assertEquals(StackProtocol.OK, in.read());
+			assertEquals(4, in.readInt());
+			byte[] payload = new byte[popped.length];
+			in.readFully(payload);
+			assertArrayEquals(popped, payload);
+			assertEquals(5, in.readInt());
+			assertEquals(StackProtocol.BAD_REQUEST, in.read());
+			assertEquals(5, in.readInt());
+		}
+		assertArrayEquals("d".getBytes(), pop());
+		assertEquals(0, server.getSize());
+	}
+
+	@Test
+	public void connectionWithTooManyWaitingShouldNotBeRead() throws Exception {
+		tooManyWaitingShouldStopReading();
+	}
+
+	@Test
+	public void connectionWithTooManyWaitingShouldNotBeReadWithThreadPerConnection() throws Exception {
+		server.shutdown();
+		server = new StackServer(0, 0, StackServer.CONN_MAX_COUNT, true);
+		server.run();
+		tooManyWaitingShouldStopReading();
+	}
+
+	private void tooManyWaitingShouldStopReading() throws Exception {
+		try (Socket sock = new Socket("localhost", server.getPort())) {
+			DataOutputStream out = new DataOutputStream(sock.getOutputStream());
+			DataInputStream in = new DataInputStream(sock.getInputStream());
+			handshake(out, in);
+			for (int id = 0; id < StackServer.WAITING_MAX_COUNT; id++) {
+				send(out, StackProtocol.POP, id, new byte[0]);
+			}
+			// would feed the first pop if it were read
+			send(out, StackProtocol.PUSH, -1, "a".getBytes());
+			out.flush();
+			sock.setSoTimeout(500);
+			try {
+				in.readInt();
+				fail("a request past the limit was read");
+			} catch (SocketTimeoutException ex) {
+			}
+			sock.setSoTimeout(10000);
+
+			// a push from elsewhere frees a place, then the one behind is read
+			assertEquals(0, push("b".getBytes()));
+			Map<Integer, byte[]> responses = new HashMap<>();
+			for (int i = 0; i < 3; i++) {
+				int length = in.readInt();
+				assertEquals(StackProtocol.OK, in.read());
+				int id = in.readInt();
+				byte[] payload = new byte[length - 5];
+				in.readFully(payload);
+				responses.put(id, payload);
+			}
+			assertArrayEquals("b".getBytes(), responses.get(0));
+			assertArrayEquals(new byte[0], responses.get(-1));
+			assertArrayEquals("a".getBytes(), responses.get(1));
+		}
+	}
+
+	@Test
+	public void legacyPopShouldPassOverMessagesTooLongForIt() throws Exception {
+		legacyPopShouldPassOverLongMessages();
+	}
+
+	@Test
+	public void legacyPopShouldPassOverMessagesTooLongForItWithThreadPerConnection() throws Exception {
+		server.shutdown();
+		server = new StackServer(0, 0, StackServer.CONN_MAX_COUNT, true);
+		server.run();
+		legacyPopShouldPassOverLongMessages();
+	}
+
+	private void legacyPopShouldPassOverLongMessages() throws Exception {
+		byte[] big = new byte[200];
+		try (Socket sock = new Socket("localhost", server.getPort())) {
+			DataOutputStream out = new DataOutputStream(sock.getOutputStream());
+			DataInputStream in = new DataInputStream(sock.getInputStream());
+			handshake(out, in);
+			assertEquals(0, push("a".getBytes()));
+			send(out, StackProtocol.PUSH, 1, big);
+			out.flush();
+			assertEquals(5, in.readInt());
+			assertEquals(StackProtocol.OK, in.read());
+			assertEquals(1, in.readInt());
+
+			assertArrayEquals("a".getBytes(), pop());
+			// with only the long one left it waits for one it can take
+			Future<byte[]> popped = clients.submit(this::pop);
+			Thread.sleep(200);
+			assertFalse(popped.isDone());
+			assertEquals(0, push("b".getBytes()));
+			assertArrayEquals("b".getBytes(), popped.get(10, TimeUnit.SECONDS));
+
+			send(out, StackProtocol.POP, 2, new byte[0]);
+			out.flush();
+			assertEquals(5 + big.length, in.readInt());
+			assertEquals(StackProtocol.OK, in.read());
+			assertEquals(2, in.readInt());
+		}
+		assertEquals(0, server.getSize());
+	}
+
+	@Test
+	public void clientLeavingMidwayThroughATooLargeFrameShouldBeClosed() throws Exception {
+		server.shutdown();
+		server = new StackServer(0, 0, StackServer.CONN_MAX_COUNT, true, 1024);
+		server.run();
+		try (Socket sock = new Socket("localhost", server.getPort())) {
+			DataOutputStream out = new DataOutputStream(sock.getOutputStream());
+			DataInputStream in = new DataInputStream(sock.getInputStream());
+			handshake(out, in);
+			out.writeInt(100000);
+			out.write(StackProtocol.PUSH);
+			out.writeInt(1);
+			out.flush();
+		}
+		for (int i = 0; i < 50 && server.getConnectionCount() > 0; i++) {
+			Thread.sleep(100);
+		}
+		assertEquals(0, server.getConnectionCount());
+	}
+
+	private void framedClientShouldPipeline() throws Exception {
+		try (Socket sock = new Socket("localhost", server.getPort())) {
+			DataOutputStream out = new DataOutputStream(sock.getOutputStream());
+			DataInputStream in = new DataInputStream(sock.getInputStream());
+			handshake(out, in);
+
+			// the pop waits, the push behind it isn't held up and feeds it
+			send(out, StackProtocol.POP, 1, new byte[0]);
+			send(out, StackProtocol.PUSH, 2, "a".getBytes());
+			send(out, StackProtocol.PUSH, 3, "bc".getBytes());
+			send(out, StackProtocol.POP, 4, new byte[0]);
+			send(out, 99, 5, new byte[0]);
+			out.flush();
+			long start = System.nanoTime();
+			Map<Integer, byte[]> responses = new HashMap<>();
+			for (int i = 0; i < 5; i++) {
+				int length = in.readInt();
+				int code = in.read();
+				int id = in.readInt();
+				byte[] payload = new byte[length - 5];
+				in.readFully(payload);
+				assertEquals(id == 5 ? StackProtocol.BAD_REQUEST : StackProtocol.OK, code);
+				responses.put(id, payload);
+			}
+			assertArrayEquals("a".getBytes(), responses.get(1));
+			assertArrayEquals(new byte[0], responses.get(2));
+			assertArrayEquals("bc".getBytes(), responses.get(4));
+			// the push answers the pop waiting on the same connection right away
+			assertTrue(System.nanoTime() - start < TimeUnit.MILLISECONDS.toNanos(500));
+
+			send(out, StackProtocol.PUSH, 6, new byte[StackProtocol.DEFAULT_MAX_PAYLOAD + 1]);
+			out.flush();
+			assertEquals(5, in.readInt());
+			assertEquals(StackProtocol.TOO_LARGE, in.read());
+			assertEquals(6, in.readInt());
+		}
+		// legacy clients still work alongside
+		assertEquals(0, push("d".getBytes()));
+		assertArrayEquals("d".getBytes(), pop());
+		assertEquals(0, server.getSize());
+	}
+
+	private void handshake(DataOutputStream out, DataInputStream in) throws IOException {
+		out.write(new byte[] {(byte) StackProtocol.MAGIC, StackProtocol.VERSION});
+		assertEquals(StackProtocol.MAGIC, in.read());
+		assertEquals(StackProtocol.VERSION, in.read());
+	}
+
+	private byte[] messages(String... messages) {
+		ByteBuffer payload = ByteBuffer.allocate(1024);
+		for (String m : messages) {
+			payload.putInt(m.length()).put(m.getBytes());
+		}
+		return Arrays.copyOf(payload.array(), payload.position());
+	}
+
+	private void send(DataOutputStream out, int code, int id, byte[] payload) throws IOException {
+		out.writeInt(5 + payload.length);
+		out.write(code);
+		out.writeInt(id);
+		out.write(payload);
+	}
+
+	private int push(byte[] data) throws IOException {
+		try (Socket sock = new Socket("localhost", server.getPort())) {
+			OutputStream out = sock.getOutputStream();
+			out.write(data.length);
+			out.write(data);
+			out.flush();
+			return sock.getInputStream().read();
+		}
+	}
+
+	private byte[] pop() throws IOException {
+		try (Socket sock = new Socket("localhost", server.getPort())) {
+			sock.getOutputStream().write(0x80);
+			DataInputStream in = new DataInputStream(sock.getInputStream());
+			byte[] data = new byte[in.read()];
+			in.readFully(data);
+			return data;
+		}
+	}
+}
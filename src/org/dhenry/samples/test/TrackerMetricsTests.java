@@ -0,0 +1,87 @@
+package org.dhenry.samples.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+
+import javax.management.ObjectName;
+import javax.management.ReflectionException;
+
+import org.dhenry.samples.main.LatencyHistogram;
+import org.dhenry.samples.main.TrackerMetrics;
+import org.junit.Test;
+
+public class TrackerMetricsTests {
+
+	public TrackerMetricsTests() {
+
+	}
+
+	@Test
+	public void smallValuesShouldBeExact() {
+		LatencyHistogram histogram = new LatencyHistogram();
+		for (int i = 1; i <= 50; i++) {
+			histogram.recordMicros(i);
+		}
+		LatencyHistogram.Snapshot snapshot = histogram.snapshot();
+		assertEquals(50, snapshot.getCount());
+		assertEquals(25, snapshot.getPercentileMicros(50));
+		assertEquals(50, snapshot.getPercentileMicros(100));
+		assertEquals(50, snapshot.getMaxMicros());
+		assertEquals(25, snapshot.getMeanMicros());
+	}
+
+	@Test
+	public void percentilesShouldBeWithinBucketError() {
+		LatencyHistogram histogram = new LatencyHistogram();
+		for (int i = 1; i <= 100000; i++) {
+			histogram.recordMicros(i);
+		}
+		LatencyHistogram.Snapshot snapshot = histogram.snapshot();
+		for (double percentile : new double[] {50, 90, 99, 99.9}) {
+			long expected = (long) (percentile * 1000);
+			long actual = snapshot.getPercentileMicros(percentile);
+			assertTrue(percentile + ": " + actual, actual >= expected && actual <= expected * 1.04);
+		}
+		assertEquals(100000, snapshot.getPercentileMicros(100));
+	}
+
+	@Test
+	public void snapshotShouldFlattenAllMetrics() {
+		TrackerMetrics metrics = new TrackerMetrics();
+		metrics.counter("insert.events").add(3);
+		metrics.gauge("queue.depth", () -> 7);
+		metrics.histogram("insert.store").recordNanos(2000);
+		Map<String,Long> snapshot = metrics.snapshot();
+		assertEquals(Long.valueOf(3), snapshot.get("insert.events"));
+		assertEquals(Long.valueOf(7), snapshot.get("queue.depth"));
+		assertEquals(Long.valueOf(1), snapshot.get("insert.store.count"));
+		assertEquals(Long.valueOf(2), snapshot.get("insert.store.p99Micros"));
+		assertTrue(metrics.dump().contains("\ninsert.store.maxMicros=2"));
+	}
+
+	@Test
+	public void metricsShouldBeReadableOverJmx() throws Exception {
+		TrackerMetrics metrics = new TrackerMetrics();
+		metrics.counter("insert.events").increment();
+		String name = "org.dhenry.samples:type=UniqueEventTracker,name=metricsTest";
+		metrics.register(name);
+		try {
+			assertEquals(Long.valueOf(1), ManagementFactory.getPlatformMBeanServer()
+				.getAttribute(new ObjectName(name), "insert.events"));
+			try {
+				ManagementFactory.getPlatformMBeanServer().invoke(new ObjectName(name), "reset", null, null);
+				fail("there are no operations");
+			} catch (ReflectionException ex) {
+				assertTrue(ex.getCause() instanceof NoSuchMethodException);
+			}
+		} finally {
+			metrics.unregister();
+		}
+		assertFalse(ManagementFactory.getPlatformMBeanServer().isRegistered(new ObjectName(name)));
+	}
+}
@@ -0,0 +1,74 @@
+package org.dhenry.samples.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.dhenry.samples.main.BloomFilter;
+import org.dhenry.samples.main.UniqueEventTracker;
+import org.dhenry.samples.main.UniquenessIndex;
+import org.junit.Test;
+
+public class UniquenessIndexTests {
+
+	public UniquenessIndexTests() {
+		
+	}
+
+	@Test
+	public void bloomFilterShouldHaveNoFalseNegatives() {
+		BloomFilter filter = BloomFilter.create(10000, 0.01);
+		for (int i = 0; i < 10000; i++) {
+			filter.put(BloomFilter.hash("click", "http://example.com/" + i, "actor"));
+		}
+		for (int i = 0; i < 10000; i++) {
+			assertTrue(filter.mightContain(BloomFilter.hash("click", "http://example.com/" + i, "actor")));
+		}
+	}
+
+	@Test
+	public void bloomFilterFalsePositivesShouldBeNearConfiguredRate() {
+		BloomFilter filter = BloomFilter.create(10000, 0.01);
+		for (int i = 0; i < 10000; i++) {
+			filter.put(BloomFilter.hash("click", "http://example.com/" + i, "actor"));
+		}
+		int falsePositives = 0;
+		for (int i = 0; i < 10000; i++) {
+			if (filter.mightContain(BloomFilter.hash("click", "http://example.org/" + i, "actor"))) {
+				falsePositives++;
+			}
+		}
+		assertTrue("false positives: " + falsePositives, falsePositives < 300);
+	}
+
+	@Test
+	public void unknownPeriodShouldAlwaysBeMaybe() {
+		UniquenessIndex index = new UniquenessIndex(1000, 0.01, 1024 * 1024);
+		assertTrue(index.mightContain(UniqueEventTracker.PERIOD_HOUR, 5, "click", "t1", "v", "a"));
+		assertEquals(1, index.getMissCount());
+	}
+
+	@Test
+	public void startedPeriodShouldAnswerNeverSeen() {
+		UniquenessIndex index = new UniquenessIndex(1000, 0.01, 1024 * 1024);
+		index.startPeriod(UniqueEventTracker.PERIOD_HOUR, 6);
+		assertFalse(index.mightContain(UniqueEventTracker.PERIOD_HOUR, 6, "click", "t1", "v", "a"));
+		index.put(UniqueEventTracker.PERIOD_HOUR, 6, "click", "t1", "v", "a");
+		assertTrue(index.mightContain(UniqueEventTracker.PERIOD_HOUR, 6, "click", "t1", "v", "a"));
+		assertFalse(index.mightContain(UniqueEventTracker.PERIOD_HOUR, 6, "click", "t2", "v", "a"));
+		assertEquals(2, index.getHitCount());
+		assertEquals(1, index.getMissCount());
+		
+		index.dropPeriod(UniqueEventTracker.PERIOD_HOUR, 6);
+		assertEquals(0, index.getUsedBytes());
+	}
+
+	@Test
+	public void tenantOverBudgetShouldBeMaybe() {
+		UniquenessIndex index = new UniquenessIndex(100000, 0.01, 1024);
+		index.startPeriod(UniqueEventTracker.PERIOD_DAY, 1);
+		index.put(UniqueEventTracker.PERIOD_DAY, 1, "click", "t1", "v", "a");
+		assertTrue(index.mightContain(UniqueEventTracker.PERIOD_DAY, 1, "click", "t1", "other", "a"));
+		assertEquals(0, index.getUsedBytes());
+	}
+}
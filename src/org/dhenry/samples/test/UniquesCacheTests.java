@@ -0,0 +1,127 @@
+package org.dhenry.samples.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+import java.time.ZonedDateTime;
+import java.util.Collections;
+
+import org.dhenry.samples.main.Event;
+import org.dhenry.samples.main.UniqueEventTracker;
+import org.dhenry.samples.main.UniquesCache;
+import org.junit.Test;
+
+public class UniquesCacheTests {
+
+	private static final String ACTOR = "6f1b3c2e-8f4a-4c1d-9a57-3b2e1d0c9f8a";
+	private static final int HOUR = UniqueEventTracker.PERIOD_HOUR;
+
+	public UniquesCacheTests() {
+
+	}
+
+	@Test
+	public void emptyResultsShouldBeCached() {
+		UniquesCache cache = new UniquesCache(100, 30);
+		assertNull(cache.get(HOUR, 5, false, "click", "tenant", ACTOR, "http://a"));
+		long stamp = cache.stamp("click", "tenant", ACTOR);
+		cache.put(HOUR, 5, "click", "tenant", ACTOR, "http://a", Collections.emptyList(), stamp);
+		assertEquals(0, cache.get(HOUR, 5, false, "click", "tenant", ACTOR, "http://a").size());
+		assertEquals(1, cache.getHitCount());
+		assertEquals(1, cache.getMissCount());
+	}
+
+	@Test
+	public void insertsShouldWriteThroughOnce() {
+		UniquesCache cache = new UniquesCache(100, 30);
+		long stamp = cache.stamp("click", "tenant", ACTOR);
+		cache.put(HOUR, 5, "click", "tenant", ACTOR, "http://a", Collections.emptyList(), stamp);
+		Event event = event("http://a", ZonedDateTime.now());
+		cache.written(HOUR, 5, "click", "tenant", ACTOR, "http://a", event);
+		cache.written(HOUR, 5, "click", "tenant", ACTOR, "http://a", event);
+		assertEquals(1, cache.get(HOUR, 5, false, "click", "tenant", ACTOR, "http://a").size());
+		// another table's entry isn't touched, nor created
+		assertNull(cache.get(HOUR, 6, false, "click", "tenant", ACTOR, "http://a"));
+	}
+
+	@Test
+	public void readRacingAnInsertShouldNotBeCached() {
+		UniquesCache cache = new UniquesCache(100, 30);
+		long stamp = cache.stamp("click", "tenant", ACTOR);
+		cache.written(HOUR, 5, "click", "tenant", ACTOR, "http://a", event("http://a", ZonedDateTime.now()));
+		cache.put(HOUR, 5, "click", "tenant", ACTOR, "http://a", Collections.emptyList(), stamp);
+		assertNull(cache.get(HOUR, 5, false, "click", "tenant", ACTOR, "http://a"));
+	}
+
+	@Test
+	public void readBeforeTheWriteLandsShouldNotBeCached() {
+		UniquesCache cache = new UniquesCache(100, 30);
+		Event event = event("http://a", ZonedDateTime.now());
+		cache.written(HOUR, 5, "click", "tenant", ACTOR, "http://a", event);
+		// the stamp is taken after the insert, but the store doesn't have it yet
+		long stamp = cache.stamp("click", "tenant", ACTOR);
+		cache.put(HOUR, 5, "click", "tenant", ACTOR, "http://a", Collections.emptyList(), stamp);
+		assertNull(cache.get(HOUR, 5, true, "click", "tenant", ACTOR, "http://a"));
+		cache.stored(HOUR, 5, "click", "tenant", ACTOR, "http://a", true);
+		cache.put(HOUR, 5, "click", "tenant", ACTOR, "http://a", Collections.emptyList(), stamp);
+		assertNull(cache.get(HOUR, 5, true, "click", "tenant", ACTOR, "http://a"));
+		stamp = cache.stamp("click", "tenant", ACTOR);
+		cache.put(HOUR, 5, "click", "tenant", ACTOR, "http://a", Collections.singletonList(event), stamp);
+		assertEquals(1, cache.get(HOUR, 5, true, "click", "tenant", ACTOR, "http://a").size());
+	}
+
+	@Test
+	public void failedWriteShouldDropTheEntryItJoined() {
+		UniquesCache cache = new UniquesCache(100, 30);
+		long stamp = cache.stamp("click", "tenant", ACTOR);
+		cache.put(HOUR, 5, "click", "tenant", ACTOR, "http://a", Collections.emptyList(), stamp);
+		cache.written(HOUR, 5, "click", "tenant", ACTOR, "http://a", event("http://a", ZonedDateTime.now()));
+		assertEquals(1, cache.get(HOUR, 5, false, "click", "tenant", ACTOR, "http://a").size());
+		cache.stored(HOUR, 5, "click", "tenant", ACTOR, "http://a", false);
+		assertNull(cache.get(HOUR, 5, false, "click", "tenant", ACTOR, "http://a"));
+	}
+
+	@Test
+	public void closedTableShouldExpireWhileWritesAreInFlight() throws InterruptedException {
+		UniquesCache cache = new UniquesCache(100, 0);
+		long stamp = cache.stamp("click", "tenant", ACTOR);
+		cache.put(HOUR, 4, "click", "tenant", ACTOR, "http://a", Collections.emptyList(), stamp);
+		// e.g. dead-lettered, landing after the period closed
+		cache.written(HOUR, 4, "click", "tenant", ACTOR, "http://b", event("http://b", ZonedDateTime.now()));
+		Thread.sleep(2);
+		assertNull(cache.get(HOUR, 4, true, "click", "tenant", ACTOR, "http://a"));
+	}
+
+	@Test
+	public void onlyCurrentTablesShouldExpire() throws InterruptedException {
+		UniquesCache cache = new UniquesCache(100, 0);
+		long stamp = cache.stamp("click", "tenant", ACTOR);
+		cache.put(HOUR, 4, "click", "tenant", ACTOR, "http://a", Collections.emptyList(), stamp);
+		cache.put(HOUR, 5, "click", "tenant", ACTOR, "http://a", Collections.emptyList(), stamp);
+		Thread.sleep(2);
+		assertNotNull(cache.get(HOUR, 4, true, "click", "tenant", ACTOR, "http://a"));
+		assertNull(cache.get(HOUR, 5, false, "click", "tenant", ACTOR, "http://a"));
+	}
+
+	@Test
+	public void leastRecentlyUsedShouldBeEvicted() throws InterruptedException {
+		UniquesCache cache = new UniquesCache(10, 30);
+		long stamp = cache.stamp("click", "tenant", ACTOR);
+		for (int i = 0; i < 10; i++) {
+			cache.put(HOUR, 5, "click", "tenant", ACTOR, "http://" + i, Collections.emptyList(), stamp);
+			Thread.sleep(1);
+		}
+		assertNotNull(cache.get(HOUR, 5, false, "click", "tenant", ACTOR, "http://0"));
+		cache.put(HOUR, 5, "click", "tenant", ACTOR, "http://10", Collections.emptyList(), stamp);
+		assertEquals(9, cache.size());
+		assertNotNull(cache.get(HOUR, 5, false, "click", "tenant", ACTOR, "http://0"));
+		assertNull(cache.get(HOUR, 5, false, "click", "tenant", ACTOR, "http://1"));
+		assertNull(cache.get(HOUR, 5, false, "click", "tenant", ACTOR, "http://2"));
+	}
+
+	private static Event event(String url, ZonedDateTime occurred) {
+		return new Event("key", "10.0.0.1", "tenant", ACTOR, "click", "{\"URL\":\"" + url + "\"}",
+			occurred.toString(), occurred.toString(), 1);
+	}
+}
@@ -0,0 +1,40 @@
+package org.dhenry.samples.test;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.dhenry.samples.main.WriteRetryPolicy;
+import org.junit.Test;
+
+import com.datastax.driver.core.exceptions.DriverException;
+import com.datastax.driver.core.exceptions.InvalidQueryException;
+
+public class WriteRetryPolicyTests {
+
+	public WriteRetryPolicyTests() {
+
+	}
+
+	@Test
+	public void backoffShouldGrowUpToTheCap() {
+		WriteRetryPolicy policy = new WriteRetryPolicy(5, 10, 100, 10, 1000);
+		for (int i = 0; i < 1000; i++) {
+			long first = policy.backoffMillis(1);
+			assertTrue(first >= 1 && first <= 10);
+			long third = policy.backoffMillis(3);
+			assertTrue(third >= 1 && third <= 40);
+			long tenth = policy.backoffMillis(10);
+			assertTrue(tenth >= 1 && tenth <= 100);
+		}
+	}
+
+	@Test
+	public void onlyTransientFailuresShouldBeRetried() {
+		WriteRetryPolicy policy = new WriteRetryPolicy(2, 10, 100, 10, 1000);
+		assertTrue(policy.shouldRetry(new DriverException("timed out"), 1));
+		assertTrue(policy.shouldRetry(new DriverException("timed out"), 2));
+		assertFalse(policy.shouldRetry(new DriverException("timed out"), 3));
+		assertFalse(policy.shouldRetry(new InvalidQueryException("unconfigured table"), 1));
+		assertFalse(policy.shouldRetry(new IllegalStateException(), 1));
+	}
+}